@@ -0,0 +1,57 @@
+package com.wongpiwat.trust_location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Measures encoding the binary frames that carry fixes over the channels into a reused direct buffer, like
+ * FixFrameCodec does after writing the envelope byte.
+ */
+@State(Scope.Thread)
+public class EncodingBenchmark {
+    private final Track track = new Track();
+    private final FixSample sample = new FixSample();
+    private ByteBuffer buffer;
+    private Fix fix;
+    private FixHistory history;
+
+    @Setup
+    public void setUp() {
+        history = new FixHistory(FixHistory.DEFAULT_CAPACITY);
+        for (int i = 0; i < FixHistory.DEFAULT_CAPACITY; i++) {
+            track.fill(sample, i);
+            fix = new Fix(i + 1, Fix.FLAG_HAS_FIX, sample.latitude, sample.longitude, sample.accuracy, sample.time,
+                    sample.elapsedRealtimeNanos, 1, ZoneIndex.NO_ZONE, Double.NaN, Double.NaN);
+            history.add(fix);
+        }
+        BinaryFrame frame = history.since(0);
+        buffer = ByteBuffer.allocateDirect(1 + frame.maxSize()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * A single fix, as pushed for every location.
+     */
+    @Benchmark
+    public int encodeFix() {
+        buffer.clear();
+        buffer.put((byte) 0);
+        fix.writeTo(buffer);
+        return buffer.position();
+    }
+
+    /**
+     * A full history, as answered to getHistory or pushed for a batch.
+     */
+    @Benchmark
+    public int encodeHistory() {
+        buffer.clear();
+        buffer.put((byte) 0);
+        history.since(0).writeTo(buffer);
+        return buffer.position();
+    }
+}
@@ -0,0 +1,68 @@
+package com.wongpiwat.trust_location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the work done for every fix between the provider callback and the channel: the {@link FixChecker} and
+ * {@link FixPipeline#publish} as used by the plugin, that is plausibility scoring, smoothing, filtering, zone
+ * classification, publishing the snapshot and adding it to the history.
+ */
+@State(Scope.Thread)
+public class IngestionBenchmark {
+    /**
+     * Whether the optional smoothing and filter stages are on
+     */
+    @Param({"false", "true"})
+    public boolean stages;
+
+    private final Track track = new Track();
+    private final FixSample sample = new FixSample();
+    private TrustScorer scorer;
+    private FixChecker checker;
+    private FixPipeline pipeline;
+    private long index;
+
+    @Setup
+    public void setUp() {
+        Metrics metrics = new Metrics();
+        scorer = TrustScorer.createDefault();
+        checker = new FixChecker(metrics);
+        pipeline = new FixPipeline(FixHistory.DEFAULT_CAPACITY);
+        ZoneIndex.Builder builder = new ZoneIndex.Builder();
+        for (int i = 0; i < 100; i++)
+            builder.addCircle(i, 13.7563 + 0.001 * i, 100.5018, 50);
+        pipeline.setZones(builder.build());
+        if (stages) {
+            checker.setSmoothing(true, 1.5);
+            // The track moves about 1.4 m per fix, so the filter checks every fix but drops none
+            FixFilter filter = new FixFilter(metrics);
+            filter.setThresholds(1, 0, true);
+            pipeline.setFilter(filter);
+        }
+    }
+
+    /**
+     * Plausibility scoring by the default detector chain.
+     */
+    @Benchmark
+    public float score() {
+        track.fill(sample, index++);
+        return scorer.score(sample);
+    }
+
+    /**
+     * Everything that happens to an accepted fix on the native side.
+     */
+    @Benchmark
+    public Fix ingest() {
+        track.fill(sample, index++);
+        if (!checker.check(sample)) return null;
+        return pipeline.publish(sample.latitude, sample.longitude, sample.accuracy, sample.time,
+                sample.elapsedRealtimeNanos, checker.getTrust(), checker.getSmoothedLatitude(),
+                checker.getSmoothedLongitude());
+    }
+}
@@ -0,0 +1,57 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * Synthetic walk used as input by the benchmarks, the equivalent of the locations delivered by the provider.
+ */
+final class Track {
+    static final int SIZE = 1024;
+    private static final long INTERVAL_NANOS = 1000000000L;
+
+    final double[] latitude = new double[SIZE];
+    final double[] longitude = new double[SIZE];
+    final float[] accuracy = new float[SIZE];
+    final double[] altitude = new double[SIZE];
+    final float[] speed = new float[SIZE];
+    final long[] time = new long[SIZE];
+    final long[] elapsedRealtimeNanos = new long[SIZE];
+
+    Track() {
+        java.util.Random random = new java.util.Random(42);
+        double lat = 13.7563;
+        double lon = 100.5018;
+        for (int i = 0; i < SIZE; i++) {
+            // About 1.4 m/s around a closed loop, so the track wraps around without a jump
+            double heading = 2 * Math.PI * i / SIZE;
+            lat += 1.26e-5 * Math.cos(heading);
+            lon += 1.26e-5 * Math.sin(heading);
+            latitude[i] = lat;
+            longitude[i] = lon;
+            accuracy[i] = 3 + 10 * random.nextFloat();
+            altitude[i] = 5 + random.nextGaussian();
+            speed[i] = 1.2f + 0.4f * random.nextFloat();
+            time[i] = 1600000000000L + i * 1000L;
+            elapsedRealtimeNanos[i] = 3600000000000L + i * INTERVAL_NANOS;
+        }
+    }
+
+    /**
+     * Fills the sample with the fix at the given index, like LocationAssistant does for every location.
+     * Timestamps keep increasing when the track wraps around, so the detectors never see time going backwards.
+     */
+    void fill(FixSample sample, long index) {
+        int i = (int) (index % SIZE);
+        long lap = index / SIZE;
+        sample.latitude = latitude[i];
+        sample.longitude = longitude[i];
+        sample.hasAccuracy = true;
+        sample.accuracy = accuracy[i];
+        sample.hasAltitude = true;
+        sample.altitude = altitude[i];
+        sample.hasSpeed = true;
+        sample.speed = speed[i];
+        sample.time = time[i] + lap * SIZE * 1000L;
+        sample.elapsedRealtimeNanos = elapsedRealtimeNanos[i] + lap * SIZE * INTERVAL_NANOS;
+        sample.receivedElapsedRealtimeNanos = sample.elapsedRealtimeNanos + 50000000L;
+        sample.fromMockProvider = false;
+    }
+}
@@ -0,0 +1,59 @@
+package com.wongpiwat.trust_location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Measures encoding and decoding a whole track with {@link TrajectoryCodec}, as done for a bulk export. Scores are per
+ * fix.
+ */
+@State(Scope.Thread)
+public class TrajectoryCodecBenchmark {
+    private final Track track = new Track();
+    private final FixSample sample = new FixSample();
+    private final Fix[] fixes = new Fix[Track.SIZE];
+    private final TrajectoryCodec.Encoder encoder = new TrajectoryCodec.Encoder();
+    private final TrajectoryCodec.Decoder decoder = new TrajectoryCodec.Decoder();
+    private ByteBuffer buffer;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < Track.SIZE; i++) {
+            track.fill(sample, i);
+            boolean smoothed = i % 2 == 0;
+            fixes[i] = new Fix(i + 1, Fix.FLAG_HAS_FIX, sample.latitude, sample.longitude, sample.accuracy,
+                    sample.time, sample.elapsedRealtimeNanos, 0.9f, ZoneIndex.NO_ZONE,
+                    smoothed ? sample.latitude + 1e-6 : Double.NaN, smoothed ? sample.longitude - 1e-6 : Double.NaN);
+        }
+        buffer = ByteBuffer.allocate(Track.SIZE * TrajectoryCodec.MAX_RECORD_SIZE);
+        encode();
+        encoded = ByteBuffer.allocate(buffer.position());
+        buffer.flip();
+        encoded.put(buffer);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Track.SIZE)
+    public int encode() {
+        buffer.clear();
+        encoder.reset();
+        for (Fix fix : fixes) encoder.encode(fix, buffer);
+        return buffer.position();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Track.SIZE)
+    public long decode() {
+        encoded.rewind();
+        decoder.reset();
+        long seq = 0;
+        for (Fix fix; (fix = decoder.decode(encoded)) != null; ) seq += fix.seq;
+        return seq;
+    }
+}
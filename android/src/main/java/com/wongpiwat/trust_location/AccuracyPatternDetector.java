@@ -0,0 +1,48 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * Flags accuracy and altitude values that real receivers rarely produce: a missing or zero accuracy, an altitude of
+ * exactly 0 and long runs of bit-identical accuracy or altitude values, which mock apps tend to repeat.
+ */
+final class AccuracyPatternDetector implements MockDetector {
+    private static final int RUN_THRESHOLD = 10;
+
+    private float previousAccuracy = Float.NaN;
+    private double previousAltitude = Double.NaN;
+    private int accuracyRun;
+    private int altitudeRun;
+
+    @Override
+    public float evaluate(FixSample sample) {
+        float suspicion = 0;
+        if (!sample.hasAccuracy || sample.accuracy <= 0) {
+            suspicion = 0.5f;
+            accuracyRun = 0;
+            previousAccuracy = Float.NaN;
+        } else {
+            accuracyRun = Float.floatToIntBits(sample.accuracy) == Float.floatToIntBits(previousAccuracy)
+                    ? Math.min(accuracyRun + 1, 1000000) : 0;
+            previousAccuracy = sample.accuracy;
+            suspicion = Math.max(suspicion, Geo.ramp(accuracyRun, RUN_THRESHOLD, 2 * RUN_THRESHOLD));
+        }
+        if (sample.hasAltitude) {
+            if (sample.altitude == 0) suspicion = Math.max(suspicion, 0.25f);
+            altitudeRun = Double.doubleToLongBits(sample.altitude) == Double.doubleToLongBits(previousAltitude)
+                    ? Math.min(altitudeRun + 1, 1000000) : 0;
+            previousAltitude = sample.altitude;
+            suspicion = Math.max(suspicion, Geo.ramp(altitudeRun, RUN_THRESHOLD, 2 * RUN_THRESHOLD));
+        } else {
+            altitudeRun = 0;
+            previousAltitude = Double.NaN;
+        }
+        return suspicion;
+    }
+
+    @Override
+    public void reset() {
+        previousAccuracy = Float.NaN;
+        previousAltitude = Double.NaN;
+        accuracyRun = 0;
+        altitudeRun = 0;
+    }
+}
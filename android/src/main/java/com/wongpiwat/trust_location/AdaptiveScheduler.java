@@ -0,0 +1,139 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * Chooses the accuracy and update interval of location updates from how the device moves.
+ * A fix counts as moving when its speed is high enough or when it leaves the radius around the place where the
+ * device last settled. Moving fast switches to frequent high-accuracy updates right away, while several slow fixes in
+ * a row are needed to back off to infrequent balanced-power updates, so short stops do not cause flapping.
+ * A power budget caps the accuracy and the update frequency of every mode.
+ * The scheduler keeps only primitive state, all methods are synchronized so that fixes may be fed from the thread
+ * that receives them while the mode is read from another one.
+ */
+final class AdaptiveScheduler {
+    /**
+     * Movement modes and the location updates they ask for.
+     */
+    enum Mode {
+        /**
+         * The device stays in place
+         */
+        STATIONARY(LocationAssistant.Accuracy.MEDIUM, 30000),
+        /**
+         * The device moves at walking pace
+         */
+        MOVING(LocationAssistant.Accuracy.HIGH, 5000),
+        /**
+         * The device moves at vehicle pace
+         */
+        FAST(LocationAssistant.Accuracy.HIGH, 2000);
+
+        final LocationAssistant.Accuracy accuracy;
+        final long interval;
+
+        Mode(LocationAssistant.Accuracy accuracy, long interval) {
+            this.accuracy = accuracy;
+            this.interval = interval;
+        }
+    }
+
+    private static final double FAST_SPEED = 7;
+    private static final double MOVING_SPEED = 1;
+    private static final int STATIONARY_FIXES = 3;
+    private static final double MIN_ANCHOR_RADIUS = 30;
+
+    private LocationAssistant.Accuracy maxAccuracy = LocationAssistant.Accuracy.HIGH;
+    private long minInterval;
+    private Mode mode = Mode.MOVING;
+    private int slowFixes;
+    private boolean hasAnchor;
+    private double anchorLatitude;
+    private double anchorLongitude;
+    private boolean hasPrevious;
+    private double previousLatitude;
+    private double previousLongitude;
+    private float previousAccuracy;
+    private long previousElapsedRealtimeNanos;
+
+    /**
+     * Sets the power budget that caps every mode.
+     *
+     * @param maxAccuracy the most power-hungry accuracy that may be requested
+     * @param minInterval the shortest update interval (in milliseconds) that may be requested
+     */
+    synchronized void setBudget(LocationAssistant.Accuracy maxAccuracy, long minInterval) {
+        this.maxAccuracy = maxAccuracy;
+        this.minInterval = minInterval;
+    }
+
+    synchronized Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the accuracy to request in the current mode, within the power budget.
+     */
+    synchronized LocationAssistant.Accuracy getAccuracy() {
+        // Accuracies are ordered from most to least power-hungry
+        return mode.accuracy.ordinal() >= maxAccuracy.ordinal() ? mode.accuracy : maxAccuracy;
+    }
+
+    /**
+     * Returns the update interval (in milliseconds) to request in the current mode, within the power budget.
+     */
+    synchronized long getInterval() {
+        return Math.max(mode.interval, minInterval);
+    }
+
+    /**
+     * Feeds the next accepted fix.
+     *
+     * @param speed the speed reported with the fix in m/s, or a negative value if there is none
+     * @return {@code true} if the mode changed
+     */
+    synchronized boolean update(double latitude, double longitude, float accuracy, float speed, long elapsedRealtimeNanos) {
+        double currentSpeed = speed;
+        if (currentSpeed < 0) {
+            currentSpeed = 0;
+            // Movement within the accuracy radii of both fixes may be jitter, so it does not count
+            if (hasPrevious && elapsedRealtimeNanos > previousElapsedRealtimeNanos)
+                currentSpeed = Math.max(0, Geo.distance(previousLatitude, previousLongitude, latitude, longitude)
+                        - previousAccuracy - accuracy) / ((elapsedRealtimeNanos - previousElapsedRealtimeNanos) / 1e9);
+        }
+        hasPrevious = true;
+        previousLatitude = latitude;
+        previousLongitude = longitude;
+        previousAccuracy = accuracy;
+        previousElapsedRealtimeNanos = elapsedRealtimeNanos;
+
+        boolean displaced = false;
+        if (!hasAnchor || Geo.distance(anchorLatitude, anchorLongitude, latitude, longitude)
+                > Math.max(MIN_ANCHOR_RADIUS, 1.5 * accuracy)) {
+            displaced = hasAnchor;
+            hasAnchor = true;
+            anchorLatitude = latitude;
+            anchorLongitude = longitude;
+        }
+
+        Mode next;
+        if (currentSpeed >= FAST_SPEED) {
+            slowFixes = 0;
+            next = Mode.FAST;
+        } else if (currentSpeed >= MOVING_SPEED || displaced) {
+            slowFixes = 0;
+            next = Mode.MOVING;
+        } else {
+            slowFixes = Math.min(slowFixes + 1, STATIONARY_FIXES);
+            next = slowFixes >= STATIONARY_FIXES ? Mode.STATIONARY : mode == Mode.FAST ? Mode.MOVING : mode;
+        }
+        if (next == mode) return false;
+        mode = next;
+        return true;
+    }
+
+    synchronized void reset() {
+        mode = Mode.MOVING;
+        slowFixes = 0;
+        hasAnchor = false;
+        hasPrevious = false;
+    }
+}
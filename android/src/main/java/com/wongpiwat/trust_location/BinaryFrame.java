@@ -0,0 +1,18 @@
+package com.wongpiwat.trust_location;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A value that {@link FixFrameCodec} sends to Dart as a little-endian binary frame.
+ */
+interface BinaryFrame {
+    /**
+     * Returns the maximum number of bytes {@link #writeTo(ByteBuffer)} writes.
+     */
+    int maxSize();
+
+    /**
+     * Writes the frame, starting with its tag, at the current position of the buffer.
+     */
+    void writeTo(ByteBuffer buffer);
+}
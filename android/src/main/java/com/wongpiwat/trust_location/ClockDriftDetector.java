@@ -0,0 +1,41 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * Flags fixes whose timestamps do not add up. Between two real fixes, the UTC time and the time since boot advance
+ * by the same amount, while mock apps often fill in only one of them. Fixes without a boot timestamp or with one that
+ * lies in the future are suspicious as well.
+ */
+final class ClockDriftDetector implements MockDetector {
+    private static final long DRIFT_TOLERANCE_MILLIS = 2000;
+    private static final long MAX_DRIFT_MILLIS = 10000;
+    private static final long FUTURE_TOLERANCE_NANOS = 1000000000L;
+
+    private boolean hasPrevious;
+    private long previousTime;
+    private long previousElapsedRealtimeNanos;
+
+    @Override
+    public float evaluate(FixSample sample) {
+        float suspicion;
+        if (sample.elapsedRealtimeNanos <= 0)
+            suspicion = 0.5f;
+        else if (sample.receivedElapsedRealtimeNanos > 0
+                && sample.elapsedRealtimeNanos - sample.receivedElapsedRealtimeNanos > FUTURE_TOLERANCE_NANOS)
+            suspicion = 1;
+        else if (hasPrevious && previousElapsedRealtimeNanos > 0) {
+            long wallMillis = sample.time - previousTime;
+            long bootMillis = (sample.elapsedRealtimeNanos - previousElapsedRealtimeNanos) / 1000000;
+            suspicion = Geo.ramp(Math.abs(wallMillis - bootMillis), DRIFT_TOLERANCE_MILLIS, MAX_DRIFT_MILLIS);
+        } else
+            suspicion = 0;
+        hasPrevious = true;
+        previousTime = sample.time;
+        previousElapsedRealtimeNanos = sample.elapsedRealtimeNanos;
+        return suspicion;
+    }
+
+    @Override
+    public void reset() {
+        hasPrevious = false;
+    }
+}
@@ -0,0 +1,137 @@
+package com.wongpiwat.trust_location;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An immutable snapshot of the latest fix together with its trust score, its trusted zone and its mock and pending
+ * flags.
+ * Every published snapshot carries a sequence number higher than the one before, so readers can tell whether
+ * anything changed since their last read.
+ * Snapshots are sent to Dart as little-endian binary frames laid out as: tag, flags, sequence number, latitude,
+ * longitude, accuracy, time, elapsedRealtimeNanos, trust score, zone id and smoothed latitude and longitude. The
+ * Dart side of {@link FixFrameCodec} reads the same layout.
+ */
+final class Fix implements BinaryFrame {
+    static final byte TAG = (byte) 0x80;
+    static final int RECORD_SIZE = 4 + 8 * 6 + 4 + 4 + 8 * 2;
+    static final int SIZE = 1 + RECORD_SIZE;
+
+    static final int FLAG_HAS_FIX = 1;
+    static final int FLAG_MOCK = 1 << 1;
+    static final int FLAG_PENDING = 1 << 2;
+    static final int FLAG_CACHED = 1 << 3;
+
+    /**
+     * The snapshot before the first fix. Without a fix the location is not trusted.
+     */
+    static final Fix NONE = new Fix(0, FLAG_MOCK | FLAG_PENDING, 0, 0, 0, 0, 0, 0, ZoneIndex.NO_ZONE, Double.NaN,
+            Double.NaN);
+
+    final long seq;
+    final int flags;
+    final double latitude;
+    final double longitude;
+    final double accuracy;
+    final long time;
+    final long elapsedRealtimeNanos;
+    /**
+     * Trust score of the fix, from 0 (mocked) to 1 (trusted)
+     */
+    final float trust;
+    /**
+     * Id of the trusted zone containing the fix, {@link ZoneIndex#NO_ZONE} if none
+     */
+    final int zone;
+    /**
+     * Coordinates of the fix after smoothing, {@link Double#NaN} if smoothing is off
+     */
+    final double smoothedLatitude;
+    final double smoothedLongitude;
+
+    Fix(long seq, int flags, double latitude, double longitude, double accuracy, long time,
+        long elapsedRealtimeNanos, float trust, int zone, double smoothedLatitude, double smoothedLongitude) {
+        this.seq = seq;
+        this.flags = flags;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.accuracy = accuracy;
+        this.time = time;
+        this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+        this.trust = trust;
+        this.zone = zone;
+        this.smoothedLatitude = smoothedLatitude;
+        this.smoothedLongitude = smoothedLongitude;
+    }
+
+    boolean hasFix() {
+        return (flags & FLAG_HAS_FIX) != 0;
+    }
+
+    boolean isMock() {
+        return (flags & FLAG_MOCK) != 0;
+    }
+
+    boolean isPending() {
+        return (flags & FLAG_PENDING) != 0;
+    }
+
+    boolean isCached() {
+        return (flags & FLAG_CACHED) != 0;
+    }
+
+    /**
+     * Returns a copy of this snapshot with a new sequence number and flags.
+     */
+    Fix withFlags(long seq, int flags) {
+        return new Fix(seq, flags, latitude, longitude, accuracy, time, elapsedRealtimeNanos, trust, zone,
+                smoothedLatitude, smoothedLongitude);
+    }
+
+    @Override
+    public int maxSize() {
+        return SIZE;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(TAG);
+        writeRecordTo(buffer);
+    }
+
+    /**
+     * Writes the snapshot without its tag, as one record of a history frame.
+     */
+    void writeRecordTo(ByteBuffer buffer) {
+        buffer.putInt(flags);
+        buffer.putLong(seq);
+        buffer.putDouble(latitude);
+        buffer.putDouble(longitude);
+        buffer.putDouble(accuracy);
+        buffer.putLong(time);
+        buffer.putLong(elapsedRealtimeNanos);
+        buffer.putFloat(trust);
+        buffer.putInt(zone);
+        buffer.putDouble(smoothedLatitude);
+        buffer.putDouble(smoothedLongitude);
+    }
+
+    /**
+     * Reads a snapshot written by {@link #writeTo(ByteBuffer)}.
+     *
+     * @return the snapshot, or {@code null} if the buffer does not start with a snapshot
+     */
+    static Fix readFrom(ByteBuffer buffer) {
+        if (buffer.remaining() < SIZE || buffer.get() != TAG) return null;
+        return readRecordFrom(buffer);
+    }
+
+    /**
+     * Reads a snapshot written by {@link #writeRecordTo(ByteBuffer)}, the buffer must hold a whole record.
+     */
+    static Fix readRecordFrom(ByteBuffer buffer) {
+        int flags = buffer.getInt();
+        long seq = buffer.getLong();
+        return new Fix(seq, flags, buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getLong(),
+                buffer.getLong(), buffer.getFloat(), buffer.getInt(), buffer.getDouble(), buffer.getDouble());
+    }
+}
@@ -0,0 +1,134 @@
+package com.wongpiwat.trust_location;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the last trusted fix in a small file, so that it can be served right after the next launch while location
+ * updates warm up.
+ * The file has a fixed layout of a magic number, a version and one snapshot as written by
+ * {@link Fix#writeTo(java.nio.ByteBuffer)}, and is always replaced with a single positioned write. Writes happen on
+ * the given executor and at most once per write interval, fixes offered in between replace each other.
+ */
+final class FixCache {
+    static final String FILE_NAME = "trust_location.fix";
+    static final long DEFAULT_WRITE_INTERVAL = 30000;
+
+    private static final int MAGIC = 0x58464c54;
+    private static final int VERSION = 2;
+    private static final int SIZE = 4 + 4 + Fix.SIZE;
+
+    private final File file;
+    private final Executor executor;
+    private final long writeIntervalNanos;
+    private final AtomicReference<Fix> pending = new AtomicReference<>();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private volatile long lastWriteNanos;
+    // Only used on the executor
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private FileChannel channel;
+
+    /**
+     * @param file          the cache file
+     * @param executor      the executor that writes the file, it must run one task at a time
+     * @param writeInterval the minimum time (in milliseconds) between two writes
+     */
+    FixCache(File file, Executor executor, long writeInterval) {
+        this.file = file;
+        this.executor = executor;
+        this.writeIntervalNanos = writeInterval * 1000000;
+        this.lastWriteNanos = System.nanoTime() - writeIntervalNanos;
+    }
+
+    /**
+     * Reads the cached fix. Call this method off the main thread.
+     *
+     * @return the cached fix, or {@code null} if there is none or the file is not valid
+     */
+    Fix load() {
+        if (!file.isFile() || file.length() != SIZE) return null;
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            FileChannel channel = input.getChannel();
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, buffer.position()) < 0) return null;
+        } catch (IOException e) {
+            return null;
+        }
+        buffer.flip();
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+        Fix fix = Fix.readFrom(buffer);
+        if (fix == null || !fix.hasFix() || Double.isNaN(fix.latitude) || Double.isNaN(fix.longitude)
+                || Math.abs(fix.latitude) > 90 || Math.abs(fix.longitude) > 180) return null;
+        return fix;
+    }
+
+    /**
+     * Offers a trusted fix. It is written right away unless the last write is more recent than the write interval,
+     * in which case it is kept until the next offer after the interval or the next {@link #flush()}.
+     */
+    void offer(Fix fix) {
+        pending.set(fix);
+        if (System.nanoTime() - lastWriteNanos < writeIntervalNanos) return;
+        flush();
+    }
+
+    /**
+     * Writes the last offered fix, if any, regardless of the write interval.
+     */
+    void flush() {
+        if (pending.get() != null && writeScheduled.compareAndSet(false, true)) executor.execute(write);
+    }
+
+    private final Runnable write = new Runnable() {
+        @Override
+        public void run() {
+            writeScheduled.set(false);
+            Fix fix = pending.getAndSet(null);
+            if (fix == null) return;
+            lastWriteNanos = System.nanoTime();
+            buffer.clear();
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            fix.writeTo(buffer);
+            buffer.flip();
+            try {
+                if (channel == null) channel = new RandomAccessFile(file, "rw").getChannel();
+                while (buffer.hasRemaining())
+                    channel.write(buffer, buffer.position());
+            } catch (IOException e) {
+                // The cache is best effort, try again with a fresh file on the next write
+                closeChannel();
+            }
+        }
+    };
+
+    /**
+     * Writes the last offered fix, if any, and closes the file on the executor. A later offer opens it again.
+     */
+    void close() {
+        flush();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeChannel();
+            }
+        });
+    }
+
+    private void closeChannel() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,96 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * The check every fix passes before it may be delivered: scores it with a {@link TrustScorer}, compares the score
+ * with the trust threshold and feeds plausible fixes to the {@link KalmanSmoother}, if smoothing is on.
+ * The fixes of the location providers and those of a replayed trace both go through this one check.
+ * Not thread-safe, fixes must be checked on one thread at a time. Smoothing may be switched from any thread.
+ */
+final class FixChecker {
+    private final TrustScorer trustScorer = TrustScorer.createDefault();
+    private final Metrics metrics;
+    private float trustThreshold = 0.5f;
+    private float trust;
+
+    // Replaced as a whole so that the checking thread never sees a reset
+    private volatile KalmanSmoother smoother;
+    private volatile double smoothingNoise;
+    private double smoothedLatitude = Double.NaN;
+    private double smoothedLongitude = Double.NaN;
+
+    FixChecker(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    TrustScorer getTrustScorer() {
+        return trustScorer;
+    }
+
+    /**
+     * Sets the trust score a fix needs to be considered plausible, the default is 0.5.
+     */
+    void setTrustThreshold(float trustThreshold) {
+        this.trustThreshold = trustThreshold;
+    }
+
+    /**
+     * Enables or disables smoothing of plausible fixes.
+     *
+     * @param processNoise the expected speed (in meters per second) at which the true position wanders
+     */
+    void setSmoothing(boolean enabled, double processNoise) {
+        smoothingNoise = processNoise;
+        smoother = enabled ? new KalmanSmoother(processNoise) : null;
+    }
+
+    /**
+     * Starts smoothing from scratch, e.g. after a pause in which the position may have changed a lot.
+     */
+    void restartSmoothing() {
+        if (smoother != null) smoother = new KalmanSmoother(smoothingNoise);
+    }
+
+    /**
+     * Checks a fix and keeps its results until the next one.
+     *
+     * @return {@code true} if the fix is plausible
+     */
+    boolean check(FixSample sample) {
+        metrics.increment(Metrics.FIXES_RECEIVED);
+        trust = trustScorer.score(sample);
+        boolean plausible = trust >= trustThreshold;
+        if (!plausible) metrics.increment(Metrics.FIXES_FLAGGED);
+        KalmanSmoother smoother = this.smoother;
+        // Implausible fixes would drag the estimate towards them
+        if (smoother == null || !plausible) {
+            smoothedLatitude = Double.NaN;
+            smoothedLongitude = Double.NaN;
+        } else {
+            smoother.update(sample.latitude, sample.longitude, sample.accuracy, sample.elapsedRealtimeNanos);
+            smoothedLatitude = smoother.getLatitude();
+            smoothedLongitude = smoother.getLongitude();
+        }
+        return plausible;
+    }
+
+    /**
+     * Returns the trust score of the last checked fix, from 0 (mocked) to 1 (trusted).
+     */
+    float getTrust() {
+        return trust;
+    }
+
+    /**
+     * Returns the smoothed latitude after the last checked fix, {@link Double#NaN} if it was not smoothed.
+     */
+    double getSmoothedLatitude() {
+        return smoothedLatitude;
+    }
+
+    /**
+     * Returns the smoothed longitude after the last checked fix, {@link Double#NaN} if it was not smoothed.
+     */
+    double getSmoothedLongitude() {
+        return smoothedLongitude;
+    }
+}
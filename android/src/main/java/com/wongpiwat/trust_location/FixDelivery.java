@@ -0,0 +1,77 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * Tracks which published snapshots have been delivered and picks what crosses the channel next. The accepted fixes
+ * are sent from the history, while a mock flag update is a snapshot that is never part of the history, so it follows
+ * them on its own.
+ * Not thread-safe, the plugin only uses it on the main thread.
+ */
+final class FixDelivery {
+    private final FixPipeline pipeline;
+    private final FixHistory history;
+    private long deliveredSeq;
+    // The results of the last take
+    private BinaryFrame frame;
+    private Fix flagged;
+    private Fix accepted;
+
+    FixDelivery(FixPipeline pipeline) {
+        this.pipeline = pipeline;
+        history = pipeline.getHistory();
+    }
+
+    /**
+     * Takes the snapshots published since the last call, their frames and fixes are kept until the next one.
+     *
+     * @return {@code false} if nothing was published since
+     */
+    boolean take() {
+        Fix fix = pipeline.getLatest();
+        frame = null;
+        flagged = null;
+        accepted = null;
+        if (fix.seq <= deliveredSeq) return false;
+        int count = history.countBetween(deliveredSeq, fix.seq);
+        if (count > 0) accepted = fix.isMock() ? history.newest(fix.seq) : fix;
+        if (fix.hasFix()) {
+            if (count > 1 || (count > 0 && fix.isMock())) {
+                frame = history.between(deliveredSeq, fix.seq);
+                if (fix.isMock()) flagged = fix;
+            } else {
+                frame = fix;
+            }
+        }
+        deliveredSeq = fix.seq;
+        return true;
+    }
+
+    /**
+     * Returns the frame to send, or {@code null} if there is no fix to send.
+     */
+    BinaryFrame getFrame() {
+        return frame;
+    }
+
+    /**
+     * Returns the flagged snapshot to send after the frame, or {@code null} if the frame already is the latest
+     * snapshot.
+     */
+    Fix getFlagged() {
+        return flagged;
+    }
+
+    /**
+     * Returns the newest fix accepted since the last delivery without later flag updates, or {@code null} if no fix
+     * was accepted.
+     */
+    Fix getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * Returns the sequence number of the latest delivered snapshot.
+     */
+    long getDeliveredSeq() {
+        return deliveredSeq;
+    }
+}
@@ -0,0 +1,82 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * Drops fixes that add nothing to the last one passed on, before they are published and cross the channel.
+ * Three filters run in order, each with its own counter in {@link Metrics}:
+ * <ul>
+ * <li>identical fixes: same coordinates as the last fix and no better accuracy</li>
+ * <li>minimum displacement: closer to the last fix than the given distance, unless the accuracy improved enough</li>
+ * <li>minimum accuracy improvement: within the accuracy radius of the last fix and not more accurate by at least the
+ * given amount</li>
+ * </ul>
+ * Fixes are checked on one thread at a time, the thresholds may be changed from any thread.
+ */
+final class FixFilter {
+    private final Metrics metrics;
+    private double minDisplacement;
+    private double minAccuracyImprovement;
+    private boolean suppressDuplicates;
+    private boolean hasLast;
+    private double lastLatitude;
+    private double lastLongitude;
+    private double lastAccuracy;
+
+    FixFilter(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param minDisplacement        the distance (in meters) a fix must be away from the last one, 0 to disable
+     * @param minAccuracyImprovement the amount (in meters) a fix must be more accurate than the last one, 0 to disable
+     * @param suppressDuplicates     whether to drop fixes identical to the last one
+     */
+    synchronized void setThresholds(double minDisplacement, double minAccuracyImprovement,
+                                    boolean suppressDuplicates) {
+        if (minDisplacement < 0 || minAccuracyImprovement < 0)
+            throw new IllegalArgumentException("thresholds must not be negative");
+        this.minDisplacement = minDisplacement;
+        this.minAccuracyImprovement = minAccuracyImprovement;
+        this.suppressDuplicates = suppressDuplicates;
+    }
+
+    synchronized boolean isEnabled() {
+        return minDisplacement > 0 || minAccuracyImprovement > 0 || suppressDuplicates;
+    }
+
+    /**
+     * Checks a fix against the last one passed on and counts it if it is dropped.
+     *
+     * @return {@code true} if the fix should be passed on
+     */
+    synchronized boolean accept(double latitude, double longitude, double accuracy) {
+        if (hasLast) {
+            boolean improved = minAccuracyImprovement > 0 && lastAccuracy - accuracy >= minAccuracyImprovement;
+            if (suppressDuplicates && latitude == lastLatitude && longitude == lastLongitude
+                    && accuracy >= lastAccuracy) {
+                metrics.increment(Metrics.FILTERED_DUPLICATES);
+                return false;
+            }
+            double distance = Geo.distance(lastLatitude, lastLongitude, latitude, longitude);
+            if (distance < minDisplacement && !improved) {
+                metrics.increment(Metrics.FILTERED_DISPLACEMENT);
+                return false;
+            }
+            if (minAccuracyImprovement > 0 && distance < lastAccuracy && !improved) {
+                metrics.increment(Metrics.FILTERED_ACCURACY);
+                return false;
+            }
+        }
+        hasLast = true;
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+        lastAccuracy = accuracy;
+        return true;
+    }
+
+    /**
+     * Forgets the last fix, so that the next one is passed on.
+     */
+    synchronized void reset() {
+        hasLast = false;
+    }
+}
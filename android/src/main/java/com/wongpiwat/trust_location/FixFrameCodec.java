@@ -0,0 +1,74 @@
+package com.wongpiwat.trust_location;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodCodec;
+import io.flutter.plugin.common.StandardMethodCodec;
+
+/**
+ * A MethodCodec that encodes {@link BinaryFrame}s such as {@link Fix} snapshots and delegates every other value to
+ * the {@link StandardMethodCodec}.
+ * Frames are written into a direct buffer that is reused per thread and grows to the largest frame it has held.
+ * This is safe because the engine copies the message synchronously while it is being sent, before the thread can
+ * encode the next one.
+ */
+class FixFrameCodec implements MethodCodec {
+    static final FixFrameCodec INSTANCE = new FixFrameCodec();
+
+    private static final byte SUCCESS_ENVELOPE = 0;
+
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(1 + Fix.SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    };
+
+    private FixFrameCodec() {
+    }
+
+    @Override
+    public ByteBuffer encodeSuccessEnvelope(Object result) {
+        if (!(result instanceof BinaryFrame)) return StandardMethodCodec.INSTANCE.encodeSuccessEnvelope(result);
+        BinaryFrame frame = (BinaryFrame) result;
+        ByteBuffer buffer = buffers.get();
+        if (buffer.capacity() < 1 + frame.maxSize()) {
+            buffer = ByteBuffer.allocateDirect(1 + frame.maxSize()).order(ByteOrder.LITTLE_ENDIAN);
+            buffers.set(buffer);
+        }
+        buffer.clear();
+        buffer.put(SUCCESS_ENVELOPE);
+        frame.writeTo(buffer);
+        // The engine sends the bytes up to the current position
+        return buffer;
+    }
+
+    @Override
+    public ByteBuffer encodeMethodCall(MethodCall methodCall) {
+        return StandardMethodCodec.INSTANCE.encodeMethodCall(methodCall);
+    }
+
+    @Override
+    public MethodCall decodeMethodCall(ByteBuffer methodCall) {
+        return StandardMethodCodec.INSTANCE.decodeMethodCall(methodCall);
+    }
+
+    @Override
+    public ByteBuffer encodeErrorEnvelope(String errorCode, String errorMessage, Object errorDetails) {
+        return StandardMethodCodec.INSTANCE.encodeErrorEnvelope(errorCode, errorMessage, errorDetails);
+    }
+
+    @Override
+    public ByteBuffer encodeErrorEnvelopeWithStacktrace(String errorCode, String errorMessage, Object errorDetails,
+                                                        String errorStacktrace) {
+        return StandardMethodCodec.INSTANCE.encodeErrorEnvelopeWithStacktrace(errorCode, errorMessage, errorDetails,
+                errorStacktrace);
+    }
+
+    @Override
+    public Object decodeEnvelope(ByteBuffer envelope) {
+        return StandardMethodCodec.INSTANCE.decodeEnvelope(envelope);
+    }
+}
@@ -0,0 +1,201 @@
+package com.wongpiwat.trust_location;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed-capacity ring buffer of the most recent fixes.
+ * Fixes are stored in parallel primitive arrays, so adding one does not allocate. Once the buffer is full, every new
+ * fix overwrites the oldest one.
+ */
+final class FixHistory {
+    static final byte TAG = (byte) 0x81;
+    static final int DEFAULT_CAPACITY = 256;
+    /**
+     * Bounds the frame of the whole history, which the codec encodes into a direct buffer per thread
+     */
+    static final int MAX_CAPACITY = 16384;
+
+    private int[] flags;
+    private long[] seq;
+    private double[] latitude;
+    private double[] longitude;
+    private double[] accuracy;
+    private long[] time;
+    private long[] elapsedRealtimeNanos;
+    private float[] trust;
+    private int[] zone;
+    private double[] smoothedLatitude;
+    private double[] smoothedLongitude;
+    private int head;
+    private int size;
+
+    FixHistory(int capacity) {
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        if (capacity < 1 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("capacity must be between 1 and " + MAX_CAPACITY + ": " + capacity);
+        flags = new int[capacity];
+        seq = new long[capacity];
+        latitude = new double[capacity];
+        longitude = new double[capacity];
+        accuracy = new double[capacity];
+        time = new long[capacity];
+        elapsedRealtimeNanos = new long[capacity];
+        trust = new float[capacity];
+        zone = new int[capacity];
+        smoothedLatitude = new double[capacity];
+        smoothedLongitude = new double[capacity];
+        head = 0;
+        size = 0;
+    }
+
+    synchronized int capacity() {
+        return seq.length;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Changes the capacity, keeping the most recent fixes that still fit.
+     */
+    synchronized void setCapacity(int capacity) {
+        if (capacity == seq.length) return;
+        int[] oldFlags = flags;
+        long[] oldSeq = seq;
+        double[] oldLatitude = latitude;
+        double[] oldLongitude = longitude;
+        double[] oldAccuracy = accuracy;
+        long[] oldTime = time;
+        long[] oldElapsedRealtimeNanos = elapsedRealtimeNanos;
+        float[] oldTrust = trust;
+        int[] oldZone = zone;
+        double[] oldSmoothedLatitude = smoothedLatitude;
+        double[] oldSmoothedLongitude = smoothedLongitude;
+        int oldSize = size;
+        int oldStart = head - size;
+        allocate(capacity);
+        for (int i = Math.max(0, oldSize - capacity); i < oldSize; i++) {
+            int from = (oldStart + i + oldSeq.length) % oldSeq.length;
+            add(oldFlags[from], oldSeq[from], oldLatitude[from], oldLongitude[from], oldAccuracy[from],
+                    oldTime[from], oldElapsedRealtimeNanos[from], oldTrust[from],
+                    oldZone[from], oldSmoothedLatitude[from], oldSmoothedLongitude[from]);
+        }
+    }
+
+    synchronized void add(Fix fix) {
+        add(fix.flags, fix.seq, fix.latitude, fix.longitude, fix.accuracy, fix.time, fix.elapsedRealtimeNanos,
+                fix.trust, fix.zone, fix.smoothedLatitude, fix.smoothedLongitude);
+    }
+
+    synchronized void add(int flags, long seq, double latitude, double longitude, double accuracy, long time,
+                          long elapsedRealtimeNanos, float trust, int zone, double smoothedLatitude,
+                          double smoothedLongitude) {
+        this.flags[head] = flags;
+        this.seq[head] = seq;
+        this.latitude[head] = latitude;
+        this.longitude[head] = longitude;
+        this.accuracy[head] = accuracy;
+        this.time[head] = time;
+        this.elapsedRealtimeNanos[head] = elapsedRealtimeNanos;
+        this.trust[head] = trust;
+        this.zone[head] = zone;
+        this.smoothedLatitude[head] = smoothedLatitude;
+        this.smoothedLongitude[head] = smoothedLongitude;
+        head = (head + 1) % this.seq.length;
+        if (size < this.seq.length) size++;
+    }
+
+    synchronized void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Returns the number of stored fixes with a sequence number greater than the given one.
+     */
+    synchronized int countSince(long sinceSeq) {
+        return countNewerThan(sinceSeq);
+    }
+
+    /**
+     * Returns the number of stored fixes with a sequence number greater than {@code sinceSeq} and up to
+     * {@code untilSeq}.
+     */
+    synchronized int countBetween(long sinceSeq, long untilSeq) {
+        return countNewerThan(sinceSeq) - countNewerThan(Math.max(sinceSeq, untilSeq));
+    }
+
+    private int countNewerThan(long sinceSeq) {
+        int count = 0;
+        // Sequence numbers increase, so walk back from the newest fix
+        for (int i = 1; i <= size; i++) {
+            if (seq[(head - i + seq.length) % seq.length] <= sinceSeq) break;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the newest stored fix that is not newer than the given sequence number, or {@code null} if none.
+     */
+    synchronized Fix newest(long untilSeq) {
+        for (int i = 1; i <= size; i++) {
+            int index = (head - i + seq.length) % seq.length;
+            if (seq[index] > untilSeq) continue;
+            return new Fix(seq[index], flags[index], latitude[index], longitude[index], accuracy[index], time[index],
+                    elapsedRealtimeNanos[index], trust[index], zone[index], smoothedLatitude[index],
+                    smoothedLongitude[index]);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a frame with the fixes that are newer than the given sequence number, oldest first.
+     * The fixes are read when the frame is written, so the frame reflects the history at that time.
+     */
+    BinaryFrame since(long sinceSeq) {
+        return between(sinceSeq, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns a frame with the fixes that are newer than {@code sinceSeq} and not newer than {@code untilSeq}, oldest
+     * first. Unlike {@link #since(long)}, fixes added after the given range never show up in the frame.
+     */
+    BinaryFrame between(final long sinceSeq, final long untilSeq) {
+        final int maxCount = capacity();
+        return new BinaryFrame() {
+            @Override
+            public int maxSize() {
+                return 1 + 4 + maxCount * Fix.RECORD_SIZE;
+            }
+
+            @Override
+            public void writeTo(ByteBuffer buffer) {
+                synchronized (FixHistory.this) {
+                    int skip = countNewerThan(Math.max(sinceSeq, untilSeq));
+                    int count = Math.min(countNewerThan(sinceSeq) - skip, maxCount);
+                    buffer.put(TAG);
+                    buffer.putInt(count);
+                    for (int i = count + skip; i > skip; i--) {
+                        int index = (head - i + seq.length) % seq.length;
+                        buffer.putInt(flags[index]);
+                        buffer.putLong(seq[index]);
+                        buffer.putDouble(latitude[index]);
+                        buffer.putDouble(longitude[index]);
+                        buffer.putDouble(accuracy[index]);
+                        buffer.putLong(time[index]);
+                        buffer.putLong(elapsedRealtimeNanos[index]);
+                        buffer.putFloat(trust[index]);
+                        buffer.putInt(zone[index]);
+                        buffer.putDouble(smoothedLatitude[index]);
+                        buffer.putDouble(smoothedLongitude[index]);
+                    }
+                }
+            }
+        };
+    }
+}
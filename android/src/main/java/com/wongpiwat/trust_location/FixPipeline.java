@@ -0,0 +1,114 @@
+package com.wongpiwat.trust_location;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The platform independent part of fix handling: classifies fixes against the trusted zones, publishes them as
+ * immutable snapshots and keeps them in the history. Publishing is lock-free and may happen on any thread.
+ * Fixes reach the pipeline once they passed the {@link FixChecker}.
+ */
+final class FixPipeline {
+    private final AtomicReference<Fix> latest = new AtomicReference<>(Fix.NONE);
+    private final FixHistory history;
+    private volatile ZoneIndex zones = ZoneIndex.EMPTY;
+    private volatile FixFilter filter;
+
+    FixPipeline(int historyCapacity) {
+        history = new FixHistory(historyCapacity);
+    }
+
+    /**
+     * Returns the latest snapshot. Reading it takes no lock and its sequence number tells whether it changed since
+     * the last read.
+     */
+    Fix getLatest() {
+        return latest.get();
+    }
+
+    FixHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Replaces the trusted zones that every following fix is classified against.
+     */
+    void setZones(ZoneIndex zones) {
+        this.zones = zones;
+    }
+
+    /**
+     * Sets the filter that accepted fixes must pass before they are published, or removes it with {@code null}.
+     */
+    void setFilter(FixFilter filter) {
+        this.filter = filter;
+    }
+
+    FixFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Publishes an accepted fix as the latest snapshot and adds it to the history, unless the filter drops it.
+     * The smoothed coordinates are {@link Double#NaN} if smoothing is off.
+     *
+     * @return the published snapshot, or {@code null} if the fix was dropped
+     */
+    Fix publish(double latitude, double longitude, double accuracy, long time, long elapsedRealtimeNanos,
+                float trust, double smoothedLatitude, double smoothedLongitude) {
+        FixFilter filter = this.filter;
+        if (filter != null && !filter.accept(latitude, longitude, accuracy)) return null;
+        int zone = zones.classify(latitude, longitude);
+        Fix fix;
+        Fix next;
+        do {
+            fix = latest.get();
+            next = new Fix(fix.seq + 1, Fix.FLAG_HAS_FIX, latitude, longitude, accuracy, time, elapsedRealtimeNanos,
+                    trust, zone, smoothedLatitude, smoothedLongitude);
+        } while (!latest.compareAndSet(fix, next));
+        history.add(next);
+        return next;
+    }
+
+    /**
+     * Returns a snapshot of a fix that is not published, such as one the filter dropped, classified against the zones
+     * and numbered like the latest snapshot.
+     */
+    Fix snapshot(int flags, double latitude, double longitude, double accuracy, long time, long elapsedRealtimeNanos,
+                 float trust, double smoothedLatitude, double smoothedLongitude) {
+        return new Fix(latest.get().seq, flags, latitude, longitude, accuracy, time, elapsedRealtimeNanos, trust,
+                zones.classify(latitude, longitude), smoothedLatitude, smoothedLongitude);
+    }
+
+    /**
+     * Publishes a fix from an earlier run with the given flags, unless a fix has been published since.
+     *
+     * @return {@code true} if the fix was published
+     */
+    boolean publishIfEmpty(Fix restored, int flags) {
+        Fix fix;
+        Fix next;
+        do {
+            fix = latest.get();
+            if (fix.hasFix()) return false;
+            next = restored.withFlags(fix.seq + 1, flags);
+        } while (!latest.compareAndSet(fix, next));
+        return true;
+    }
+
+    /**
+     * Publishes a copy of the latest snapshot with the given flags set and cleared, unless they are unchanged.
+     *
+     * @return the latest snapshot after the update
+     */
+    Fix updateFlags(int set, int clear) {
+        Fix fix;
+        Fix next;
+        do {
+            fix = latest.get();
+            int flags = (fix.flags | set) & ~clear;
+            if (flags == fix.flags) return fix;
+            next = fix.withFlags(fix.seq + 1, flags);
+        } while (!latest.compareAndSet(fix, next));
+        return next;
+    }
+}
@@ -0,0 +1,29 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * A reusable, mutable holder of the primitive values of a single fix, used to pass fixes through the per-fix
+ * stages without allocating.
+ */
+final class FixSample {
+    double latitude;
+    double longitude;
+    float accuracy;
+    boolean hasAccuracy;
+    double altitude;
+    boolean hasAltitude;
+    float speed;
+    boolean hasSpeed;
+    /**
+     * UTC time of the fix in milliseconds since epoch
+     */
+    long time;
+    /**
+     * Time of the fix in nanoseconds since boot
+     */
+    long elapsedRealtimeNanos;
+    /**
+     * Time the fix was received in nanoseconds since boot, 0 if unknown
+     */
+    long receivedElapsedRealtimeNanos;
+    boolean fromMockProvider;
+}
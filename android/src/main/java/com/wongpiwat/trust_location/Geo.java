@@ -0,0 +1,32 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * Allocation-free geodesic helpers.
+ */
+final class Geo {
+    static final double EARTH_RADIUS = 6371008.8;
+
+    private Geo() {
+    }
+
+    /**
+     * Returns the great-circle distance (in meters) between two coordinates given in degrees.
+     */
+    static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double phi1 = Math.toRadians(latitude1);
+        double phi2 = Math.toRadians(latitude2);
+        double sinDeltaPhi = Math.sin((phi2 - phi1) / 2);
+        double sinDeltaLambda = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+        double a = sinDeltaPhi * sinDeltaPhi + Math.cos(phi1) * Math.cos(phi2) * sinDeltaLambda * sinDeltaLambda;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Maps a value linearly from [from, to] to [0, 1], clamping values outside the range.
+     */
+    static float ramp(double value, double from, double to) {
+        if (value <= from) return 0;
+        if (value >= to) return 1;
+        return (float) ((value - from) / (to - from));
+    }
+}
@@ -0,0 +1,52 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * Flags fixes that could only be reached from the previous fix at an implausible speed, as happens when a mock app
+ * teleports the device. The accuracy radii of both fixes are granted as slack before computing the speed.
+ */
+final class ImpossibleSpeedDetector implements MockDetector {
+    /**
+     * Default maximum plausible speed, 90 m/s or about 320 km/h
+     */
+    static final double DEFAULT_MAX_SPEED = 90;
+
+    private final double maxSpeed;
+    private boolean hasPrevious;
+    private double previousLatitude;
+    private double previousLongitude;
+    private float previousAccuracy;
+    private long previousElapsedRealtimeNanos;
+
+    ImpossibleSpeedDetector() {
+        this(DEFAULT_MAX_SPEED);
+    }
+
+    /**
+     * @param maxSpeed the maximum plausible speed (in m/s), the suspicion rises to 1 at twice this speed
+     */
+    ImpossibleSpeedDetector(double maxSpeed) {
+        this.maxSpeed = maxSpeed;
+    }
+
+    @Override
+    public float evaluate(FixSample sample) {
+        float suspicion = 0;
+        if (hasPrevious && sample.elapsedRealtimeNanos > previousElapsedRealtimeNanos) {
+            double seconds = (sample.elapsedRealtimeNanos - previousElapsedRealtimeNanos) / 1e9;
+            double distance = Geo.distance(previousLatitude, previousLongitude, sample.latitude, sample.longitude);
+            double slack = (sample.hasAccuracy ? sample.accuracy : 0) + previousAccuracy;
+            suspicion = Geo.ramp(Math.max(0, distance - slack) / seconds, maxSpeed, 2 * maxSpeed);
+        }
+        hasPrevious = true;
+        previousLatitude = sample.latitude;
+        previousLongitude = sample.longitude;
+        previousAccuracy = sample.hasAccuracy ? sample.accuracy : 0;
+        previousElapsedRealtimeNanos = sample.elapsedRealtimeNanos;
+        return suspicion;
+    }
+
+    @Override
+    public void reset() {
+        hasPrevious = false;
+    }
+}
@@ -0,0 +1,79 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * A streaming Kalman filter that smooths the coordinates of consecutive fixes.
+ * The position is modelled as constant with a random walk of the given process noise, and the accuracy of each fix
+ * serves as its measurement noise, so precise fixes pull the estimate harder than coarse ones. Both axes share one
+ * isotropic variance, which keeps the state at a few fields and makes every update allocation-free.
+ * Not thread-safe, fixes must come from one thread at a time.
+ */
+final class KalmanSmoother {
+    static final double DEFAULT_PROCESS_NOISE = 3;
+    private static final double MIN_ACCURACY = 1;
+
+    private final double processNoise;
+    private double latitude;
+    private double longitude;
+    // In square meters, negative until the first fix
+    private double variance = -1;
+    private long elapsedRealtimeNanos;
+
+    /**
+     * @param processNoise the expected speed (in meters per second) at which the true position wanders
+     */
+    KalmanSmoother(double processNoise) {
+        if (!(processNoise > 0)) throw new IllegalArgumentException("processNoise must be positive: " + processNoise);
+        this.processNoise = processNoise;
+    }
+
+    /**
+     * Folds a fix into the estimate. Read the result with {@link #getLatitude()} and {@link #getLongitude()}.
+     */
+    void update(double latitude, double longitude, double accuracy, long elapsedRealtimeNanos) {
+        double measurementVariance = Math.max(accuracy, MIN_ACCURACY) * Math.max(accuracy, MIN_ACCURACY);
+        if (variance < 0) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.variance = measurementVariance;
+            this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+            return;
+        }
+        double seconds = (elapsedRealtimeNanos - this.elapsedRealtimeNanos) / 1e9;
+        if (seconds > 0) {
+            variance += seconds * processNoise * processNoise;
+            this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+        }
+        double gain = variance / (variance + measurementVariance);
+        this.latitude += gain * (latitude - this.latitude);
+        // Take the short way across the antimeridian
+        double deltaLongitude = longitude - this.longitude;
+        if (deltaLongitude > 180) deltaLongitude -= 360;
+        else if (deltaLongitude < -180) deltaLongitude += 360;
+        this.longitude += gain * deltaLongitude;
+        if (this.longitude > 180) this.longitude -= 360;
+        else if (this.longitude < -180) this.longitude += 360;
+        variance *= 1 - gain;
+    }
+
+    double getLatitude() {
+        return latitude;
+    }
+
+    double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * Returns the estimated accuracy (in meters) of the smoothed position.
+     */
+    double getAccuracy() {
+        return Math.sqrt(variance);
+    }
+
+    /**
+     * Forgets the estimate, so that the next fix starts a new one.
+     */
+    void reset() {
+        variance = -1;
+    }
+}
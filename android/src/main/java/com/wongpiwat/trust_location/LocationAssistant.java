@@ -24,41 +24,63 @@ import android.content.Intent;
 import android.content.IntentSender;
 import android.content.pm.PackageManager;
 import android.location.Location;
+import android.location.LocationListener;
 import android.location.LocationManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 import android.view.View;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.common.api.Status;
+import com.google.android.gms.common.GoogleApiAvailability;
+import com.google.android.gms.common.api.ApiException;
+import com.google.android.gms.common.api.ResolvableApiException;
+import com.google.android.gms.location.CurrentLocationRequest;
+import com.google.android.gms.location.FusedLocationProviderClient;
 import com.google.android.gms.location.LocationAvailability;
-import com.google.android.gms.location.LocationListener;
+import com.google.android.gms.location.LocationCallback;
 import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.location.LocationSettingsRequest;
-import com.google.android.gms.location.LocationSettingsResult;
+import com.google.android.gms.location.LocationSettingsResponse;
 import com.google.android.gms.location.LocationSettingsStatusCodes;
+import com.google.android.gms.location.SettingsClient;
+import com.google.android.gms.tasks.CancellationToken;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.OnTokenCanceledListener;
+import com.google.android.gms.tasks.Task;
 
 /**
  * A helper class that monitors the available location info on behalf of a requesting activity or application.
+ * Locations are received and checked on a background thread owned by the LocationAssistant, so that they never
+ * compete with the UI for the main thread.
  */
-public class LocationAssistant
-        implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener, LocationListener {
+public class LocationAssistant {
 
     /**
      * Delivers relevant events required to obtain (valid) location info.
+     * {@link #onNewLocationAvailable(Location)}, {@link #onNewLocationsAvailable(List)} and
+     * {@link #onMockLocationsDetected} are called on the background thread of the LocationAssistant, all other
+     * methods on the main thread.
      */
     public interface Listener {
         /**
@@ -119,6 +141,16 @@ public class LocationAssistant
          */
         void onNewLocationAvailable(Location location);
 
+        /**
+         * Called instead of {@link #onNewLocationAvailable(Location)} when the provider delivered several new and
+         * valid locations at once, which happens when batched delivery is enabled with {@link #setMaxWaitTime(long)}.
+         * Every location passed the same checks as a single one, the list is ordered from oldest to newest and is only
+         * valid during the call.
+         *
+         * @param locations the new locations
+         */
+        void onNewLocationsAvailable(List<Location> locations);
+
         /**
          * Called when the presence of mock locations was detected and {@link #allowMockLocations} is {@code false}.
          * You can use this callback to scold the user or do whatever. The user can usually disable mock locations by
@@ -140,6 +172,29 @@ public class LocationAssistant
         void onError(ErrorType type, String message);
     }
 
+    /**
+     * Receives the result of {@link #requestCurrentLocation}. Methods are called on the background thread of the
+     * LocationAssistant.
+     */
+    public interface CurrentLocationCallback {
+        /**
+         * Called when the request completed. A location was checked like every other one and, if accepted, passed
+         * to {@link Listener#onNewLocationAvailable(Location)} before. Its results, such as
+         * {@link #getTrustScore(int)}, are available at index 0 during this call.
+         *
+         * @param location the current location, or {@code null} if there was none within the duration
+         * @param accepted whether the location passed the plausibility check
+         */
+        void onCurrentLocation(Location location, boolean accepted);
+
+        /**
+         * Called when the request failed or was cancelled.
+         *
+         * @param message a plain-text message with optional details
+         */
+        void onCurrentLocationError(String message);
+    }
+
     /**
      * Possible values for the desired location accuracy.
      */
@@ -162,6 +217,25 @@ public class LocationAssistant
         PASSIVE
     }
 
+    /**
+     * Possible backends that deliver location updates.
+     */
+    public enum Backend {
+        /**
+         * Both backends are started and the one that delivers the first location is kept, the platform backend alone
+         * without Google Play services
+         */
+        AUTO,
+        /**
+         * The fused location provider of Google Play services
+         */
+        FUSED,
+        /**
+         * The GPS and network providers of the platform LocationManager
+         */
+        PLATFORM
+    }
+
     public enum ErrorType {
         /**
          * An error with the user's location settings
@@ -180,9 +254,10 @@ public class LocationAssistant
     private final Context context;
     private AppCompatActivity activity;
     private Listener listener;
-    private final int priority;
-    private final long updateInterval;
+    private int priority;
+    private long updateInterval;
     private final boolean allowMockLocations;
+    private long maxWaitTime;
     private boolean verbose;
     private boolean quiet;
 
@@ -192,16 +267,37 @@ public class LocationAssistant
     private boolean locationStatusOk;
     private boolean changeSettings;
     private boolean updatesRequested;
-    private Location bestLocation;
-    private GoogleApiClient googleApiClient;
+    private boolean started;
+    private volatile Location bestLocation;
+    private final FusedLocationProviderClient fusedLocationClient;
+    private final SettingsClient settingsClient;
     private LocationRequest locationRequest;
-    private Status locationStatus;
-    private boolean mockLocationsEnabled;
+    private ResolvableApiException locationStatus;
+    private LocationSource locationSource;
+    private Backend backend = Backend.AUTO;
+    private volatile Backend activeBackend = Backend.AUTO;
+    private final PlatformLocationProvider platformProvider;
+    private boolean platformUpdatesRequested;
     private int numTimesPermissionDeclined;
 
-    // Mock location rejection
-    private Location lastMockLocation;
-    private int numGoodReadings;
+    // Location callbacks are delivered and processed on this thread
+    private final HandlerThread callbackThread;
+    private final Handler callbackHandler;
+    // Receive time of the location source fix being checked, 0 for provider locations. Only used on callbackThread.
+    private long sourceReceivedElapsedRealtimeNanos;
+    private final Executor callbackExecutor;
+
+    // Mock location rejection and smoothing
+    private final FixSample sample = new FixSample();
+    private final Metrics metrics = new Metrics();
+    private final FixChecker checker = new FixChecker(metrics);
+    private long requestStartNanos;
+    private boolean locationUnavailable;
+
+    // Delivery, trust scores are kept in the order of the locations
+    private final List<Location> acceptedLocations = new ArrayList<>();
+    private float[] trustScores = new float[1];
+    private double[] smoothedCoordinates = new double[2];
 
     /**
      * Constructs a LocationAssistant instance that will listen for valid location updates.
@@ -218,31 +314,51 @@ public class LocationAssistant
         if (context instanceof AppCompatActivity)
             this.activity = (AppCompatActivity) context;
         this.listener = listener;
+        this.priority = toPriority(accuracy);
+        this.updateInterval = updateInterval;
+        this.allowMockLocations = allowMockLocations;
+
+        fusedLocationClient = LocationServices.getFusedLocationProviderClient(context);
+        settingsClient = LocationServices.getSettingsClient(context);
+        platformProvider = new PlatformLocationProvider(context, platformListener);
+        callbackThread = new HandlerThread(getClass().getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND);
+        callbackThread.start();
+        callbackHandler = new Handler(callbackThread.getLooper());
+        callbackExecutor = new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                callbackHandler.post(command);
+            }
+        };
+    }
+
+    private static int toPriority(Accuracy accuracy) {
         switch (accuracy) {
             case HIGH:
-                priority = LocationRequest.PRIORITY_HIGH_ACCURACY;
-                break;
+                return LocationRequest.PRIORITY_HIGH_ACCURACY;
             case MEDIUM:
-                priority = LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY;
-                break;
+                return LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY;
             case LOW:
-                priority = LocationRequest.PRIORITY_LOW_POWER;
-                break;
+                return LocationRequest.PRIORITY_LOW_POWER;
             case PASSIVE:
             default:
-                priority = LocationRequest.PRIORITY_NO_POWER;
+                return LocationRequest.PRIORITY_NO_POWER;
         }
-        this.updateInterval = updateInterval;
-        this.allowMockLocations = allowMockLocations;
+    }
 
-        // Set up the Google API client
-        if (googleApiClient == null) {
-            googleApiClient = new GoogleApiClient.Builder(context)
-                    .addConnectionCallbacks(this)
-                    .addOnConnectionFailedListener(this)
-                    .addApi(LocationServices.API)
-                    .build();
-        }
+    /**
+     * Changes the accuracy and update interval at run time.
+     * Running location updates are re-requested with the new values, the location settings are not checked again.
+     *
+     * @param accuracy       the desired accuracy of the location updates
+     * @param updateInterval the interval (in milliseconds) at which the activity can process updates
+     */
+    public void setRequest(Accuracy accuracy, long updateInterval) {
+        int priority = toPriority(accuracy);
+        if (this.priority == priority && this.updateInterval == updateInterval) return;
+        this.priority = priority;
+        this.updateInterval = updateInterval;
+        restartLocationUpdates();
     }
 
     /**
@@ -264,15 +380,119 @@ public class LocationAssistant
         this.quiet = quiet;
     }
 
+    /**
+     * Enables or disables batched delivery.
+     * With a maximum wait time, the provider may hold fixes back and deliver them in groups, which saves the wakeups
+     * of the app in between. Groups are passed to {@link Listener#onNewLocationsAvailable(List)}.
+     * Running location updates are re-requested with the new setting.
+     *
+     * @param maxWaitTime the maximum time (in milliseconds) a fix may be held back, 0 to deliver every fix right away.
+     *                    Batching only happens if this is at least twice the update interval.
+     */
+    public void setMaxWaitTime(long maxWaitTime) {
+        if (this.maxWaitTime == maxWaitTime) return;
+        this.maxWaitTime = maxWaitTime;
+        restartLocationUpdates();
+    }
+
+    /**
+     * Returns the handler of the background thread on which locations are received and listener callbacks about
+     * locations are made.
+     */
+    public Handler getCallbackHandler() {
+        return callbackHandler;
+    }
+
+    /**
+     * Returns the counters and latency histograms of the location pipeline.
+     */
+    Metrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Starts the LocationAssistant and makes it subscribe to valid location updates.
      * Call this method when your application or activity becomes awake.
      */
     public void start() {
-        checkMockLocations();
-        googleApiClient.connect();
+        if (started) return;
+        started = true;
+        if (locationSource != null) {
+            locationSource.start(sourceSink);
+            return;
+        }
+        activeBackend = selectBackend();
+        checker.restartSmoothing();
+        acquireLocation();
+    }
+
+    /**
+     * Selects the backend that delivers location updates, {@link Backend#AUTO} by default.
+     * Call this method while the LocationAssistant is stopped.
+     *
+     * @param backend the backend to use
+     */
+    public void setBackend(Backend backend) {
+        this.backend = backend;
     }
 
+    /**
+     * Returns the backend that currently delivers location updates.
+     *
+     * @return the backend, or {@link Backend#AUTO} while no backend has delivered a location yet
+     */
+    public Backend getBackend() {
+        return activeBackend;
+    }
+
+    /**
+     * Replaces the fused location provider with another source of locations, e.g. a {@link TraceReplaySource}, or
+     * switches back to the provider with {@code null}. Locations of the source are checked and delivered like those
+     * of the provider, no location permission or settings are needed. Call this method while the LocationAssistant
+     * is stopped.
+     *
+     * @param locationSource the source of locations, or {@code null} for the fused location provider
+     */
+    public void setLocationSource(LocationSource locationSource) {
+        this.locationSource = locationSource;
+    }
+
+    /**
+     * Turns the samples of a location source into locations and processes them on the background thread.
+     */
+    private final LocationSource.Sink sourceSink = new LocationSource.Sink() {
+        @Override
+        public void onFix(FixSample sample) {
+            final Location location = new Location(LocationSource.class.getSimpleName());
+            location.setLatitude(sample.latitude);
+            location.setLongitude(sample.longitude);
+            if (sample.hasAccuracy) location.setAccuracy(sample.accuracy);
+            if (sample.hasAltitude) location.setAltitude(sample.altitude);
+            if (sample.hasSpeed) location.setSpeed(sample.speed);
+            location.setTime(sample.time);
+            location.setElapsedRealtimeNanos(sample.elapsedRealtimeNanos);
+            if (sample.fromMockProvider && Build.VERSION.SDK_INT >= 31) location.setMock(true);
+            final long receivedElapsedRealtimeNanos = sample.receivedElapsedRealtimeNanos;
+            callbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // A sped-up replay runs ahead of the device clock, the clock checks use its own receive time
+                    sourceReceivedElapsedRealtimeNanos = receivedElapsedRealtimeNanos;
+                    try {
+                        onLocationChanged(location);
+                    } finally {
+                        sourceReceivedElapsedRealtimeNanos = 0;
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onEnd() {
+            if (!quiet) Log.i(LocationAssistant.class.getSimpleName(), "Location source has no more locations.");
+        }
+    };
+
     /**
      * Updates the active Activity for which the LocationAssistant manages location updates.
      * When you want the LocationAssistant to start and stop with your overall application, but service different
@@ -293,16 +513,27 @@ public class LocationAssistant
      * Call this method right before your application or activity goes to sleep.
      */
     public void stop() {
-        if (googleApiClient.isConnected()) {
-            LocationServices.FusedLocationApi.removeLocationUpdates(googleApiClient, this);
-            googleApiClient.disconnect();
-        }
+        if (locationSource != null && started) locationSource.stop();
+        if (updatesRequested)
+            fusedLocationClient.removeLocationUpdates(locationCallback);
+        platformProvider.removeLocationUpdates();
+        platformUpdatesRequested = false;
+        started = false;
         permissionGranted = false;
         locationRequested = false;
         locationStatusOk = false;
         updatesRequested = false;
     }
 
+    /**
+     * Stops the LocationAssistant and ends its background thread. The LocationAssistant cannot be started again
+     * afterwards.
+     */
+    public void release() {
+        stop();
+        callbackThread.quitSafely();
+    }
+
     /**
      * Clears the active Activity and its listener.
      * Until you register a new activity and listener, the LocationAssistant will silently produce error messages.
@@ -323,9 +554,232 @@ public class LocationAssistant
         locationRequested = false;
         locationStatusOk = false;
         updatesRequested = false;
+        platformUpdatesRequested = false;
+        activeBackend = selectBackend();
         acquireLocation();
     }
 
+    /**
+     * Returns the chain of detectors that decides whether a location is plausible.
+     * Detectors may be added or removed before the LocationAssistant is started.
+     *
+     * @return the trust scorer
+     */
+    public TrustScorer getTrustScorer() {
+        return checker.getTrustScorer();
+    }
+
+    /**
+     * Sets the trust score a location needs to be considered plausible, the default is 0.5.
+     *
+     * @param trustThreshold the minimum trust score, from 0 to 1
+     */
+    public void setTrustThreshold(float trustThreshold) {
+        checker.setTrustThreshold(trustThreshold);
+    }
+
+    /**
+     * Returns the trust score of a location that is currently being delivered to the listener, from 0 (mocked) to
+     * 1 (trusted). Call this method from within the listener callbacks only.
+     *
+     * @param index the index of the location within {@link Listener#onNewLocationsAvailable(List)}, 0 within
+     *              {@link Listener#onNewLocationAvailable(Location)} and {@link Listener#onMockLocationsDetected}
+     * @return the trust score
+     */
+    public float getTrustScore(int index) {
+        return trustScores[index];
+    }
+
+    /**
+     * Enables or disables smoothing of accepted locations with a {@link KalmanSmoother}. The raw locations are passed
+     * on unchanged, the smoothed coordinates are available next to them.
+     *
+     * @param enabled      whether to smooth accepted locations
+     * @param processNoise the expected speed (in meters per second) at which the true position wanders
+     */
+    public void setSmoothing(boolean enabled, double processNoise) {
+        checker.setSmoothing(enabled, processNoise);
+    }
+
+    /**
+     * Returns the smoothed latitude of a location that is currently being delivered to the listener. Call this
+     * method from within the listener callbacks only.
+     *
+     * @param index the index of the location, see {@link #getTrustScore(int)}
+     * @return the smoothed latitude, or {@link Double#NaN} if smoothing is off
+     */
+    public double getSmoothedLatitude(int index) {
+        return smoothedCoordinates[2 * index];
+    }
+
+    /**
+     * Returns the smoothed longitude of a location that is currently being delivered to the listener. Call this
+     * method from within the listener callbacks only.
+     *
+     * @param index the index of the location, see {@link #getTrustScore(int)}
+     * @return the smoothed longitude, or {@link Double#NaN} if smoothing is off
+     */
+    public double getSmoothedLongitude(int index) {
+        return smoothedCoordinates[2 * index + 1];
+    }
+
+    /**
+     * Requests a single current location, independently of running location updates.
+     * The provider may answer with a location it already has if it is not older than the given age, otherwise it
+     * computes a fresh one. Without Google Play services, or if the platform backend is selected, the location comes
+     * from a single update of the platform providers.
+     *
+     * @param accuracy the desired accuracy of the location
+     * @param duration the maximum time (in milliseconds) the provider may spend on the request
+     * @param maxAge   the maximum age (in milliseconds) of a location the provider already has, 0 for a fresh one
+     * @param token    a token to cancel the request
+     * @param callback the callback that receives the result
+     */
+    public void requestCurrentLocation(Accuracy accuracy, long duration, long maxAge, CancellationToken token,
+                                       final CurrentLocationCallback callback) {
+        if (!permissionGranted) checkLocationPermission();
+        if (!permissionGranted) {
+            callback.onCurrentLocationError("Location permission is not granted.");
+            return;
+        }
+        if (activeBackend == Backend.PLATFORM || selectBackend() == Backend.PLATFORM) {
+            requestPlatformCurrentLocation(toPriority(accuracy), duration, maxAge, token, callback);
+            return;
+        }
+        CurrentLocationRequest request = new CurrentLocationRequest.Builder()
+                .setPriority(toPriority(accuracy))
+                .setDurationMillis(duration)
+                .setMaxUpdateAgeMillis(maxAge)
+                .build();
+        try {
+            fusedLocationClient.getCurrentLocation(request, token).addOnCompleteListener(callbackExecutor,
+                    new OnCompleteListener<Location>() {
+                        @Override
+                        public void onComplete(@NonNull Task<Location> task) {
+                            if (!task.isSuccessful()) {
+                                Exception e = task.getException();
+                                callback.onCurrentLocationError("Could not retrieve current location:\n" +
+                                        (e != null ? e.getMessage() : "cancelled"));
+                                return;
+                            }
+                            Location location = task.getResult();
+                            if (location == null) {
+                                callback.onCurrentLocation(null, false);
+                                return;
+                            }
+                            onLocationChanged(location);
+                            callback.onCurrentLocation(location, bestLocation == location);
+                        }
+                    });
+        } catch (SecurityException e) {
+            if (!quiet)
+                Log.e(getClass().getSimpleName(), "Error while requesting current location:\n " + e.toString());
+            callback.onCurrentLocationError("Could not request current location:\n" + e.getMessage());
+        }
+    }
+
+    private void requestPlatformCurrentLocation(final int priority, final long duration, final long maxAge,
+                                                CancellationToken token, CurrentLocationCallback callback) {
+        final PlatformCurrentLocation request = new PlatformCurrentLocation(callback);
+        // Registering on the callback thread orders it before the first location, the deadline and a cancellation
+        callbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                request.start(priority, duration, maxAge);
+            }
+        });
+        token.onCanceledRequested(new OnTokenCanceledListener() {
+            @Override
+            public void onCanceled() {
+                callbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        request.cancel();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * A single current location request to the platform providers, which ends with the first location, when its
+     * duration has passed or when it is cancelled. Only used on the background thread.
+     */
+    private final class PlatformCurrentLocation implements LocationListener, Runnable {
+        private final CurrentLocationCallback callback;
+        private boolean requested;
+        private boolean finished;
+
+        PlatformCurrentLocation(CurrentLocationCallback callback) {
+            this.callback = callback;
+        }
+
+        void start(int priority, long duration, long maxAge) {
+            if (finished) return;
+            try {
+                Location last = platformProvider.getLastLocation(priority);
+                if (last != null && (SystemClock.elapsedRealtimeNanos() - last.getElapsedRealtimeNanos()) / 1000000
+                        <= maxAge) {
+                    onLocationChanged(last);
+                    return;
+                }
+                requested = platformProvider.requestSingleUpdate(priority, this, callbackThread.getLooper());
+            } catch (SecurityException e) {
+                finished = true;
+                if (!quiet)
+                    Log.e(getClass().getSimpleName(), "Error while requesting current location:\n " + e.toString());
+                callback.onCurrentLocationError("Could not request current location:\n" + e.getMessage());
+                return;
+            }
+            if (!requested) {
+                finished = true;
+                callback.onCurrentLocationError("No location provider is available.");
+                return;
+            }
+            callbackHandler.postDelayed(this, duration);
+        }
+
+        @Override
+        public void onLocationChanged(@NonNull Location location) {
+            if (!cancel()) return;
+            LocationAssistant.this.onLocationChanged(location);
+            callback.onCurrentLocation(location, bestLocation == location);
+        }
+
+        /**
+         * Called when the duration has passed.
+         */
+        @Override
+        public void run() {
+            if (cancel()) callback.onCurrentLocation(null, false);
+        }
+
+        /**
+         * Ends the request without an answer.
+         *
+         * @return {@code true} if the request was still running
+         */
+        boolean cancel() {
+            if (finished) return false;
+            finished = true;
+            callbackHandler.removeCallbacks(this);
+            if (requested) platformProvider.removeSingleUpdate(this);
+            return true;
+        }
+
+        @Override
+        public void onProviderEnabled(@NonNull String provider) {
+        }
+
+        @Override
+        public void onProviderDisabled(@NonNull String provider) {
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+        }
+    }
+
     /**
      * Returns the best valid location currently available.
      * Usually, this will be the last valid location that was received.
@@ -442,6 +896,7 @@ public class LocationAssistant
     }
 
     private void acquireLocation() {
+        if (!started) return;
         if (!permissionGranted) checkLocationPermission();
         if (!permissionGranted) {
             if (numTimesPermissionDeclined >= 2) return;
@@ -453,6 +908,11 @@ public class LocationAssistant
                         " or register it explicitly with register().");
             return;
         }
+        if (activeBackend != Backend.FUSED && !platformUpdatesRequested) requestPlatformUpdates();
+        if (activeBackend == Backend.PLATFORM) {
+            checkProviders();
+            return;
+        }
         if (!locationRequested) {
             requestLocation();
             return;
@@ -481,18 +941,20 @@ public class LocationAssistant
             return;
         }
 
-        if (!checkLocationAvailability()) {
-            // Something is wrong - probably the providers are disabled.
-            checkProviders();
-        }
+        checkLocationAvailability();
     }
 
     private void checkInitialLocation() {
-        if (!googleApiClient.isConnected() || !permissionGranted || !locationRequested || !locationStatusOk)
+        if (!started || !permissionGranted || !locationRequested || !locationStatusOk)
             return;
         try {
-            Location location = LocationServices.FusedLocationApi.getLastLocation(googleApiClient);
-            onLocationChanged(location);
+            fusedLocationClient.getLastLocation().addOnSuccessListener(callbackExecutor,
+                    new OnSuccessListener<Location>() {
+                        @Override
+                        public void onSuccess(Location location) {
+                            if (location != null) onLocationChanged(location);
+                        }
+                    });
         } catch (SecurityException e) {
             if (!quiet)
                 Log.e(getClass().getSimpleName(), "Error while requesting last location:\n " +
@@ -503,13 +965,6 @@ public class LocationAssistant
         }
     }
 
-    private void checkMockLocations() {
-        // Starting with API level >= 18 we can (partially) rely on .isFromMockProvider()
-        // (http://developer.android.com/reference/android/location/Location.html#isFromMockProvider%28%29)
-        // For API level < 18 we have to check the Settings.Secure flag
-        mockLocationsEnabled = false;
-    }
-
     private void checkLocationPermission() {
         permissionGranted = Build.VERSION.SDK_INT < 23 ||
                 ContextCompat.checkSelfPermission(context,
@@ -517,30 +972,51 @@ public class LocationAssistant
     }
 
     private void requestLocation() {
-        if (!googleApiClient.isConnected() || !permissionGranted) return;
-        locationRequest = LocationRequest.create();
-        locationRequest.setPriority(priority);
-        locationRequest.setInterval(updateInterval);
-        locationRequest.setFastestInterval(updateInterval);
+        if (!started || !permissionGranted) return;
+        locationRequest = buildLocationRequest();
         LocationSettingsRequest.Builder builder = new LocationSettingsRequest.Builder()
                 .addLocationRequest(locationRequest);
         builder.setAlwaysShow(true);
-        LocationServices.SettingsApi.checkLocationSettings(googleApiClient, builder.build())
-                .setResultCallback(onLocationSettingsReceived);
+        settingsClient.checkLocationSettings(builder.build())
+                .addOnCompleteListener(mainExecutor, onLocationSettingsReceived);
+    }
+
+    private LocationRequest buildLocationRequest() {
+        LocationRequest locationRequest = LocationRequest.create();
+        locationRequest.setPriority(priority);
+        locationRequest.setInterval(updateInterval);
+        locationRequest.setFastestInterval(updateInterval);
+        if (maxWaitTime > 0)
+            locationRequest.setMaxWaitTime(maxWaitTime);
+        return locationRequest;
+    }
+
+    private void restartLocationUpdates() {
+        if (platformUpdatesRequested) requestPlatformUpdates();
+        if (!updatesRequested) return;
+        fusedLocationClient.removeLocationUpdates(locationCallback);
+        updatesRequested = false;
+        locationRequest = buildLocationRequest();
+        requestLocationUpdates();
     }
 
-    private boolean checkLocationAvailability() {
-        if (!googleApiClient.isConnected() || !permissionGranted) return false;
+    private void checkLocationAvailability() {
+        if (!started || !permissionGranted) return;
         try {
-            LocationAvailability la = LocationServices.FusedLocationApi.getLocationAvailability(googleApiClient);
-            return (la != null && la.isLocationAvailable());
+            fusedLocationClient.getLocationAvailability().addOnSuccessListener(mainExecutor,
+                    new OnSuccessListener<LocationAvailability>() {
+                        @Override
+                        public void onSuccess(LocationAvailability la) {
+                            // Something is wrong - probably the providers are disabled.
+                            if (la == null || !la.isLocationAvailable()) checkProviders();
+                        }
+                    });
         } catch (SecurityException e) {
             if (!quiet)
                 Log.e(getClass().getSimpleName(), "Error while checking location availability:\n " + e.toString());
             if (listener != null)
                 listener.onError(ErrorType.RETRIEVAL, "Could not check location availability:\n" +
                         e.getMessage());
-            return false;
         }
     }
 
@@ -559,9 +1035,12 @@ public class LocationAssistant
     }
 
     private void requestLocationUpdates() {
-        if (!googleApiClient.isConnected() || !permissionGranted || !locationRequested) return;
+        if (!started || !permissionGranted || !locationRequested) return;
         try {
-            LocationServices.FusedLocationApi.requestLocationUpdates(googleApiClient, locationRequest, this);
+            requestStartNanos = System.nanoTime();
+            fusedLocationClient.requestLocationUpdates(locationRequest, locationCallback, callbackThread.getLooper())
+                    .addOnSuccessListener(mainExecutor, onLocationUpdatesRequested)
+                    .addOnFailureListener(mainExecutor, onLocationUpdatesFailed);
             updatesRequested = true;
         } catch (SecurityException e) {
             if (!quiet)
@@ -573,6 +1052,65 @@ public class LocationAssistant
         }
     }
 
+    private void requestPlatformUpdates() {
+        if (!started || !permissionGranted) return;
+        try {
+            platformProvider.requestLocationUpdates(priority, updateInterval, callbackThread.getLooper());
+            metrics.increment(Metrics.PLATFORM_REQUESTS);
+            if (!platformUpdatesRequested && activeBackend == Backend.PLATFORM) {
+                final Location location = platformProvider.getLastLocation(priority);
+                if (location != null) callbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onLocationChanged(location);
+                    }
+                });
+            }
+            platformUpdatesRequested = true;
+        } catch (SecurityException e) {
+            if (!quiet)
+                Log.e(getClass().getSimpleName(), "Error while requesting platform location updates:\n " +
+                        e.toString());
+            if (listener != null)
+                listener.onError(ErrorType.RETRIEVAL, "Could not request location updates:\n" +
+                        e.getMessage());
+        }
+    }
+
+    private Backend selectBackend() {
+        if (backend != Backend.AUTO) return backend;
+        boolean playServices = GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(context)
+                == ConnectionResult.SUCCESS;
+        return playServices ? Backend.AUTO : Backend.PLATFORM;
+    }
+
+    /**
+     * Decides the race between both backends in {@link Backend#AUTO} mode. The first backend to deliver a location is
+     * kept and the other one is stopped. Only called on the background thread.
+     *
+     * @return {@code true} if locations of the backend may be processed
+     */
+    private boolean claimBackend(final Backend winner) {
+        if (activeBackend == winner) return true;
+        if (activeBackend != Backend.AUTO) return false;
+        activeBackend = winner;
+        if (verbose) Log.i(getClass().getSimpleName(), winner + " backend delivered the first location.");
+        mainExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (activeBackend != winner) return;
+                if (winner == Backend.PLATFORM) {
+                    if (updatesRequested) fusedLocationClient.removeLocationUpdates(locationCallback);
+                    updatesRequested = false;
+                } else {
+                    platformProvider.removeLocationUpdates();
+                    platformUpdatesRequested = false;
+                }
+            }
+        });
+        return true;
+    }
+
     private final DialogInterface.OnClickListener onGoToLocationSettingsFromDialog = new DialogInterface.OnClickListener() {
         @Override
         public void onClick(DialogInterface dialog, int which) {
@@ -657,83 +1195,220 @@ public class LocationAssistant
         }
     };
 
+    /**
+     * Checks the location with the same {@link FixChecker} that locations of every source go through.
+     */
     private boolean isLocationPlausible(Location location) {
-        if (location == null) return false;
-
-        boolean isMock = mockLocationsEnabled || (Build.VERSION.SDK_INT >= 18 && location.isFromMockProvider());
-        if (isMock) {
-            lastMockLocation = location;
-            numGoodReadings = 0;
-        } else
-            numGoodReadings = Math.min(numGoodReadings + 1, 1000000); // Prevent overflow
-
-        // We only clear that incident record after a significant show of good behavior
-        if (numGoodReadings >= 20) lastMockLocation = null;
+        sample.latitude = location.getLatitude();
+        sample.longitude = location.getLongitude();
+        sample.hasAccuracy = location.hasAccuracy();
+        sample.accuracy = location.getAccuracy();
+        sample.hasAltitude = location.hasAltitude();
+        sample.altitude = location.getAltitude();
+        sample.hasSpeed = location.hasSpeed();
+        sample.speed = location.getSpeed();
+        sample.time = location.getTime();
+        sample.elapsedRealtimeNanos = location.getElapsedRealtimeNanos();
+        sample.receivedElapsedRealtimeNanos = sourceReceivedElapsedRealtimeNanos > 0
+                ? sourceReceivedElapsedRealtimeNanos : SystemClock.elapsedRealtimeNanos();
+        sample.fromMockProvider = Build.VERSION.SDK_INT >= 18 && location.isFromMockProvider();
+        return checker.check(sample);
+    }
 
-        // If there's nothing to compare against, we have to trust it
-        if (lastMockLocation == null) return true;
+    private final Executor mainExecutor = new Executor() {
+        private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
-        // And finally, if it's more than 1km away from the last known mock, we'll trust it
-        double d = location.distanceTo(lastMockLocation);
-        return (d > 1000);
-    }
+        @Override
+        public void execute(@NonNull Runnable command) {
+            mainHandler.post(command);
+        }
+    };
 
-    @Override
-    public void onConnected(@Nullable Bundle bundle) {
-        acquireLocation();
-    }
+    private final OnSuccessListener<Void> onLocationUpdatesRequested = new OnSuccessListener<Void>() {
+        @Override
+        public void onSuccess(Void result) {
+            metrics.connectTime.record(System.nanoTime() - requestStartNanos);
+            metrics.increment(Metrics.CONNECTS);
+        }
+    };
 
-    @Override
-    public void onConnectionSuspended(int i) {
-    }
+    private final OnFailureListener onLocationUpdatesFailed = new OnFailureListener() {
+        @Override
+        public void onFailure(@NonNull Exception e) {
+            metrics.increment(Metrics.CONNECTION_FAILURES);
+            updatesRequested = false;
+            if (!quiet)
+                Log.e(getClass().getSimpleName(), "Error while requesting location updates:\n" + e.toString());
+            if (listener != null)
+                listener.onError(ErrorType.RETRIEVAL, "Could not request location updates:\n" + e.getMessage());
+        }
+    };
 
-    @Override
+    /**
+     * Processes a single new location, as if it had been delivered by the provider.
+     *
+     * @param location the new location
+     */
     public void onLocationChanged(Location location) {
-        if (location == null) return;
-        boolean plausible = isLocationPlausible(location);
-        if (verbose && !quiet)
-            //Log.i(getClass().getSimpleName(), location.toString() + (plausible ? " -> plausible" : " -> not plausible"));
-
-        if (!allowMockLocations && !plausible) {
-            if (listener != null) listener.onMockLocationsDetected(onGoToDevSettingsFromView,
-                    onGoToDevSettingsFromDialog);
+        if (location == null) {
+            metrics.increment(Metrics.FIXES_RECEIVED);
+            metrics.increment(Metrics.FIXES_DROPPED);
+            return;
+        }
+        boolean accepted = acceptLocation(location);
+        keepResults(0);
+        if (!accepted) {
+            reportMockLocation();
             return;
         }
-
         bestLocation = location;
         if (listener != null)
             listener.onNewLocationAvailable(location);
-        else if (!quiet)
-            Log.w(getClass().getSimpleName(), "New location is available, but no listener is registered!\n" +
+        else {
+            metrics.increment(Metrics.FIXES_DROPPED);
+            if (!quiet) Log.w(getClass().getSimpleName(), "New location is available, but no listener is registered!\n" +
                     "Specify a valid listener when constructing " + getClass().getSimpleName() +
                     " or register it explicitly with register().");
+        }
     }
 
-    @Override
-    public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
-        if (!quiet)
-            Log.e(getClass().getSimpleName(), "Error while trying to connect to Google API:\n" +
-                    connectionResult.getErrorMessage());
-        if (listener != null)
-            listener.onError(ErrorType.RETRIEVAL, "Could not connect to Google API:\n" +
-                    connectionResult.getErrorMessage());
+    /**
+     * Processes a group of new locations delivered by the provider in batched mode. Every location is checked on its
+     * own, accepted locations are passed on in order and each rejected one is reported where it occurred.
+     *
+     * @param locations the new locations, oldest first
+     */
+    private void onLocationsChanged(List<Location> locations) {
+        if (locations.size() == 1) {
+            onLocationChanged(locations.get(0));
+            return;
+        }
+        if (trustScores.length < locations.size()) {
+            trustScores = new float[locations.size()];
+            smoothedCoordinates = new double[2 * locations.size()];
+        }
+        for (int i = 0; i < locations.size(); i++) {
+            Location location = locations.get(i);
+            if (location == null) {
+                metrics.increment(Metrics.FIXES_RECEIVED);
+                metrics.increment(Metrics.FIXES_DROPPED);
+                continue;
+            }
+            if (acceptLocation(location)) {
+                keepResults(acceptedLocations.size());
+                acceptedLocations.add(location);
+            } else {
+                float rejectedTrustScore = checker.getTrust();
+                deliverAcceptedLocations();
+                trustScores[0] = rejectedTrustScore;
+                reportMockLocation();
+            }
+        }
+        deliverAcceptedLocations();
+    }
+
+    private void deliverAcceptedLocations() {
+        if (acceptedLocations.isEmpty()) return;
+        bestLocation = acceptedLocations.get(acceptedLocations.size() - 1);
+        if (listener != null) {
+            if (acceptedLocations.size() == 1)
+                listener.onNewLocationAvailable(bestLocation);
+            else
+                listener.onNewLocationsAvailable(acceptedLocations);
+        } else {
+            metrics.add(Metrics.FIXES_DROPPED, acceptedLocations.size());
+            if (!quiet) Log.w(getClass().getSimpleName(), "New locations are available, but no listener is registered!\n" +
+                    "Specify a valid listener when constructing " + getClass().getSimpleName() +
+                    " or register it explicitly with register().");
+        }
+        acceptedLocations.clear();
+    }
+
+    /**
+     * Runs the plausibility check on the location.
+     *
+     * @return {@code true} if the location may be passed on to the listener
+     */
+    private boolean acceptLocation(Location location) {
+        if (isLocationPlausible(location) || allowMockLocations) return true;
+        metrics.increment(Metrics.FIXES_DROPPED);
+        return false;
     }
 
-    private final ResultCallback<LocationSettingsResult> onLocationSettingsReceived = new ResultCallback<LocationSettingsResult>() {
+    /**
+     * Keeps the results of the last checked location for the listener at the given index.
+     */
+    private void keepResults(int index) {
+        trustScores[index] = checker.getTrust();
+        smoothedCoordinates[2 * index] = checker.getSmoothedLatitude();
+        smoothedCoordinates[2 * index + 1] = checker.getSmoothedLongitude();
+    }
+
+    private void reportMockLocation() {
+        if (listener != null) listener.onMockLocationsDetected(onGoToDevSettingsFromView,
+                onGoToDevSettingsFromDialog);
+    }
+
+    private final LocationCallback locationCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(@NonNull LocationResult result) {
+            if (claimBackend(Backend.FUSED)) onLocationsChanged(result.getLocations());
+        }
+
+        @Override
+        public void onLocationAvailability(@NonNull LocationAvailability availability) {
+            if (!availability.isLocationAvailable()) {
+                if (!locationUnavailable) metrics.increment(Metrics.SUSPENSIONS);
+                locationUnavailable = true;
+            } else if (locationUnavailable) {
+                locationUnavailable = false;
+                metrics.increment(Metrics.RECONNECTS);
+            }
+        }
+    };
+
+    // All methods are implemented, they are abstract before API level 29
+    private final LocationListener platformListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(@NonNull Location location) {
+            if (claimBackend(Backend.PLATFORM)) LocationAssistant.this.onLocationChanged(location);
+        }
+
+        @Override
+        public void onProviderEnabled(@NonNull String provider) {
+        }
+
+        @Override
+        public void onProviderDisabled(@NonNull String provider) {
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+        }
+    };
+
+    private final OnCompleteListener<LocationSettingsResponse> onLocationSettingsReceived = new OnCompleteListener<LocationSettingsResponse>() {
         @Override
-        public void onResult(@NonNull LocationSettingsResult result) {
+        public void onComplete(@NonNull Task<LocationSettingsResponse> task) {
             locationRequested = true;
-            locationStatus = result.getStatus();
-            switch (locationStatus.getStatusCode()) {
+            locationStatus = null;
+            Exception e = task.getException();
+            int statusCode = e == null ? LocationSettingsStatusCodes.SUCCESS
+                    : e instanceof ApiException ? ((ApiException) e).getStatusCode()
+                    : LocationSettingsStatusCodes.SETTINGS_CHANGE_UNAVAILABLE;
+            switch (statusCode) {
                 case LocationSettingsStatusCodes.SUCCESS:
                     locationStatusOk = true;
                     checkInitialLocation();
                     break;
                 case LocationSettingsStatusCodes.RESOLUTION_REQUIRED:
                     locationStatusOk = false;
-                    changeSettings = true;
+                    if (e instanceof ResolvableApiException) {
+                        locationStatus = (ResolvableApiException) e;
+                        changeSettings = true;
+                    }
                     break;
-                case LocationSettingsStatusCodes.SETTINGS_CHANGE_UNAVAILABLE:
+                default:
                     locationStatusOk = false;
                     break;
             }
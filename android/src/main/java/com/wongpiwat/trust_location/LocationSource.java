@@ -0,0 +1,49 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * A source of raw fixes. The fused location provider is the source used in production, other sources such as
+ * {@link TraceReplaySource} feed recorded fixes through the same checks.
+ */
+interface LocationSource {
+    /**
+     * Receives the fixes of a source.
+     */
+    interface Sink {
+        /**
+         * Called for every fix, on a thread of the source. The sample is reused and only valid during the call.
+         */
+        void onFix(FixSample sample);
+
+        /**
+         * Called once the source has no more fixes, unless it was stopped before.
+         */
+        void onEnd();
+    }
+
+    /**
+     * The clock that provides elapsed realtime, e.g. {@code SystemClock.elapsedRealtimeNanos()} on Android.
+     */
+    interface Clock {
+        long elapsedRealtimeNanos();
+    }
+
+    /**
+     * A clock based on {@link System#nanoTime()}, for use outside of Android.
+     */
+    Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long elapsedRealtimeNanos() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * Starts delivering fixes to the sink.
+     */
+    void start(Sink sink);
+
+    /**
+     * Stops delivering fixes. No fix is delivered after this method returns.
+     */
+    void stop();
+}
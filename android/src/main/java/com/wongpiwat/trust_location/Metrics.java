@@ -0,0 +1,106 @@
+package com.wongpiwat.trust_location;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the location pipeline.
+ * Recording is lock-free and does not allocate, so it may be done on the hot path from any thread.
+ */
+final class Metrics {
+    /**
+     * Locations delivered by the provider
+     */
+    static final int FIXES_RECEIVED = 0;
+    /**
+     * Locations that were not passed on to the listener
+     */
+    static final int FIXES_DROPPED = 1;
+    /**
+     * Locations whose trust score was below the threshold
+     */
+    static final int FIXES_FLAGGED = 2;
+    /**
+     * Location update requests accepted by the fused location provider
+     */
+    static final int CONNECTS = 3;
+    /**
+     * Times the location became available again after it was lost
+     */
+    static final int RECONNECTS = 4;
+    /**
+     * Times the location became unavailable, e.g. because the providers were switched off
+     */
+    static final int SUSPENSIONS = 5;
+    /**
+     * Location update requests rejected by the fused location provider
+     */
+    static final int CONNECTION_FAILURES = 6;
+    /**
+     * Fixes dropped by the filter because they were identical to the last one
+     */
+    static final int FILTERED_DUPLICATES = 7;
+    /**
+     * Fixes dropped by the filter because they were too close to the last one
+     */
+    static final int FILTERED_DISPLACEMENT = 8;
+    /**
+     * Fixes dropped by the filter because their accuracy did not improve enough
+     */
+    static final int FILTERED_ACCURACY = 9;
+    /**
+     * Fixes lost by the trajectory log because its writer fell behind or a write failed
+     */
+    static final int TRACK_DROPPED = 10;
+    /**
+     * Location update requests registered with the LocationManager backend, which are not connects
+     */
+    static final int PLATFORM_REQUESTS = 11;
+
+    private static final String[] COUNTER_NAMES = {"fixesReceived", "fixesDropped", "fixesFlagged", "connects",
+            "reconnects", "suspensions", "connectionFailures", "filteredDuplicates", "filteredDisplacement",
+            "filteredAccuracy", "trackDropped", "platformRequests"};
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_NAMES.length);
+    /**
+     * Time from the newest fix of every delivery (its elapsed realtime) until it is handed to the channel
+     */
+    final LatencyHistogram fixLatency = new LatencyHistogram();
+    /**
+     * Time spent in the method call handler
+     */
+    final LatencyHistogram methodCallTime = new LatencyHistogram();
+    /**
+     * Time from a location update request until the fused location provider accepted it
+     */
+    final LatencyHistogram connectTime = new LatencyHistogram();
+
+    void increment(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    void add(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+
+    long get(int counter) {
+        return counters.get(counter);
+    }
+
+    /**
+     * Returns all counters by name and the histograms as nested maps.
+     *
+     * @param reset whether to zero all counters and histograms. Every value is taken and zeroed in one atomic swap, so
+     *              whatever is recorded meanwhile shows up in this snapshot or the next one and is never lost
+     */
+    Map<String, Object> snapshot(boolean reset) {
+        Map<String, Object> snapshot = new HashMap<>();
+        for (int i = 0; i < COUNTER_NAMES.length; i++)
+            snapshot.put(COUNTER_NAMES[i], reset ? counters.getAndSet(i, 0) : counters.get(i));
+        snapshot.put("fixLatency", fixLatency.snapshot(reset));
+        snapshot.put("methodCallTime", methodCallTime.snapshot(reset));
+        snapshot.put("connectTime", connectTime.snapshot(reset));
+        return snapshot;
+    }
+}
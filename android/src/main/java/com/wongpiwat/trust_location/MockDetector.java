@@ -0,0 +1,21 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * A single stage of the mock location detection run by {@link TrustScorer}.
+ * Detectors see every fix in order, keep only constant-size primitive state and must not allocate while
+ * evaluating a fix.
+ */
+interface MockDetector {
+    /**
+     * Evaluates the next fix and updates the detector state.
+     *
+     * @param sample the fix, only valid during the call
+     * @return how suspicious the fix is, from 0 (nothing suspicious) to 1 (certainly mocked)
+     */
+    float evaluate(FixSample sample);
+
+    /**
+     * Forgets all previously seen fixes.
+     */
+    void reset();
+}
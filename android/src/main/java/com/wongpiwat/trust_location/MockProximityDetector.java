@@ -0,0 +1,41 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * Flags fixes close to the last fix from a mock provider, which catches mock apps that toggle the provider flag.
+ * The incident is only cleared after a significant show of good behavior, 20 fixes without the flag in a row.
+ */
+final class MockProximityDetector implements MockDetector {
+    private static final int GOOD_READINGS_TO_CLEAR = 20;
+    private static final double MIN_DISTANCE = 1000;
+
+    private boolean hasLastMock;
+    private double lastMockLatitude;
+    private double lastMockLongitude;
+    private int numGoodReadings;
+
+    @Override
+    public float evaluate(FixSample sample) {
+        if (sample.fromMockProvider) {
+            hasLastMock = true;
+            lastMockLatitude = sample.latitude;
+            lastMockLongitude = sample.longitude;
+            numGoodReadings = 0;
+        } else
+            numGoodReadings = Math.min(numGoodReadings + 1, 1000000); // Prevent overflow
+
+        if (numGoodReadings >= GOOD_READINGS_TO_CLEAR) hasLastMock = false;
+
+        // If there's nothing to compare against, we have to trust it
+        if (!hasLastMock) return 0;
+
+        // And finally, if it's more than 1km away from the last known mock, we'll trust it
+        double d = Geo.distance(sample.latitude, sample.longitude, lastMockLatitude, lastMockLongitude);
+        return d > MIN_DISTANCE ? 0 : 1;
+    }
+
+    @Override
+    public void reset() {
+        hasLastMock = false;
+        numGoodReadings = 0;
+    }
+}
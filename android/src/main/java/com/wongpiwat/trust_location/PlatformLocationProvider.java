@@ -0,0 +1,102 @@
+package com.wongpiwat.trust_location;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Looper;
+
+import com.google.android.gms.location.LocationRequest;
+
+import java.util.List;
+
+/**
+ * Requests locations straight from the providers of the platform {@link LocationManager}, for devices without Google
+ * Play services or with a slow fused location provider.
+ * The providers follow the priority of the request: GPS and network for high accuracy, network for balanced and low
+ * power, passive for no power. GPS stands in for a missing network provider.
+ */
+final class PlatformLocationProvider {
+    private final LocationManager locationManager;
+    private final LocationListener listener;
+    private boolean requested;
+
+    PlatformLocationProvider(Context context, LocationListener listener) {
+        this.locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        this.listener = listener;
+    }
+
+    /**
+     * Requests location updates from the providers that fit the priority, replacing any running request.
+     * Locations are delivered to the listener on the given looper.
+     *
+     * @throws SecurityException without location permission
+     */
+    void requestLocationUpdates(int priority, long interval, Looper looper) {
+        removeLocationUpdates();
+        List<String> available = locationManager.getProviders(false);
+        for (String provider : providers(priority, available)) {
+            locationManager.requestLocationUpdates(provider, interval, 0, listener, looper);
+            requested = true;
+        }
+    }
+
+    void removeLocationUpdates() {
+        if (!requested) return;
+        locationManager.removeUpdates(listener);
+        requested = false;
+    }
+
+    /**
+     * Requests a single location from every provider that fits the priority, delivered to the given listener on the
+     * given looper. The listener should remove itself with {@link #removeSingleUpdate} once it has its location.
+     *
+     * @return {@code false} if no provider fits the priority
+     * @throws SecurityException without location permission
+     */
+    boolean requestSingleUpdate(int priority, LocationListener listener, Looper looper) {
+        String[] providers = providers(priority, locationManager.getProviders(false));
+        for (String provider : providers)
+            locationManager.requestSingleUpdate(provider, listener, looper);
+        return providers.length > 0;
+    }
+
+    void removeSingleUpdate(LocationListener listener) {
+        locationManager.removeUpdates(listener);
+    }
+
+    /**
+     * Returns the most recent location any of the providers that fit the priority still knows, or {@code null}.
+     *
+     * @throws SecurityException without location permission
+     */
+    Location getLastLocation(int priority) {
+        Location last = null;
+        for (String provider : providers(priority, locationManager.getProviders(false))) {
+            Location location = locationManager.getLastKnownLocation(provider);
+            if (location != null && (last == null ||
+                    location.getElapsedRealtimeNanos() > last.getElapsedRealtimeNanos()))
+                last = location;
+        }
+        return last;
+    }
+
+    private static String[] providers(int priority, List<String> available) {
+        boolean gps = available != null && available.contains(LocationManager.GPS_PROVIDER);
+        boolean network = available != null && available.contains(LocationManager.NETWORK_PROVIDER);
+        switch (priority) {
+            case LocationRequest.PRIORITY_HIGH_ACCURACY:
+                if (gps && network) return new String[]{LocationManager.GPS_PROVIDER, LocationManager.NETWORK_PROVIDER};
+                break;
+            case LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY:
+            case LocationRequest.PRIORITY_LOW_POWER:
+                if (network) return new String[]{LocationManager.NETWORK_PROVIDER};
+                break;
+            default:
+                return new String[]{LocationManager.PASSIVE_PROVIDER};
+        }
+        if (gps) return new String[]{LocationManager.GPS_PROVIDER};
+        if (network) return new String[]{LocationManager.NETWORK_PROVIDER};
+        return new String[0];
+    }
+}
@@ -0,0 +1,15 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * Flags fixes that the platform marks as coming from a mock provider.
+ */
+final class ProviderFlagDetector implements MockDetector {
+    @Override
+    public float evaluate(FixSample sample) {
+        return sample.fromMockProvider ? 1 : 0;
+    }
+
+    @Override
+    public void reset() {
+    }
+}
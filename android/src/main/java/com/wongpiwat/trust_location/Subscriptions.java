@@ -0,0 +1,117 @@
+package com.wongpiwat.trust_location;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The location requirements of all Dart subscribers, each with its own update interval and accuracy. Subscribers are
+ * identified by their owner, the engine they run in, and an id that is unique within the owner.
+ * Location updates are requested once at the tightest requirement, the shortest interval and the highest accuracy
+ * of any subscriber, and every subscriber takes the fixes it needs from that stream.
+ */
+final class Subscriptions {
+    private final Map<Long, Subscription> subscriptions = new HashMap<>();
+    private LocationAssistant.Accuracy accuracy;
+    private long interval;
+
+    private static final class Subscription {
+        final long interval;
+        final LocationAssistant.Accuracy accuracy;
+
+        Subscription(long interval, LocationAssistant.Accuracy accuracy) {
+            this.interval = interval;
+            this.accuracy = accuracy;
+        }
+    }
+
+    /**
+     * Adds a subscriber or replaces its requirement.
+     *
+     * @return {@code true} if the tightest requirement changed
+     */
+    synchronized boolean put(int owner, int id, long interval, LocationAssistant.Accuracy accuracy) {
+        if (interval < 0) throw new IllegalArgumentException("interval must not be negative: " + interval);
+        subscriptions.put(key(owner, id), new Subscription(interval, accuracy));
+        return update();
+    }
+
+    /**
+     * Removes a subscriber.
+     *
+     * @return {@code true} if the tightest requirement changed
+     */
+    synchronized boolean remove(int owner, int id) {
+        return subscriptions.remove(key(owner, id)) != null && update();
+    }
+
+    /**
+     * Removes all subscribers of an owner.
+     *
+     * @return {@code true} if the tightest requirement changed
+     */
+    synchronized boolean removeAll(int owner) {
+        boolean removed = false;
+        for (Iterator<Long> keys = subscriptions.keySet().iterator(); keys.hasNext(); ) {
+            if ((int) (keys.next() >>> 32) != owner) continue;
+            keys.remove();
+            removed = true;
+        }
+        return removed && update();
+    }
+
+    synchronized boolean isEmpty() {
+        return subscriptions.isEmpty();
+    }
+
+    /**
+     * Returns the highest accuracy of any subscriber, or {@code null} without subscribers.
+     */
+    synchronized LocationAssistant.Accuracy getAccuracy() {
+        return accuracy;
+    }
+
+    /**
+     * Returns the shortest update interval (in milliseconds) of any subscriber, 0 without subscribers.
+     */
+    synchronized long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the higher of the given accuracy and that of any subscriber, e.g. to combine the subscribers with the
+     * adaptive scheduler. The given accuracy is returned as is without subscribers.
+     */
+    synchronized LocationAssistant.Accuracy tightenAccuracy(LocationAssistant.Accuracy accuracy) {
+        // Accuracies are declared from the highest to the lowest
+        return this.accuracy != null && this.accuracy.ordinal() < accuracy.ordinal() ? this.accuracy : accuracy;
+    }
+
+    /**
+     * Returns the shorter of the given update interval and that of any subscriber. The given interval is returned as
+     * is without subscribers.
+     */
+    synchronized long tightenInterval(long interval) {
+        return accuracy != null ? Math.min(this.interval, interval) : interval;
+    }
+
+    private static long key(int owner, int id) {
+        return (long) owner << 32 | id & 0xffffffffL;
+    }
+
+    private boolean update() {
+        LocationAssistant.Accuracy accuracy = null;
+        long interval = Long.MAX_VALUE;
+        for (Subscription subscription : subscriptions.values()) {
+            // Accuracies are declared from the highest to the lowest
+            if (accuracy == null || subscription.accuracy.ordinal() < accuracy.ordinal())
+                accuracy = subscription.accuracy;
+            interval = Math.min(interval, subscription.interval);
+        }
+        if (accuracy == null) interval = 0;
+        boolean changed = accuracy != this.accuracy || interval != this.interval;
+        this.accuracy = accuracy;
+        this.interval = interval;
+        return changed;
+    }
+}
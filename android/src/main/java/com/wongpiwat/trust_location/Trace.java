@@ -0,0 +1,360 @@
+package com.wongpiwat.trust_location;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A recorded track, kept in parallel primitive arrays ordered by time.
+ * Traces are parsed from CSV, GPX or NMEA text. Values that a format does not carry are {@link Float#NaN} or
+ * {@link Double#NaN}.
+ * <p>
+ * CSV lines hold {@code time,latitude,longitude[,accuracy[,altitude[,speed[,mock]]]]} with the time in milliseconds
+ * since epoch. Empty lines, lines starting with {@code #} and a header line are skipped.
+ * GPX track, route and way points are read with their {@code time}, {@code ele} and {@code hdop}.
+ * NMEA {@code RMC} and {@code GGA} sentences of any talker are combined per epoch, sentences with a wrong checksum
+ * are skipped.
+ */
+final class Trace {
+    enum Format {
+        CSV,
+        GPX,
+        NMEA;
+
+        /**
+         * Guesses the format of the given text.
+         */
+        static Format detect(String text) {
+            String start = text.trim();
+            if (start.startsWith("<")) return GPX;
+            if (start.startsWith("$") || start.startsWith("!")) return NMEA;
+            return CSV;
+        }
+    }
+
+    /**
+     * Assumed user equivalent range error to turn a horizontal dilution of precision into meters.
+     */
+    private static final float UERE = 5;
+    private static final float KNOTS = 0.514444f;
+
+    private int size;
+    private long[] time = new long[16];
+    private double[] latitude = new double[16];
+    private double[] longitude = new double[16];
+    private float[] accuracy = new float[16];
+    private double[] altitude = new double[16];
+    private float[] speed = new float[16];
+    private boolean[] mock = new boolean[16];
+
+    int size() {
+        return size;
+    }
+
+    long time(int index) {
+        return time[index];
+    }
+
+    double latitude(int index) {
+        return latitude[index];
+    }
+
+    double longitude(int index) {
+        return longitude[index];
+    }
+
+    float accuracy(int index) {
+        return accuracy[index];
+    }
+
+    double altitude(int index) {
+        return altitude[index];
+    }
+
+    float speed(int index) {
+        return speed[index];
+    }
+
+    boolean mock(int index) {
+        return mock[index];
+    }
+
+    /**
+     * Fills the sample with the fix at the given index, except for the elapsed realtime fields.
+     */
+    void fill(int index, FixSample sample) {
+        sample.latitude = latitude[index];
+        sample.longitude = longitude[index];
+        sample.hasAccuracy = !Float.isNaN(accuracy[index]);
+        sample.accuracy = sample.hasAccuracy ? accuracy[index] : 0;
+        sample.hasAltitude = !Double.isNaN(altitude[index]);
+        sample.altitude = sample.hasAltitude ? altitude[index] : 0;
+        sample.hasSpeed = !Float.isNaN(speed[index]);
+        sample.speed = sample.hasSpeed ? speed[index] : 0;
+        sample.time = time[index];
+        sample.fromMockProvider = mock[index];
+    }
+
+    void add(long time, double latitude, double longitude, float accuracy, double altitude, float speed,
+             boolean mock) {
+        if (size > 0 && time < this.time[size - 1])
+            throw new IllegalArgumentException("Trace is not ordered by time at fix " + size);
+        if (size == this.time.length) {
+            int capacity = size * 2;
+            this.time = Arrays.copyOf(this.time, capacity);
+            this.latitude = Arrays.copyOf(this.latitude, capacity);
+            this.longitude = Arrays.copyOf(this.longitude, capacity);
+            this.accuracy = Arrays.copyOf(this.accuracy, capacity);
+            this.altitude = Arrays.copyOf(this.altitude, capacity);
+            this.speed = Arrays.copyOf(this.speed, capacity);
+            this.mock = Arrays.copyOf(this.mock, capacity);
+        }
+        this.time[size] = time;
+        this.latitude[size] = latitude;
+        this.longitude[size] = longitude;
+        this.accuracy[size] = accuracy;
+        this.altitude[size] = altitude;
+        this.speed[size] = speed;
+        this.mock[size] = mock;
+        size++;
+    }
+
+    /**
+     * Parses a trace.
+     *
+     * @throws IllegalArgumentException if the text is not valid in the given format or holds no fix
+     */
+    static Trace parse(String text, Format format) {
+        Trace trace;
+        switch (format) {
+            case GPX:
+                trace = parseGpx(text);
+                break;
+            case NMEA:
+                trace = parseNmea(text);
+                if (trace.size == 0)
+                    throw new IllegalArgumentException("NMEA trace has no valid RMC sentence, which carries the date");
+                break;
+            case CSV:
+            default:
+                trace = parseCsv(text);
+        }
+        if (trace.size == 0) throw new IllegalArgumentException("Trace has no fixes");
+        return trace;
+    }
+
+    private static Trace parseCsv(String text) {
+        Trace trace = new Trace();
+        String[] lines = text.split("\r?\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] fields = line.split("[,;\t]");
+            if (trace.size == 0 && !isNumber(fields[0])) continue;
+            if (fields.length < 3)
+                throw new IllegalArgumentException("Expected time, latitude and longitude in line " + (i + 1));
+            try {
+                trace.add(Long.parseLong(fields[0].trim()), Double.parseDouble(fields[1].trim()),
+                        Double.parseDouble(fields[2].trim()), floatField(fields, 3), doubleField(fields, 4),
+                        floatField(fields, 5), fields.length > 6 && isTrue(fields[6]));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number in line " + (i + 1), e);
+            }
+        }
+        return trace;
+    }
+
+    private static final Pattern GPX_POINT = Pattern.compile(
+            "<(?:\\w+:)?(?:trkpt|rtept|wpt)\\b([^>]*?)(?:/>|>(.*?)</(?:\\w+:)?(?:trkpt|rtept|wpt)>)", Pattern.DOTALL);
+    private static final Pattern GPX_LATITUDE = Pattern.compile("\\blat\\s*=\\s*[\"']([^\"']+)[\"']");
+    private static final Pattern GPX_LONGITUDE = Pattern.compile("\\blon\\s*=\\s*[\"']([^\"']+)[\"']");
+
+    private static Trace parseGpx(String text) {
+        Trace trace = new Trace();
+        Matcher point = GPX_POINT.matcher(text);
+        while (point.find()) {
+            Matcher latitude = GPX_LATITUDE.matcher(point.group(1));
+            Matcher longitude = GPX_LONGITUDE.matcher(point.group(1));
+            if (!latitude.find() || !longitude.find())
+                throw new IllegalArgumentException("Point " + trace.size + " has no latitude or longitude");
+            String body = point.group(2) != null ? point.group(2) : "";
+            String time = element(body, "time");
+            if (time == null) throw new IllegalArgumentException("Point " + trace.size + " has no time");
+            String elevation = element(body, "ele");
+            String hdop = element(body, "hdop");
+            String speed = element(body, "speed");
+            try {
+                trace.add(parseIsoTime(time), Double.parseDouble(latitude.group(1)),
+                        Double.parseDouble(longitude.group(1)),
+                        hdop != null ? UERE * Float.parseFloat(hdop) : Float.NaN,
+                        elevation != null ? Double.parseDouble(elevation) : Double.NaN,
+                        speed != null ? Float.parseFloat(speed) : Float.NaN, false);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number in point " + trace.size, e);
+            }
+        }
+        return trace;
+    }
+
+    private static String element(String body, String name) {
+        Matcher matcher = Pattern.compile("<(?:\\w+:)?" + name + ">\\s*([^<]*?)\\s*</(?:\\w+:)?" + name + ">")
+                .matcher(body);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * Parses an ISO 8601 date and time such as {@code 2020-01-31T10:00:00.5Z} or {@code 2020-01-31T17:00:00+07:00},
+     * a missing offset means UTC.
+     */
+    static long parseIsoTime(String text) {
+        Matcher matcher = Pattern.compile(
+                "(\\d{4})-(\\d{2})-(\\d{2})[T ](\\d{2}):(\\d{2}):(\\d{2})(?:[.,](\\d+))?\\s*(Z|[+-]\\d{2}:?\\d{2})?")
+                .matcher(text.trim());
+        if (!matcher.matches()) throw new IllegalArgumentException("Invalid time: " + text);
+        long millis = epochDay(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)),
+                Integer.parseInt(matcher.group(3))) * 86400000L
+                + Integer.parseInt(matcher.group(4)) * 3600000L
+                + Integer.parseInt(matcher.group(5)) * 60000L
+                + Integer.parseInt(matcher.group(6)) * 1000L;
+        if (matcher.group(7) != null)
+            millis += Math.round(Double.parseDouble("0." + matcher.group(7)) * 1000);
+        String offset = matcher.group(8);
+        if (offset != null && !offset.equals("Z")) {
+            String digits = offset.replace(":", "");
+            int minutes = Integer.parseInt(digits.substring(1, 3)) * 60 + Integer.parseInt(digits.substring(3, 5));
+            millis -= (offset.charAt(0) == '-' ? -minutes : minutes) * 60000L;
+        }
+        return millis;
+    }
+
+    /**
+     * Returns the number of days between 1970-01-01 and the given date of the proleptic Gregorian calendar.
+     */
+    private static long epochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static Trace parseNmea(String text) {
+        Trace trace = new Trace();
+        String[] lines = text.split("\r?\n");
+        // The epoch being collected, identified by its time of day
+        String epochTime = null;
+        long epochDay = -1;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+        float accuracy = Float.NaN;
+        double altitude = Double.NaN;
+        float speed = Float.NaN;
+        boolean valid = false;
+        for (String line : lines) {
+            String sentence = line.trim();
+            if (sentence.length() < 7 || sentence.charAt(0) != '$' || !hasValidChecksum(sentence)) continue;
+            int star = sentence.indexOf('*');
+            String[] fields = (star >= 0 ? sentence.substring(1, star) : sentence.substring(1)).split(",", -1);
+            String type = fields[0].length() >= 5 ? fields[0].substring(fields[0].length() - 3) : "";
+            if (!type.equals("RMC") && !type.equals("GGA")) continue;
+            if (fields.length < 7 || fields[1].isEmpty()) continue;
+            if (!fields[1].equals(epochTime)) {
+                if (valid && epochDay >= 0)
+                    trace.add(epochDay * 86400000L + timeOfDay(epochTime), latitude, longitude, accuracy, altitude,
+                            speed, false);
+                epochTime = fields[1];
+                latitude = Double.NaN;
+                longitude = Double.NaN;
+                accuracy = Float.NaN;
+                altitude = Double.NaN;
+                speed = Float.NaN;
+                valid = false;
+            }
+            try {
+                if (type.equals("RMC")) {
+                    if (fields.length < 10 || !fields[2].equals("A")) continue;
+                    latitude = coordinate(fields[3], fields[4]);
+                    longitude = coordinate(fields[5], fields[6]);
+                    if (!fields[7].isEmpty()) speed = Float.parseFloat(fields[7]) * KNOTS;
+                    String date = fields[9];
+                    if (date.length() == 6) {
+                        int year = Integer.parseInt(date.substring(4, 6));
+                        epochDay = epochDay(year < 80 ? 2000 + year : 1900 + year,
+                                Integer.parseInt(date.substring(2, 4)), Integer.parseInt(date.substring(0, 2)));
+                    }
+                    valid = true;
+                } else {
+                    if (fields.length < 10 || fields[6].isEmpty() || fields[6].equals("0")) continue;
+                    latitude = coordinate(fields[2], fields[3]);
+                    longitude = coordinate(fields[4], fields[5]);
+                    if (!fields[8].isEmpty()) accuracy = UERE * Float.parseFloat(fields[8]);
+                    if (!fields[9].isEmpty()) altitude = Double.parseDouble(fields[9]);
+                    valid = true;
+                }
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid sentence: " + sentence, e);
+            }
+        }
+        if (valid && epochDay >= 0)
+            trace.add(epochDay * 86400000L + timeOfDay(epochTime), latitude, longitude, accuracy, altitude, speed,
+                    false);
+        return trace;
+    }
+
+    private static boolean hasValidChecksum(String sentence) {
+        int star = sentence.indexOf('*');
+        if (star < 0) return true;
+        if (star + 3 > sentence.length()) return false;
+        int checksum = 0;
+        for (int i = 1; i < star; i++)
+            checksum ^= sentence.charAt(i);
+        try {
+            return checksum == Integer.parseInt(sentence.substring(star + 1, star + 3), 16);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Converts a {@code ddmm.mmmm} or {@code dddmm.mmmm} NMEA coordinate with its hemisphere to degrees.
+     */
+    private static double coordinate(String value, String hemisphere) {
+        int dot = value.indexOf('.');
+        int degreeDigits = (dot >= 0 ? dot : value.length()) - 2;
+        double degrees = Integer.parseInt(value.substring(0, degreeDigits))
+                + Double.parseDouble(value.substring(degreeDigits)) / 60;
+        return hemisphere.equals("S") || hemisphere.equals("W") ? -degrees : degrees;
+    }
+
+    private static long timeOfDay(String hhmmss) {
+        return Integer.parseInt(hhmmss.substring(0, 2)) * 3600000L
+                + Integer.parseInt(hhmmss.substring(2, 4)) * 60000L
+                + Math.round(Double.parseDouble(hhmmss.substring(4)) * 1000);
+    }
+
+    private static boolean isNumber(String field) {
+        try {
+            Double.parseDouble(field.trim());
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean isTrue(String field) {
+        String value = field.trim().toLowerCase(Locale.ROOT);
+        return value.equals("1") || value.equals("true");
+    }
+
+    private static float floatField(String[] fields, int index) {
+        return fields.length > index && !fields[index].trim().isEmpty() ? Float.parseFloat(fields[index].trim())
+                : Float.NaN;
+    }
+
+    private static double doubleField(String[] fields, int index) {
+        return fields.length > index && !fields[index].trim().isEmpty() ? Double.parseDouble(fields[index].trim())
+                : Double.NaN;
+    }
+}
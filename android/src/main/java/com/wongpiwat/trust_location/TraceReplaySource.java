@@ -0,0 +1,95 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * Replays a recorded {@link Trace} on its own thread, in real time or faster.
+ * Fixes keep the timing of the trace: the elapsed realtime of every fix is the start time of the replay plus the
+ * offset of the fix within the trace, independent of the speed-up, so the detectors see the same track at any speed.
+ */
+final class TraceReplaySource implements LocationSource {
+    private final Trace trace;
+    private final double speedUp;
+    private final Clock clock;
+    private final FixSample sample = new FixSample();
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @param trace   the trace to replay
+     * @param speedUp how many times faster than real time to replay, 1 for real time and
+     *                {@link Double#POSITIVE_INFINITY} for as fast as possible
+     * @param clock   the clock of the elapsed realtime of the fixes
+     */
+    TraceReplaySource(Trace trace, double speedUp, Clock clock) {
+        if (!(speedUp > 0)) throw new IllegalArgumentException("speedUp must be positive");
+        this.trace = trace;
+        this.speedUp = speedUp;
+        this.clock = clock;
+    }
+
+    @Override
+    public synchronized void start(final Sink sink) {
+        if (thread != null) return;
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                play(sink);
+            }
+        }, "TraceReplay");
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+            this.thread = null;
+            running = false;
+        }
+        if (thread == null || thread == Thread.currentThread()) return;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replays the whole trace on the calling thread.
+     */
+    void replay(Sink sink) {
+        running = true;
+        play(sink);
+    }
+
+    private void play(Sink sink) {
+        if (trace.size() == 0) {
+            sink.onEnd();
+            return;
+        }
+        long startNanos = clock.elapsedRealtimeNanos();
+        long startTime = trace.time(0);
+        for (int i = 0; i < trace.size() && running; i++) {
+            long offsetNanos = (trace.time(i) - startTime) * 1000000;
+            if (speedUp != Double.POSITIVE_INFINITY) {
+                long dueNanos = startNanos + (long) (offsetNanos / speedUp);
+                long waitNanos;
+                while (running && (waitNanos = dueNanos - clock.elapsedRealtimeNanos()) > 0) {
+                    try {
+                        Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) return;
+            }
+            trace.fill(i, sample);
+            sample.elapsedRealtimeNanos = startNanos + offsetNanos;
+            sample.receivedElapsedRealtimeNanos = sample.elapsedRealtimeNanos;
+            sink.onFix(sample);
+        }
+        if (running) sink.onEnd();
+    }
+}
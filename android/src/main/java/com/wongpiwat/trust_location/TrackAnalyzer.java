@@ -0,0 +1,267 @@
+package com.wongpiwat.trust_location;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scores recorded tracks for spoofing patterns that only show across many fixes, which the per-fix detectors cannot
+ * see: teleports, perfectly straight lines, coordinates quantized to a few decimals and runs of movement replayed
+ * from earlier in the trip.
+ * A track segment is split into windows of consecutive fixes. Every window reads its own fixes from the segment,
+ * together with the few fixes before it that its first measurements need, and is scored on a bounded pool of
+ * low-priority worker threads. The last window to finish merges all window scores into a {@link Report}, in order, and
+ * matches the replay fingerprints of the whole trip. The live fix path is never involved.
+ * Only accepted fixes are recorded, so fixes the per-fix detectors rejected as mocked are not part of the score.
+ */
+final class TrackAnalyzer {
+    static final int DEFAULT_WINDOW_SIZE = 512;
+    /**
+     * Number of consecutive steps that make up one replay fingerprint
+     */
+    static final int REPLAY_RUN = 8;
+
+    private static final double STRAIGHT_TOLERANCE = 0.05;
+    private static final double MIN_STEP = 1;
+    private static final double QUANTIZATION = 1e5;
+    private static final double COORDINATE_UNITS = 1e7;
+
+    private final ThreadPoolExecutor pool;
+
+    interface Callback {
+        /**
+         * Called on a worker thread once all windows are scored.
+         */
+        void onReport(Report report);
+
+        /**
+         * Called on a worker thread if the segment could not be read or scored, e.g. because it is corrupt.
+         */
+        void onError(Exception e);
+    }
+
+    /**
+     * @param threads the maximum number of windows scored at the same time
+     */
+    TrackAnalyzer(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be positive: " + threads);
+        pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "trust_location-analysis-" + count.incrementAndGet());
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        // Idle workers end, so the pool costs nothing between analyses
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Scores all fixes of a segment in windows of the given size and merges the results. Returns at once.
+     */
+    void analyze(final File directory, final long segment, final int windowSize, final Callback callback) {
+        if (windowSize < REPLAY_RUN)
+            throw new IllegalArgumentException("windowSize must be at least " + REPLAY_RUN + ": " + windowSize);
+        int count = TrajectoryLog.countRecords(directory, segment);
+        final Window[] windows = new Window[Math.max(1, (count + windowSize - 1) / windowSize)];
+        final AtomicInteger remaining = new AtomicInteger(windows.length);
+        for (int i = 0; i < windows.length; i++) {
+            final int index = i;
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Window window = new Window();
+                    try {
+                        int from = index * windowSize;
+                        int context = Math.min(from, REPLAY_RUN);
+                        window.score(TrajectoryLog.readFixes(directory, segment, from - context,
+                                context + windowSize), context, from - context);
+                    } catch (IOException | RuntimeException e) {
+                        // Every window must count down, or the callback would never be called
+                        window.error = e;
+                    }
+                    windows[index] = window;
+                    // The countdown publishes the windows of the other workers to the last one
+                    if (remaining.decrementAndGet() == 0) merge(windows, callback);
+                }
+            });
+        }
+    }
+
+    private static void merge(Window[] windows, Callback callback) {
+        Report report = new Report(windows.length);
+        Map<Long, Integer> fingerprints = new HashMap<>();
+        for (int i = 0; i < windows.length; i++) {
+            Window window = windows[i];
+            if (window.error != null) {
+                callback.onError(window.error);
+                return;
+            }
+            report.fixes += window.fixes;
+            report.quantized += window.quantized;
+            report.teleports += window.teleports;
+            report.triples += window.triples;
+            report.straight += window.straight;
+            report.runs += window.runs;
+            for (int run = 0; run < window.runs; run++) {
+                Integer first = fingerprints.get(window.fingerprints[run]);
+                if (first == null) fingerprints.put(window.fingerprints[run], window.runEnds[run]);
+                // Overlapping runs of the same movement do not count as a replay
+                else if (window.runEnds[run] - first >= REPLAY_RUN) window.replayed++;
+            }
+            report.replayed += window.replayed;
+            report.windowTrust[i] = window.trust();
+        }
+        callback.onReport(report);
+    }
+
+    /**
+     * Counts of the fixes of one window, and of the steps and triples that end within it.
+     */
+    static class Counts {
+        int fixes;
+        int quantized;
+        int teleports;
+        int triples;
+        int straight;
+        int runs;
+        int replayed;
+
+        /**
+         * Combines the suspicion of every pattern into a trust score from 0 (spoofed) to 1 (trusted).
+         */
+        float trust() {
+            float trust = 1 - Geo.ramp(teleports, 0, 3);
+            trust *= 1 - Geo.ramp(ratio(quantized, fixes), 0.1, 0.5);
+            trust *= 1 - Geo.ramp(ratio(straight, triples), 0.2, 0.6);
+            trust *= 1 - Geo.ramp(ratio(replayed, runs), 0.05, 0.3);
+            return trust;
+        }
+
+        static double ratio(int count, int total) {
+            return total == 0 ? 0 : (double) count / total;
+        }
+    }
+
+    private static final class Window extends Counts {
+        Exception error;
+        long[] fingerprints = new long[0];
+        int[] runEnds = new int[0];
+
+        /**
+         * Scores the fixes from the given offset on, the fixes before it only serve as context.
+         *
+         * @param start the index of the first fix within the segment
+         */
+        void score(Fix[] track, int offset, int start) {
+            fingerprints = new long[track.length];
+            runEnds = new int[track.length];
+            for (int i = offset; i < track.length; i++) {
+                Fix fix = track[i];
+                fixes++;
+                if (isQuantized(fix.latitude) && isQuantized(fix.longitude)) quantized++;
+                if (i < 1) continue;
+                Fix previous = track[i - 1];
+                if (isTeleport(previous, fix)) teleports++;
+                if (i < 2) continue;
+                if (isStraight(track[i - 2], previous, fix)) {
+                    straight++;
+                    triples++;
+                } else if (isMoving(track[i - 2], previous) && isMoving(previous, fix)) {
+                    triples++;
+                }
+                if (i < REPLAY_RUN) continue;
+                long fingerprint = fingerprint(track, i);
+                if (fingerprint == 0) continue;
+                fingerprints[runs] = fingerprint;
+                runEnds[runs] = start + i;
+                runs++;
+            }
+        }
+    }
+
+    private static boolean isQuantized(double coordinate) {
+        double scaled = coordinate * QUANTIZATION;
+        return Math.abs(scaled - Math.rint(scaled)) < 1e-6;
+    }
+
+    private static boolean isTeleport(Fix from, Fix to) {
+        if (to.elapsedRealtimeNanos <= from.elapsedRealtimeNanos) return false;
+        double seconds = (to.elapsedRealtimeNanos - from.elapsedRealtimeNanos) / 1e9;
+        double distance = Geo.distance(from.latitude, from.longitude, to.latitude, to.longitude);
+        return Math.max(0, distance - from.accuracy - to.accuracy) / seconds > ImpossibleSpeedDetector.DEFAULT_MAX_SPEED;
+    }
+
+    private static boolean isMoving(Fix from, Fix to) {
+        return Geo.distance(from.latitude, from.longitude, to.latitude, to.longitude) >= MIN_STEP;
+    }
+
+    /**
+     * Checks whether the middle fix lies on the line between its neighbours within a few centimeters, as no real
+     * receiver does while moving.
+     */
+    private static boolean isStraight(Fix a, Fix b, Fix c) {
+        if (!isMoving(a, b) || !isMoving(b, c)) return false;
+        // Local projection in meters around the first fix
+        double metersPerDegree = Math.toRadians(Geo.EARTH_RADIUS);
+        double scale = Math.cos(Math.toRadians(a.latitude));
+        double bx = (b.longitude - a.longitude) * scale * metersPerDegree;
+        double by = (b.latitude - a.latitude) * metersPerDegree;
+        double cx = (c.longitude - a.longitude) * scale * metersPerDegree;
+        double cy = (c.latitude - a.latitude) * metersPerDegree;
+        double length = Math.hypot(cx, cy);
+        return length > 0 && Math.abs(bx * cy - by * cx) / length < STRAIGHT_TOLERANCE;
+    }
+
+    /**
+     * Hashes the steps of the run ending at the given fix, in units of 1e-7 degrees, so that a replay matches even if
+     * it was moved elsewhere. Returns 0 if the run has a step without movement, standing still is no replay.
+     */
+    private static long fingerprint(Fix[] fixes, int end) {
+        long hash = 0x9e3779b97f4a7c15L;
+        for (int i = end - REPLAY_RUN + 1; i <= end; i++) {
+            long latitude = Math.round((fixes[i].latitude - fixes[i - 1].latitude) * COORDINATE_UNITS);
+            long longitude = Math.round((fixes[i].longitude - fixes[i - 1].longitude) * COORDINATE_UNITS);
+            if (latitude == 0 && longitude == 0) return 0;
+            hash = (hash ^ latitude) * 0x100000001b3L;
+            hash = (hash ^ longitude) * 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * The trust report of a whole trip.
+     */
+    static final class Report extends Counts {
+        final float[] windowTrust;
+
+        Report(int windows) {
+            windowTrust = new float[windows];
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("fixes", fixes);
+            map.put("teleports", teleports);
+            map.put("quantizedRatio", ratio(quantized, fixes));
+            map.put("straightRatio", ratio(straight, triples));
+            map.put("replayedRatio", ratio(replayed, runs));
+            map.put("trust", (double) trust());
+            double[] windows = new double[windowTrust.length];
+            for (int i = 0; i < windows.length; i++) windows[i] = windowTrust[i];
+            map.put("windowTrust", windows);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.wongpiwat.trust_location;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A compact encoding of tracks for bulk export, several times smaller than the fixed-size records of a history frame.
+ * A stream starts with a version byte, followed by one record per fix. Every field of a record is a zig-zag varint of
+ * its difference to the same field of the previous fix, so fixes of a moving track take a byte or two per field:
+ * <ul>
+ * <li>a header of the fix flags shifted left by one, with the lowest bit set if smoothed coordinates follow</li>
+ * <li>the sequence number, the time in milliseconds and the elapsed realtime in microseconds</li>
+ * <li>latitude and longitude in fixed-point units of {@link #COORDINATE_SCALE} degrees, about a centimeter</li>
+ * <li>accuracy in centimeters, trust score in thousandths and zone id</li>
+ * <li>if present, the smoothed latitude and longitude, relative to the raw coordinates of the same fix</li>
+ * </ul>
+ * The first fix is encoded against zeros. Encoding and decoding work on buffers of any size, chunk by chunk, so tracks
+ * of any length stream through a small buffer. An encoder and a decoder are not thread-safe.
+ */
+final class TrajectoryCodec {
+    static final byte VERSION = 1;
+    static final double COORDINATE_SCALE = 1e-7;
+    /**
+     * The maximum number of bytes of one record, a buffer with less space left may not hold the next one.
+     */
+    static final int MAX_RECORD_SIZE = 1 + 5 + 10 * 10;
+
+    private static final double COORDINATE_UNITS = 1e7;
+    private static final double ACCURACY_UNITS = 100;
+    private static final double TRUST_UNITS = 1000;
+    private static final int HAS_SMOOTHED = 1;
+
+    private TrajectoryCodec() {
+    }
+
+    /**
+     * Encodes fixes into a stream, each against the fix before it.
+     */
+    static final class Encoder {
+        private boolean started;
+        private long seq;
+        private long time;
+        private long elapsedRealtimeMicros;
+        private long latitude;
+        private long longitude;
+        private long accuracy;
+        private long trust;
+        private long zone;
+
+        /**
+         * Writes a fix at the current position of the buffer, preceded by the version byte if it is the first one.
+         *
+         * @return {@code false} without writing anything if the buffer has less than {@link #MAX_RECORD_SIZE} bytes
+         * left, drain it and try again
+         */
+        boolean encode(Fix fix, ByteBuffer buffer) {
+            if (buffer.remaining() < MAX_RECORD_SIZE) return false;
+            if (!started) {
+                buffer.put(VERSION);
+                started = true;
+            }
+            long latitude = Math.round(fix.latitude * COORDINATE_UNITS);
+            long longitude = Math.round(fix.longitude * COORDINATE_UNITS);
+            boolean smoothed = !Double.isNaN(fix.smoothedLatitude) && !Double.isNaN(fix.smoothedLongitude);
+            writeVarint(buffer, (fix.flags & 0xffffffffL) << 1 | (smoothed ? HAS_SMOOTHED : 0));
+            this.seq = writeDelta(buffer, fix.seq, this.seq);
+            this.time = writeDelta(buffer, fix.time, this.time);
+            this.elapsedRealtimeMicros = writeDelta(buffer, fix.elapsedRealtimeNanos / 1000,
+                    this.elapsedRealtimeMicros);
+            this.latitude = writeDelta(buffer, latitude, this.latitude);
+            this.longitude = writeDelta(buffer, longitude, this.longitude);
+            this.accuracy = writeDelta(buffer, Math.round(fix.accuracy * ACCURACY_UNITS), this.accuracy);
+            this.trust = writeDelta(buffer, Math.round(fix.trust * TRUST_UNITS), this.trust);
+            this.zone = writeDelta(buffer, fix.zone, this.zone);
+            if (smoothed) {
+                writeDelta(buffer, Math.round(fix.smoothedLatitude * COORDINATE_UNITS), latitude);
+                writeDelta(buffer, Math.round(fix.smoothedLongitude * COORDINATE_UNITS), longitude);
+            }
+            return true;
+        }
+
+        /**
+         * Starts a new stream, the next fix is written with a version byte and against zeros.
+         */
+        void reset() {
+            started = false;
+            seq = time = elapsedRealtimeMicros = latitude = longitude = accuracy = trust = zone = 0;
+        }
+    }
+
+    /**
+     * Decodes the fixes of a stream written by an {@link Encoder}.
+     */
+    static final class Decoder {
+        private boolean started;
+        private long seq;
+        private long time;
+        private long elapsedRealtimeMicros;
+        private long latitude;
+        private long longitude;
+        private long accuracy;
+        private long trust;
+        private long zone;
+
+        /**
+         * Reads the fix at the current position of the buffer.
+         *
+         * @return the fix, or {@code null} without consuming anything if the buffer ends within the record, append the
+         * next chunk of the stream and try again
+         * @throws IllegalArgumentException if the stream has another version or a malformed record
+         */
+        Fix decode(ByteBuffer buffer) {
+            int start = buffer.position();
+            try {
+                if (!started && buffer.get() != VERSION)
+                    throw new IllegalArgumentException("Unsupported trajectory version: " + buffer.get(start));
+                long header = readVarint(buffer);
+                long seq = this.seq + readDelta(buffer);
+                long time = this.time + readDelta(buffer);
+                long elapsedRealtimeMicros = this.elapsedRealtimeMicros + readDelta(buffer);
+                long latitude = this.latitude + readDelta(buffer);
+                long longitude = this.longitude + readDelta(buffer);
+                long accuracy = this.accuracy + readDelta(buffer);
+                long trust = this.trust + readDelta(buffer);
+                long zone = this.zone + readDelta(buffer);
+                double smoothedLatitude = Double.NaN;
+                double smoothedLongitude = Double.NaN;
+                if ((header & HAS_SMOOTHED) != 0) {
+                    smoothedLatitude = (latitude + readDelta(buffer)) / COORDINATE_UNITS;
+                    smoothedLongitude = (longitude + readDelta(buffer)) / COORDINATE_UNITS;
+                }
+                started = true;
+                this.seq = seq;
+                this.time = time;
+                this.elapsedRealtimeMicros = elapsedRealtimeMicros;
+                this.latitude = latitude;
+                this.longitude = longitude;
+                this.accuracy = accuracy;
+                this.trust = trust;
+                this.zone = zone;
+                return new Fix(seq, (int) (header >>> 1), latitude / COORDINATE_UNITS, longitude / COORDINATE_UNITS,
+                        accuracy / ACCURACY_UNITS, time, elapsedRealtimeMicros * 1000, (float) (trust / TRUST_UNITS),
+                        (int) zone, smoothedLatitude, smoothedLongitude);
+            } catch (BufferUnderflowException e) {
+                // Only at the end of a chunk, the record is read again once the rest has arrived
+                buffer.position(start);
+                return null;
+            }
+        }
+
+        /**
+         * Starts a new stream, the next fix is read after a version byte and against zeros.
+         */
+        void reset() {
+            started = false;
+            seq = time = elapsedRealtimeMicros = latitude = longitude = accuracy = trust = zone = 0;
+        }
+    }
+
+    private static long writeDelta(ByteBuffer buffer, long value, long previous) {
+        long delta = value - previous;
+        writeVarint(buffer, delta << 1 ^ delta >> 63);
+        return value;
+    }
+
+    private static long readDelta(ByteBuffer buffer) {
+        long zigZag = readVarint(buffer);
+        return zigZag >>> 1 ^ -(zigZag & 1);
+    }
+
+    private static void writeVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint at " + buffer.position());
+    }
+}
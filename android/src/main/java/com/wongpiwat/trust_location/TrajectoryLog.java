@@ -0,0 +1,461 @@
+package com.wongpiwat.trust_location;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of accepted fixes on disk, which keeps complete tracks of recordings that run for hours.
+ * The log is a directory of segment files named by increasing segment ids. Every segment starts with a magic number
+ * and a version, followed by fixed-size records: a fix as written by {@link Fix#writeRecordTo(ByteBuffer)} and the
+ * CRC32 of those bytes. Appending only copies the fix into a buffer, the buffer is written sequentially on the given
+ * executor and synced to disk at most the sync interval later, and a new segment is started once the current one
+ * reaches the segment size. Fixes lost because the writer fell behind are counted in {@link Metrics}. A record torn
+ * by a crash fails its checksum and is cut off when the log is opened again.
+ * Segments are read and trimmed by id without the log, so tracks of earlier runs stay accessible.
+ */
+final class TrajectoryLog {
+    static final String DIRECTORY_NAME = "trust_location_track";
+    static final long DEFAULT_SEGMENT_SIZE = 1 << 20;
+    static final long DEFAULT_SYNC_INTERVAL = 10000;
+    static final int RECORD_SIZE = Fix.RECORD_SIZE + 4;
+
+    private static final int MAGIC = 0x52544c54;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4;
+    private static final int BUFFER_SIZE = 1024 * RECORD_SIZE;
+    private static final String SUFFIX = ".seg";
+
+    private final File directory;
+    private final ScheduledExecutorService executor;
+    private final Metrics metrics;
+    private final long segmentSize;
+    private final long syncIntervalNanos;
+    private volatile long activeSegment;
+
+    // Guarded by this, fixes are appended into one buffer while the executor writes the other
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer appendBuffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private boolean writeScheduled;
+    private boolean closed;
+
+    // Only used on the executor
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private FileChannel channel;
+    private long position;
+    private long lastSyncNanos;
+    private boolean unsynced;
+    private ScheduledFuture<?> syncScheduled;
+    private boolean finished;
+
+    /**
+     * Opens the log and continues its newest segment. Call this method off the main thread.
+     *
+     * @param directory    the directory of the segments, created if needed
+     * @param executor     the executor that writes the segments, it must run one task at a time
+     * @param metrics      the metrics that count lost fixes
+     * @param segmentSize  the size (in bytes) at which a new segment is started
+     * @param syncInterval the maximum time (in milliseconds) written fixes may stay unsynced
+     */
+    TrajectoryLog(File directory, ScheduledExecutorService executor, Metrics metrics, long segmentSize,
+                  long syncInterval) {
+        if (segmentSize < HEADER_SIZE + RECORD_SIZE)
+            throw new IllegalArgumentException("segmentSize too small: " + segmentSize);
+        if (syncInterval < 0) throw new IllegalArgumentException("syncInterval must not be negative: " + syncInterval);
+        this.directory = directory;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.segmentSize = segmentSize;
+        this.syncIntervalNanos = syncInterval * 1000000;
+        long[] segments = listSegments(directory);
+        activeSegment = segments.length > 0 ? segments[segments.length - 1] : 0;
+        executor.execute(recover);
+    }
+
+    /**
+     * Returns the id of the segment fixes are currently appended to.
+     */
+    long getActiveSegment() {
+        return activeSegment;
+    }
+
+    /**
+     * Appends a fix. It is copied into a buffer without allocating and written on the executor.
+     */
+    synchronized void append(Fix fix) {
+        if (closed) return;
+        if (appendBuffer.remaining() < RECORD_SIZE) {
+            metrics.increment(Metrics.TRACK_DROPPED);
+            return;
+        }
+        int start = appendBuffer.position();
+        fix.writeRecordTo(appendBuffer);
+        crc.reset();
+        crc.update(appendBuffer.array(), appendBuffer.arrayOffset() + start, Fix.RECORD_SIZE);
+        appendBuffer.putInt((int) crc.getValue());
+        // Scheduled under the lock, so that no write is scheduled once close has been
+        if (!writeScheduled) {
+            writeScheduled = true;
+            executor.execute(write);
+        }
+    }
+
+    /**
+     * Writes and syncs the remaining fixes and closes the log. Fixes appended afterwards are ignored, and the executor
+     * may be shut down right after this method returns.
+     */
+    synchronized void close() {
+        if (closed) return;
+        closed = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write.run();
+                if (syncScheduled != null) syncScheduled.cancel(false);
+                sync.run();
+                finished = true;
+                closeSegment();
+            }
+        });
+    }
+
+    /**
+     * Cuts off a torn tail of the newest segment, or starts the first one.
+     */
+    private final Runnable recover = new Runnable() {
+        @Override
+        public void run() {
+            //noinspection ResultOfMethodCallIgnored
+            directory.mkdirs();
+            try {
+                openSegment(activeSegment);
+                if (position == 0) {
+                    writeHeader();
+                    return;
+                }
+                long valid = scan(channel, position);
+                if (valid < position) {
+                    channel.truncate(valid);
+                    channel.force(true);
+                    position = valid;
+                }
+                if (position < HEADER_SIZE) writeHeader();
+            } catch (IOException e) {
+                // Leave the segment as it is and continue in a new one
+                closeSegment();
+                activeSegment++;
+            }
+        }
+    };
+
+    private final Runnable write = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TrajectoryLog.this) {
+                writeScheduled = false;
+                ByteBuffer full = appendBuffer;
+                appendBuffer = writeBuffer;
+                writeBuffer = full;
+            }
+            writeBuffer.flip();
+            if (finished || !writeBuffer.hasRemaining()) {
+                writeBuffer.clear();
+                return;
+            }
+            try {
+                while (writeBuffer.hasRemaining()) {
+                    if (channel == null || position + RECORD_SIZE > segmentSize && position > HEADER_SIZE) {
+                        if (channel != null) {
+                            channel.force(false);
+                            closeSegment();
+                            activeSegment++;
+                        }
+                        openSegment(activeSegment);
+                        if (position < HEADER_SIZE) writeHeader();
+                    }
+                    // Keep whole records within the segment
+                    long room = Math.max(RECORD_SIZE, (segmentSize - position) / RECORD_SIZE * RECORD_SIZE);
+                    int limit = writeBuffer.limit();
+                    writeBuffer.limit((int) Math.min(limit, writeBuffer.position() + room));
+                    while (writeBuffer.hasRemaining())
+                        position += channel.write(writeBuffer, position);
+                    writeBuffer.limit(limit);
+                }
+                unsynced = true;
+                long delay = lastSyncNanos + syncIntervalNanos - System.nanoTime();
+                if (delay <= 0) {
+                    sync.run();
+                } else if (syncScheduled == null) {
+                    // Sync later even if no more fixes arrive
+                    syncScheduled = executor.schedule(sync, delay, TimeUnit.NANOSECONDS);
+                }
+            } catch (IOException e) {
+                metrics.add(Metrics.TRACK_DROPPED, writeBuffer.remaining() / RECORD_SIZE);
+                // Continue in a fresh segment, the reader stops at a partial record of this one
+                closeSegment();
+                activeSegment++;
+            }
+            writeBuffer.clear();
+        }
+    };
+
+    /**
+     * Syncs the written fixes of the current segment.
+     */
+    private final Runnable sync = new Runnable() {
+        @Override
+        public void run() {
+            syncScheduled = null;
+            if (channel == null || !unsynced) return;
+            try {
+                channel.force(false);
+            } catch (IOException ignored) {
+                // Retried with the next write
+                return;
+            }
+            unsynced = false;
+            lastSyncNanos = System.nanoTime();
+        }
+    };
+
+    private void openSegment(long id) throws IOException {
+        channel = new RandomAccessFile(segmentFile(directory, id), "rw").getChannel();
+        position = channel.size();
+    }
+
+    private void writeHeader() throws IOException {
+        header.clear();
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.flip();
+        channel.truncate(0);
+        position = 0;
+        while (header.hasRemaining())
+            position += channel.write(header, position);
+    }
+
+    private void closeSegment() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    /**
+     * Returns the end of the last intact record within the given size, or 0 if the header is not valid.
+     */
+    private static long scan(FileChannel channel, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        if (size < HEADER_SIZE || !readHeader(channel, buffer)) return 0;
+        long valid = HEADER_SIZE;
+        while (valid + RECORD_SIZE <= size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), (size - valid) / RECORD_SIZE * RECORD_SIZE));
+            readFully(channel, buffer, valid);
+            buffer.flip();
+            int count = countIntact(buffer, crc);
+            valid += (long) count * RECORD_SIZE;
+            if (count * RECORD_SIZE < buffer.limit()) break;
+        }
+        return valid;
+    }
+
+    private static boolean readHeader(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit(HEADER_SIZE);
+        readFully(channel, buffer, 0);
+        buffer.flip();
+        return buffer.getInt() == MAGIC && buffer.getInt() == VERSION;
+    }
+
+    /**
+     * Returns the number of intact records from the start of the buffer, up to the first torn one.
+     */
+    private static int countIntact(ByteBuffer buffer, CRC32 crc) {
+        int count = 0;
+        for (int offset = 0; offset + RECORD_SIZE <= buffer.limit(); offset += RECORD_SIZE) {
+            crc.reset();
+            crc.update(buffer.array(), buffer.arrayOffset() + offset, Fix.RECORD_SIZE);
+            if (buffer.getInt(offset + Fix.RECORD_SIZE) != (int) crc.getValue()) break;
+            count++;
+        }
+        return count;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of segment");
+            position += read;
+        }
+    }
+
+    private static File segmentFile(File directory, long id) {
+        return new File(directory, String.format(Locale.US, "%010d%s", id, SUFFIX));
+    }
+
+    /**
+     * Returns the ids of all segments in the directory, oldest first.
+     */
+    static long[] listSegments(File directory) {
+        String[] names = directory.list();
+        if (names == null) return new long[0];
+        long[] ids = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.endsWith(SUFFIX)) continue;
+            try {
+                ids[count++] = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException ignored) {
+                count--;
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Returns the number of records in a segment, including a torn one at its end.
+     */
+    static int countRecords(File directory, long id) {
+        long length = segmentFile(directory, id).length();
+        return length < HEADER_SIZE ? 0 : (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+    }
+
+    /**
+     * Reads up to the given number of fixes from a segment, starting at the given record, without loading the rest
+     * of the segment. Reading stops at a torn record. Call this method off the main thread.
+     *
+     * @return a history frame with the fixes, oldest first
+     * @throws IOException if the segment does not exist or is not valid
+     */
+    static BinaryFrame read(File directory, long id, int from, int maxCount) throws IOException {
+        final ByteBuffer buffer = readRecords(directory, id, from, maxCount);
+        final int count = buffer.limit() / RECORD_SIZE;
+        return new BinaryFrame() {
+            @Override
+            public int maxSize() {
+                return 1 + 4 + count * Fix.RECORD_SIZE;
+            }
+
+            @Override
+            public void writeTo(ByteBuffer frame) {
+                frame.put(FixHistory.TAG);
+                frame.putInt(count);
+                for (int i = 0; i < count; i++) {
+                    buffer.limit(i * RECORD_SIZE + Fix.RECORD_SIZE);
+                    buffer.position(i * RECORD_SIZE);
+                    frame.put(buffer);
+                }
+            }
+        };
+    }
+
+    /**
+     * Like {@link #read(File, long, int, int)}, but returns the fixes themselves.
+     */
+    static Fix[] readFixes(File directory, long id, int from, int maxCount) throws IOException {
+        ByteBuffer buffer = readRecords(directory, id, from, maxCount);
+        Fix[] fixes = new Fix[buffer.limit() / RECORD_SIZE];
+        for (int i = 0; i < fixes.length; i++) {
+            buffer.position(i * RECORD_SIZE);
+            fixes[i] = Fix.readRecordFrom(buffer);
+        }
+        return fixes;
+    }
+
+    /**
+     * Returns a buffer with the intact records from the given one on, up to the given number, checksums included.
+     */
+    private static ByteBuffer readRecords(File directory, long id, int from, int maxCount) throws IOException {
+        if (from < 0 || maxCount < 0) throw new IllegalArgumentException("from and maxCount must not be negative");
+        try (RandomAccessFile input = new RandomAccessFile(segmentFile(directory, id), "r")) {
+            FileChannel channel = input.getChannel();
+            if (channel.size() < HEADER_SIZE || !readHeader(channel, ByteBuffer.allocate(HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN)))
+                throw new IOException("Not a trajectory segment: " + id);
+            long start = HEADER_SIZE + (long) from * RECORD_SIZE;
+            long available = Math.max(0, (channel.size() - start) / RECORD_SIZE);
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(maxCount, available) * RECORD_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, buffer, start);
+            buffer.flip();
+            buffer.limit(countIntact(buffer, new CRC32()) * RECORD_SIZE);
+            return buffer;
+        }
+    }
+
+    /**
+     * Encodes all fixes of a segment with a {@link TrajectoryCodec}, for export. The segment is read and encoded chunk
+     * by chunk, only the encoded stream is held in memory. Encoding stops at a torn record. Call this method off the
+     * main thread.
+     *
+     * @throws IOException if the segment does not exist or is not valid
+     */
+    static byte[] export(File directory, long id) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteBuffer records = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer encoded = ByteBuffer.allocate(BUFFER_SIZE);
+        TrajectoryCodec.Encoder encoder = new TrajectoryCodec.Encoder();
+        CRC32 crc = new CRC32();
+        try (RandomAccessFile input = new RandomAccessFile(segmentFile(directory, id), "r")) {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE || !readHeader(channel, records))
+                throw new IOException("Not a trajectory segment: " + id);
+            for (long position = HEADER_SIZE; position + RECORD_SIZE <= size; ) {
+                records.clear();
+                records.limit((int) Math.min(records.capacity(), (size - position) / RECORD_SIZE * RECORD_SIZE));
+                readFully(channel, records, position);
+                records.flip();
+                int read = records.limit() / RECORD_SIZE;
+                int count = countIntact(records, crc);
+                for (int i = 0; i < count; i++) {
+                    records.limit(i * RECORD_SIZE + Fix.RECORD_SIZE);
+                    records.position(i * RECORD_SIZE);
+                    Fix fix = Fix.readRecordFrom(records);
+                    if (!encoder.encode(fix, encoded)) {
+                        output.write(encoded.array(), 0, encoded.position());
+                        encoded.clear();
+                        encoder.encode(fix, encoded);
+                    }
+                }
+                if (count < read) break;
+                position += (long) count * RECORD_SIZE;
+            }
+        }
+        output.write(encoded.array(), 0, encoded.position());
+        return output.toByteArray();
+    }
+
+    /**
+     * Deletes all segments older than the given one, except the active segment of a log that is still open.
+     *
+     * @param beforeSegment the id of the oldest segment to keep, all segments with lower ids are deleted
+     * @param activeSegment the active segment of the open log, or -1 if no log is open
+     * @return the number of deleted segments
+     */
+    static int trim(File directory, long beforeSegment, long activeSegment) {
+        int deleted = 0;
+        for (long id : listSegments(directory)) {
+            if (id >= beforeSegment) break;
+            if (id != activeSegment && segmentFile(directory, id).delete()) deleted++;
+        }
+        return deleted;
+    }
+}
@@ -3,12 +3,33 @@ package com.wongpiwat.trust_location;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.view.View;
 
 import androidx.annotation.NonNull;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.android.gms.tasks.CancellationTokenSource;
+
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.app.FlutterActivity;
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
@@ -16,65 +37,342 @@ import io.flutter.plugin.common.MethodChannel.Result;
 
 /**
  * TrustLocationPlugin
+ * Every engine the plugin is attached to gets its own channels, while all of them share one process-wide
+ * {@link LocationAssistantListener}. The shared listener is reference counted: it is created for the first engine,
+ * pushes fixes to the position streams of all engines and is shut down when the last engine detaches.
  */
 public class TrustLocationPlugin extends FlutterActivity implements FlutterPlugin, MethodCallHandler {
     private static final String CHANNEL = "trust_location";
-    private static LocationAssistantListener locationAssistantListener;
-    private static Context context;
+    private static final String POSITION_CHANNEL = "trust_location/position";
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Leaves a core to the UI and the location callbacks
+    private static final TrackAnalyzer trackAnalyzer = new TrackAnalyzer(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)));
+    private static final AtomicInteger nextEngineId = new AtomicInteger();
+    // Guarded by the class
+    private static LocationAssistantListener sharedListener;
+    private static int attachedEngines;
+    private final int engineId = nextEngineId.getAndIncrement();
+    private LocationAssistantListener locationAssistantListener;
     private MethodChannel channel;
+    private EventChannel positionChannel;
+    private PositionStreamHandler positionStreamHandler;
 
     public TrustLocationPlugin() {
     }
 
+    /**
+     * Returns the shared listener and counts the engine that uses it, creating the listener for the first engine.
+     */
+    private static synchronized LocationAssistantListener acquireListener(Context context) {
+        if (sharedListener == null)
+            sharedListener = new LocationAssistantListener(context.getApplicationContext(), executor);
+        attachedEngines++;
+        return sharedListener;
+    }
+
+    /**
+     * Releases the shared listener for one engine and shuts it down once no engine uses it anymore.
+     */
+    private static synchronized void releaseListener() {
+        if (--attachedEngines > 0) return;
+        sharedListener.shutdown();
+        sharedListener = null;
+    }
+
     @SuppressWarnings("deprecation")
     public static void registerWith(Registrar registrar) {
-        final MethodChannel channel = new MethodChannel(registrar.messenger(), CHANNEL);
-        channel.setMethodCallHandler(new TrustLocationPlugin());
-        context = registrar.context();
-        locationAssistantListener = new LocationAssistantListener(context);
+        // The v1 embedding has no detach callback, so the listener is never released
+        TrustLocationPlugin plugin = new TrustLocationPlugin();
+        plugin.locationAssistantListener = acquireListener(registrar.context());
+        final MethodChannel channel = new MethodChannel(registrar.messenger(), CHANNEL, FixFrameCodec.INSTANCE);
+        channel.setMethodCallHandler(plugin);
+        final EventChannel positionChannel = new EventChannel(registrar.messenger(), POSITION_CHANNEL, FixFrameCodec.INSTANCE);
+        positionChannel.setStreamHandler(plugin.new PositionStreamHandler());
     }
 
     @Override
     public void onAttachedToEngine(@NonNull FlutterPluginBinding flutterPluginBinding) {
-        channel = new MethodChannel(flutterPluginBinding.getBinaryMessenger(), CHANNEL);
-        channel.setMethodCallHandler(new TrustLocationPlugin());
-        context = flutterPluginBinding.getApplicationContext();
-        locationAssistantListener = new LocationAssistantListener(context);
+        // Method calls are handled off the main thread, so that waiting for a fix or encoding a large history never
+        // blocks the UI. The handlers below are thread-safe.
+        BinaryMessenger.TaskQueue taskQueue = flutterPluginBinding.getBinaryMessenger().makeBackgroundTaskQueue();
+        channel = new MethodChannel(flutterPluginBinding.getBinaryMessenger(), CHANNEL, FixFrameCodec.INSTANCE,
+                taskQueue);
+        locationAssistantListener = acquireListener(flutterPluginBinding.getApplicationContext());
+        channel.setMethodCallHandler(this);
+        positionChannel = new EventChannel(flutterPluginBinding.getBinaryMessenger(), POSITION_CHANNEL,
+                FixFrameCodec.INSTANCE);
+        positionStreamHandler = new PositionStreamHandler();
+        positionChannel.setStreamHandler(positionStreamHandler);
     }
 
     @Override
     public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
         channel.setMethodCallHandler(null);
+        positionChannel.setStreamHandler(null);
+        // The engine is gone without cancelling its stream or its subscriptions
+        positionStreamHandler.onCancel(null);
+        locationAssistantListener.unsubscribeAll(engineId);
+        releaseListener();
     }
 
     @Override
     public void onMethodCall(@NonNull MethodCall call, @NonNull Result result) {
+        long start = System.nanoTime();
+        try {
+            handleMethodCall(call, result);
+        } finally {
+            locationAssistantListener.getMetrics().methodCallTime.record(System.nanoTime() - start);
+        }
+    }
+
+    private void handleMethodCall(MethodCall call, Result result) {
         switch (call.method) {
             case "isMockLocation":
+                locationAssistantListener.ensureStarted();
                 if (locationAssistantListener.isMockLocationsDetected()) {
                     result.success(true);
                 } else if (locationAssistantListener.getLatitude() != null && locationAssistantListener.getLongitude() != null) {
                     result.success(false);
                 } else {
-                    locationAssistantListener = new LocationAssistantListener(context);
                     result.success(true);
                 }
                 break;
             case "getLatitude":
-                if (locationAssistantListener.getLatitude() != null) {
-                    result.success(locationAssistantListener.getLatitude());
-                } else {
-                    locationAssistantListener = new LocationAssistantListener(context);
-                    result.success(null);
-                }
+                locationAssistantListener.ensureStarted();
+                result.success(locationAssistantListener.getLatitude());
                 break;
             case "getLongitude":
-                if (locationAssistantListener.getLongitude() != null) {
-                    result.success(locationAssistantListener.getLongitude());
-                } else {
-                    locationAssistantListener = new LocationAssistantListener(context);
-                    result.success(null);
+                locationAssistantListener.ensureStarted();
+                result.success(locationAssistantListener.getLongitude());
+                break;
+            case "getPosition":
+                Number timeout = call.argument("timeout");
+                locationAssistantListener.getPosition(timeout != null ? timeout.longValue() : 0, result);
+                break;
+            case "getCurrentPosition":
+                Number currentTimeout = call.argument("timeout");
+                Number maxAge = call.argument("maxAge");
+                String accuracy = call.argument("accuracy");
+                LocationAssistant.Accuracy currentAccuracy;
+                try {
+                    currentAccuracy = accuracy != null ? LocationAssistant.Accuracy.valueOf(accuracy)
+                            : LocationAssistant.Accuracy.HIGH;
+                } catch (IllegalArgumentException e) {
+                    result.error("INVALID_ARGUMENT", "Unknown accuracy: " + accuracy, null);
+                    break;
+                }
+                locationAssistantListener.getCurrentPosition(currentTimeout != null ? currentTimeout.longValue() : 10000,
+                        maxAge != null ? maxAge.longValue() : 0, currentAccuracy, result);
+                break;
+            case "getHistory":
+                Number sinceSeq = call.argument("sinceSeq");
+                result.success(locationAssistantListener.getHistory().since(sinceSeq != null ? sinceSeq.longValue() : 0));
+                break;
+            case "setBatchedDelivery":
+                Number maxWaitTime = call.argument("maxWaitTime");
+                locationAssistantListener.setMaxWaitTime(maxWaitTime != null ? maxWaitTime.longValue() : 0);
+                result.success(null);
+                break;
+            case "setAdaptiveUpdates":
+                Boolean enabled = call.argument("enabled");
+                String maxAccuracy = call.argument("maxAccuracy");
+                Number minInterval = call.argument("minInterval");
+                try {
+                    locationAssistantListener.setAdaptiveUpdates(enabled != null && enabled,
+                            maxAccuracy != null ? LocationAssistant.Accuracy.valueOf(maxAccuracy)
+                                    : LocationAssistant.Accuracy.HIGH,
+                            minInterval != null ? minInterval.longValue() : 0);
+                } catch (IllegalArgumentException e) {
+                    result.error("INVALID_ARGUMENT", "Unknown accuracy: " + maxAccuracy, null);
+                    break;
                 }
+                result.success(locationAssistantListener.getAdaptiveMode());
+                break;
+            case "getAdaptiveMode":
+                result.success(locationAssistantListener.getAdaptiveMode());
+                break;
+            case "setTrustedZones":
+                setTrustedZones(call.<List<Map<String, Object>>>argument("zones"), result);
+                break;
+            case "getMetrics":
+                result.success(locationAssistantListener.getMetrics()
+                        .snapshot(Boolean.TRUE.equals(call.argument("reset"))));
+                break;
+            case "startReplay":
+                String trace = call.argument("trace");
+                String format = call.argument("format");
+                Number speedUp = call.argument("speedUp");
+                try {
+                    if (trace == null) trace = "";
+                    Trace parsed = Trace.parse(trace,
+                            format != null ? Trace.Format.valueOf(format) : Trace.Format.detect(trace));
+                    locationAssistantListener.setLocationSource(new TraceReplaySource(parsed,
+                            speedUp != null ? speedUp.doubleValue() : 1, LocationAssistantListener.ELAPSED_REALTIME));
+                    result.success(parsed.size());
+                } catch (IllegalArgumentException e) {
+                    result.error("INVALID_ARGUMENT", e.getMessage(), null);
+                }
+                break;
+            case "stopReplay":
+                locationAssistantListener.setLocationSource(null);
+                result.success(null);
+                break;
+            case "subscribe":
+                Number subscriptionId = call.argument("id");
+                Number interval = call.argument("interval");
+                String subscriptionAccuracy = call.argument("accuracy");
+                if (subscriptionId == null || interval == null || interval.longValue() < 0) {
+                    result.error("INVALID_ARGUMENT", "id and a non-negative interval are required", null);
+                    break;
+                }
+                try {
+                    locationAssistantListener.subscribe(engineId, subscriptionId.intValue(), interval.longValue(),
+                            subscriptionAccuracy != null ? LocationAssistant.Accuracy.valueOf(subscriptionAccuracy)
+                                    : LocationAssistantListener.DEFAULT_ACCURACY);
+                } catch (IllegalArgumentException e) {
+                    result.error("INVALID_ARGUMENT", "Unknown accuracy: " + subscriptionAccuracy, null);
+                    break;
+                }
+                result.success(null);
+                break;
+            case "unsubscribe":
+                Number unsubscribedId = call.argument("id");
+                if (unsubscribedId != null)
+                    locationAssistantListener.unsubscribe(engineId, unsubscribedId.intValue());
+                result.success(null);
+                break;
+            case "setSmoothing":
+                Boolean smoothing = call.argument("enabled");
+                Number processNoise = call.argument("processNoise");
+                double noise = processNoise != null ? processNoise.doubleValue() : KalmanSmoother.DEFAULT_PROCESS_NOISE;
+                if (!(noise > 0)) {
+                    result.error("INVALID_ARGUMENT", "processNoise must be positive", null);
+                    break;
+                }
+                locationAssistantListener.setSmoothing(smoothing != null && smoothing, noise);
+                result.success(null);
+                break;
+            case "setFixFilter":
+                Number minDisplacement = call.argument("minDisplacement");
+                Number minAccuracyImprovement = call.argument("minAccuracyImprovement");
+                try {
+                    locationAssistantListener.setFixFilter(
+                            minDisplacement != null ? minDisplacement.doubleValue() : 0,
+                            minAccuracyImprovement != null ? minAccuracyImprovement.doubleValue() : 0,
+                            Boolean.TRUE.equals(call.argument("suppressDuplicates")));
+                } catch (IllegalArgumentException e) {
+                    result.error("INVALID_ARGUMENT", e.getMessage(), null);
+                    break;
+                }
+                result.success(null);
+                break;
+            case "setBackend":
+                String backend = call.argument("backend");
+                try {
+                    locationAssistantListener.setBackend(backend != null ? LocationAssistant.Backend.valueOf(backend)
+                            : LocationAssistant.Backend.AUTO);
+                } catch (IllegalArgumentException e) {
+                    result.error("INVALID_ARGUMENT", "Unknown backend: " + backend, null);
+                    break;
+                }
+                result.success(null);
+                break;
+            case "getBackend":
+                result.success(locationAssistantListener.getBackend().name());
+                break;
+            case "startRecording":
+                Number segmentSize = call.argument("segmentSize");
+                Number syncInterval = call.argument("syncInterval");
+                try {
+                    locationAssistantListener.startRecording(
+                            segmentSize != null ? segmentSize.longValue() : TrajectoryLog.DEFAULT_SEGMENT_SIZE,
+                            syncInterval != null ? syncInterval.longValue() : TrajectoryLog.DEFAULT_SYNC_INTERVAL);
+                } catch (IllegalArgumentException e) {
+                    result.error("INVALID_ARGUMENT", e.getMessage(), null);
+                    break;
+                }
+                result.success(null);
+                break;
+            case "stopRecording":
+                locationAssistantListener.stopRecording();
+                result.success(null);
+                break;
+            case "getTrackSegments":
+                File trackDirectory = locationAssistantListener.getTrackDirectory();
+                List<Map<String, Object>> segments = new ArrayList<>();
+                for (long id : TrajectoryLog.listSegments(trackDirectory)) {
+                    Map<String, Object> segment = new HashMap<>();
+                    segment.put("id", id);
+                    segment.put("count", TrajectoryLog.countRecords(trackDirectory, id));
+                    segment.put("active", id == locationAssistantListener.getActiveSegment());
+                    segments.add(segment);
+                }
+                result.success(segments);
+                break;
+            case "readTrack":
+                Number segment = call.argument("segment");
+                Number from = call.argument("from");
+                Number count = call.argument("count");
+                if (segment == null || from == null || count == null) {
+                    result.error("INVALID_ARGUMENT", "segment, from and count are required", null);
+                    break;
+                }
+                try {
+                    result.success(TrajectoryLog.read(locationAssistantListener.getTrackDirectory(),
+                            segment.longValue(), from.intValue(), count.intValue()));
+                } catch (IllegalArgumentException e) {
+                    result.error("INVALID_ARGUMENT", e.getMessage(), null);
+                } catch (IOException e) {
+                    result.error("UNAVAILABLE", e.getMessage(), null);
+                }
+                break;
+            case "exportTrack":
+                Number exported = call.argument("segment");
+                if (exported == null) {
+                    result.error("INVALID_ARGUMENT", "segment is required", null);
+                    break;
+                }
+                try {
+                    result.success(TrajectoryLog.export(locationAssistantListener.getTrackDirectory(),
+                            exported.longValue()));
+                } catch (IOException e) {
+                    result.error("UNAVAILABLE", e.getMessage(), null);
+                }
+                break;
+            case "analyzeTrack":
+                Number analyzed = call.argument("segment");
+                Number windowSize = call.argument("windowSize");
+                if (analyzed == null) {
+                    result.error("INVALID_ARGUMENT", "segment is required", null);
+                    break;
+                }
+                try {
+                    analyzeTrack(analyzed.longValue(),
+                            windowSize != null ? windowSize.intValue() : TrackAnalyzer.DEFAULT_WINDOW_SIZE, result);
+                } catch (IllegalArgumentException e) {
+                    result.error("INVALID_ARGUMENT", e.getMessage(), null);
+                }
+                break;
+            case "trimTrack":
+                Number before = call.argument("before");
+                if (before == null) {
+                    result.error("INVALID_ARGUMENT", "before is required", null);
+                    break;
+                }
+                result.success(TrajectoryLog.trim(locationAssistantListener.getTrackDirectory(), before.longValue(),
+                        locationAssistantListener.getActiveSegment()));
+                break;
+            case "setHistoryCapacity":
+                Number capacity = call.argument("capacity");
+                if (capacity == null || capacity.longValue() < 1 || capacity.longValue() > FixHistory.MAX_CAPACITY) {
+                    result.error("INVALID_ARGUMENT", "capacity must be between 1 and " + FixHistory.MAX_CAPACITY,
+                            null);
+                    break;
+                }
+                locationAssistantListener.getHistory().setCapacity(capacity.intValue());
+                result.success(null);
                 break;
             default:
                 result.notImplemented();
@@ -82,34 +380,265 @@ public class TrustLocationPlugin extends FlutterActivity implements FlutterPlugi
         }
     }
 
+    /**
+     * Builds the index of the given zones in the background and swaps it in once it is complete, so fix delivery
+     * never waits for it. Answers with the number of zones.
+     */
+    private void setTrustedZones(final List<Map<String, Object>> zones, final Result result) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ZoneIndex index;
+                try {
+                    ZoneIndex.Builder builder = new ZoneIndex.Builder();
+                    if (zones != null)
+                        for (Map<String, Object> zone : zones) {
+                            int id = ((Number) zone.get("id")).intValue();
+                            if (zone.get("vertices") != null)
+                                builder.addPolygon(id, (double[]) zone.get("vertices"));
+                            else
+                                builder.addCircle(id, ((Number) zone.get("latitude")).doubleValue(),
+                                        ((Number) zone.get("longitude")).doubleValue(),
+                                        ((Number) zone.get("radius")).doubleValue());
+                        }
+                    index = builder.build();
+                } catch (RuntimeException e) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            result.error("INVALID_ARGUMENT", "Invalid trusted zone: " + e.getMessage(), null);
+                        }
+                    });
+                    return;
+                }
+                locationAssistantListener.setZones(index);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.success(index.size());
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Scores a recorded segment on the analysis pool and answers with the trip report once all windows are merged.
+     */
+    private void analyzeTrack(long segment, int windowSize, final Result result) {
+        trackAnalyzer.analyze(locationAssistantListener.getTrackDirectory(), segment, windowSize,
+                new TrackAnalyzer.Callback() {
+                    @Override
+                    public void onReport(TrackAnalyzer.Report report) {
+                        final Map<String, Object> map = report.toMap();
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                result.success(map);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onError(final Exception e) {
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                result.error("UNAVAILABLE", e.getMessage(), null);
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Pushes every new fix to the position stream of this engine. The LocationAssistant runs while the stream of any
+     * engine is listened to.
+     */
+    private class PositionStreamHandler implements EventChannel.StreamHandler {
+        private EventChannel.EventSink events;
+
+        @Override
+        public void onListen(Object arguments, EventChannel.EventSink events) {
+            this.events = events;
+            locationAssistantListener.listen(events);
+        }
+
+        @Override
+        public void onCancel(Object arguments) {
+            if (events == null) return;
+            locationAssistantListener.cancel(events);
+            events = null;
+        }
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
-        locationAssistantListener.getAssistant().start();
+        if (locationAssistantListener != null) locationAssistantListener.ensureStarted();
     }
 
     @Override
     protected void onPause() {
-        locationAssistantListener.getAssistant().stop();
+        if (locationAssistantListener != null) locationAssistantListener.stop();
         super.onPause();
     }
 
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
-        locationAssistantListener.getAssistant().onPermissionsUpdated(requestCode, grantResults);//io.flutter.Log.i("i", "requestCode: " + requestCode);
+        if (locationAssistantListener != null)
+            locationAssistantListener.getAssistant().onPermissionsUpdated(requestCode, grantResults);//io.flutter.Log.i("i", "requestCode: " + requestCode);
     }
 }
 
 class LocationAssistantListener implements LocationAssistant.Listener {
+    /**
+     * Lifecycle of the location updates managed by the listener.
+     */
+    enum State {
+        /**
+         * Location updates are stopped
+         */
+        STOPPED,
+        /**
+         * Location updates were started, but no fix has arrived since
+         */
+        WARMING_UP,
+        /**
+         * Location updates are running and deliver fixes
+         */
+        READY
+    }
+
+    static final LocationAssistant.Accuracy DEFAULT_ACCURACY = LocationAssistant.Accuracy.HIGH;
+    static final long DEFAULT_UPDATE_INTERVAL = 5000;
+    /**
+     * How long (in milliseconds) stopping a recording waits for its remaining fixes to be written
+     */
+    static final long RECORDER_STOP_TIMEOUT = 5000;
+    static final LocationSource.Clock ELAPSED_REALTIME = new LocationSource.Clock() {
+        @Override
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+
     private final LocationAssistant assistant;
-    private boolean isMockLocationsDetected = false;
-    private String latitude;
-    private String longitude;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // Guarded by itself, method calls add results from a background thread
+    private final List<MethodChannel.Result> pendingResults = new ArrayList<>();
+    private final FixPipeline pipeline = new FixPipeline(FixHistory.DEFAULT_CAPACITY);
+    private final FixHistory history = pipeline.getHistory();
+    private final FixCache cache;
+    private final File trackDirectory;
+    private volatile TrajectoryLog trajectoryLog;
+    private ScheduledExecutorService recorder;
+    // Current location requests in flight, guarded by itself
+    private final List<CurrentRequest> currentRequests = new ArrayList<>();
+    // The location last passed to publish and its snapshot, null if it was dropped. Only used on the background thread.
+    private Location publishedLocation;
+    private Fix publishedFix;
+    private volatile State state = State.STOPPED;
+    private final AtomicBoolean deliveryPosted = new AtomicBoolean();
+    // The position streams of all engines, only used on the main thread
+    private final List<EventChannel.EventSink> sinks = new ArrayList<>();
+    private final FixDelivery delivery = new FixDelivery(pipeline);
+    private volatile AdaptiveScheduler scheduler;
+    private final Subscriptions subscriptions = new Subscriptions();
 
-    public LocationAssistantListener(Context context) {
-        assistant = new LocationAssistant(context, this, LocationAssistant.Accuracy.HIGH, 5000, false);
+    /**
+     * @param context  the application context
+     * @param executor the executor for disk access, it must run one task at a time
+     */
+    public LocationAssistantListener(Context context, Executor executor) {
+        assistant = new LocationAssistant(context, this, DEFAULT_ACCURACY, DEFAULT_UPDATE_INTERVAL, false);
         assistant.setVerbose(true);
-        assistant.start();
+        cache = new FixCache(new File(context.getFilesDir(), FixCache.FILE_NAME), executor,
+                FixCache.DEFAULT_WRITE_INTERVAL);
+        trackDirectory = new File(context.getFilesDir(), TrajectoryLog.DIRECTORY_NAME);
+        executor.execute(loadCache);
+        ensureStarted();
+    }
+
+    /**
+     * Serves the fix cached by the last run until the first live fix arrives, flagged as cached and pending.
+     */
+    private final Runnable loadCache = new Runnable() {
+        @Override
+        public void run() {
+            Fix cached = cache.load();
+            if (cached != null
+                    && pipeline.publishIfEmpty(cached, Fix.FLAG_HAS_FIX | Fix.FLAG_CACHED | Fix.FLAG_PENDING))
+                postDelivery();
+        }
+    };
+
+    /**
+     * Starts location updates unless they are already running or warming up.
+     * May be called from any thread, the LocationAssistant is started on the main thread.
+     */
+    public synchronized void ensureStarted() {
+        if (state != State.STOPPED) return;
+        state = State.WARMING_UP;
+        FixFilter filter = pipeline.getFilter();
+        if (filter != null) filter.reset();
+        pipeline.updateFlags(Fix.FLAG_PENDING, 0);
+        handler.post(start);
+    }
+
+    // The LocationAssistant expects all calls on the main thread. Its calls are always posted there, even from the
+    // main thread, so that they run in the order they were made.
+    private final Runnable start = new Runnable() {
+        @Override
+        public void run() {
+            assistant.start();
+        }
+    };
+
+    private final Runnable stop = new Runnable() {
+        @Override
+        public void run() {
+            assistant.stop();
+            applyRequest.run();
+        }
+    };
+
+    /**
+     * Requests location updates at the tightest requirement of the subscribers and the adaptive scheduler, if
+     * enabled, so that the scheduler never starves a subscriber. Without either, the defaults are requested.
+     */
+    private final Runnable applyRequest = new Runnable() {
+        @Override
+        public void run() {
+            AdaptiveScheduler scheduler = LocationAssistantListener.this.scheduler;
+            LocationAssistant.Accuracy accuracy = subscriptions.getAccuracy();
+            if (scheduler != null)
+                assistant.setRequest(subscriptions.tightenAccuracy(scheduler.getAccuracy()),
+                        subscriptions.tightenInterval(scheduler.getInterval()));
+            else if (accuracy != null)
+                assistant.setRequest(accuracy, subscriptions.getInterval());
+            else
+                assistant.setRequest(DEFAULT_ACCURACY, DEFAULT_UPDATE_INTERVAL);
+        }
+    };
+
+    private final Runnable modeChanged = new Runnable() {
+        @Override
+        public void run() {
+            applyRequest.run();
+            Map<String, Object> mode = getAdaptiveMode();
+            if (mode == null) return;
+            for (EventChannel.EventSink events : sinks)
+                events.success(mode);
+        }
+    };
+
+    public State getState() {
+        return state;
+    }
+
+    private synchronized void markReady() {
+        if (state == State.WARMING_UP) state = State.READY;
     }
 
     @Override
@@ -141,14 +670,311 @@ class LocationAssistantListener implements LocationAssistant.Listener {
     @Override
     public void onNewLocationAvailable(Location location) {
         if (location == null) return;
-        latitude = location.getLatitude() + "";
-        longitude = location.getLongitude() + "";
-        isMockLocationsDetected = false;
+        markReady();
+        publish(location, 0);
+        schedule(location);
+        postDelivery();
+    }
+
+    @Override
+    public void onNewLocationsAvailable(List<Location> locations) {
+        markReady();
+        for (int i = 0; i < locations.size(); i++) {
+            publish(locations.get(i), i);
+            schedule(locations.get(i));
+        }
+        postDelivery();
+    }
+
+    /**
+     * Hands the fixes published since the last run to the channel. Location callbacks arrive on the background
+     * thread of the LocationAssistant, while the channel must be used from the main thread, so this runnable is
+     * posted there at most once at a time. A burst of fixes crosses the channel as one history frame.
+     */
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            deliveryPosted.set(false);
+            if (!delivery.take()) return;
+            BinaryFrame frame = delivery.getFrame();
+            Fix flagged = delivery.getFlagged();
+            if (frame != null) {
+                for (EventChannel.EventSink events : sinks) {
+                    events.success(frame);
+                    if (flagged != null) events.success(flagged);
+                }
+            }
+            Fix accepted = delivery.getAccepted();
+            if (accepted != null) {
+                getMetrics().fixLatency.record(SystemClock.elapsedRealtimeNanos() - accepted.elapsedRealtimeNanos);
+                completePendingResults(accepted);
+                if (!accepted.isMock()) cache.offer(accepted);
+            }
+        }
+    };
+
+    private void postDelivery() {
+        if (deliveryPosted.compareAndSet(false, true)) handler.post(deliver);
+    }
+
+    /**
+     * Feeds the location to the adaptive scheduler, if enabled, and re-requests location updates when the movement
+     * mode changes. The transition is pushed to the position stream.
+     */
+    private void schedule(Location location) {
+        AdaptiveScheduler scheduler = this.scheduler;
+        if (scheduler == null) return;
+        if (scheduler.update(location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                location.hasSpeed() ? location.getSpeed() : -1, location.getElapsedRealtimeNanos()))
+            handler.post(modeChanged);
+    }
+
+    /**
+     * Enables or disables adaptive location updates. While enabled, the accuracy and update interval follow the
+     * movement of the device within the given power budget. Disabling restores the default request.
+     *
+     * @param enabled     whether to adapt location updates to the movement
+     * @param maxAccuracy the most power-hungry accuracy that may be requested
+     * @param minInterval the shortest update interval (in milliseconds) that may be requested
+     */
+    public synchronized void setAdaptiveUpdates(boolean enabled, LocationAssistant.Accuracy maxAccuracy,
+                                                long minInterval) {
+        if (!enabled) {
+            scheduler = null;
+        } else {
+            if (scheduler == null) scheduler = new AdaptiveScheduler();
+            scheduler.setBudget(maxAccuracy, minInterval);
+        }
+        handler.post(applyRequest);
+    }
+
+    /**
+     * Replaces the fused location provider with the given source, or switches back to it with {@code null}.
+     * Running location updates are restarted with the new source.
+     */
+    public void setLocationSource(final LocationSource locationSource) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                boolean running = state != State.STOPPED;
+                if (running) assistant.stop();
+                assistant.setLocationSource(locationSource);
+                if (running) assistant.start();
+            }
+        });
+    }
+
+    /**
+     * Starts appending every published fix to the trajectory log, replacing a running recording. Call this method
+     * off the main thread, the log lists its segments when it opens.
+     *
+     * @param segmentSize  the size (in bytes) at which a new segment is started
+     * @param syncInterval the maximum time (in milliseconds) written fixes may stay unsynced
+     * @throws IllegalArgumentException if a parameter is out of range
+     */
+    public synchronized void startRecording(long segmentSize, long syncInterval) {
+        final ScheduledExecutorService previous = closeRecording();
+        // A thread of its own, so that syncing never holds up the cache or the zone index
+        ScheduledExecutorService recorder = Executors.newSingleThreadScheduledExecutor();
+        if (previous != null) {
+            // The new log continues the newest segment, so it opens it only once the old writes are done. Waiting on
+            // the new thread keeps the lock free for the main thread.
+            recorder.execute(new Runnable() {
+                @Override
+                public void run() {
+                    awaitRecorder(previous);
+                }
+            });
+        }
+        try {
+            trajectoryLog = new TrajectoryLog(trackDirectory, recorder, getMetrics(), segmentSize, syncInterval);
+        } catch (IllegalArgumentException e) {
+            recorder.shutdown();
+            throw e;
+        }
+        this.recorder = recorder;
+    }
+
+    /**
+     * Stops recording and waits until the remaining fixes are written and synced, so that a following recording may
+     * continue the same segment. Call this method off the main thread.
+     */
+    public void stopRecording() {
+        // Waits without the lock, which the main thread and the location callbacks need as well
+        ScheduledExecutorService recorder = closeRecording();
+        if (recorder != null) awaitRecorder(recorder);
+    }
+
+    private static void awaitRecorder(ScheduledExecutorService recorder) {
+        try {
+            if (!recorder.awaitTermination(RECORDER_STOP_TIMEOUT, TimeUnit.MILLISECONDS))
+                io.flutter.Log.w("i", "The stopped trajectory log is still being written");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes the running recording without waiting for its writes.
+     *
+     * @return the executor that still writes the remaining fixes, or {@code null} if not recording
+     */
+    private synchronized ScheduledExecutorService closeRecording() {
+        if (trajectoryLog == null) return null;
+        trajectoryLog.close();
+        trajectoryLog = null;
+        // The queued writes still run, then the thread ends. No write is queued after close.
+        ScheduledExecutorService recorder = this.recorder;
+        recorder.shutdown();
+        this.recorder = null;
+        return recorder;
+    }
+
+    public File getTrackDirectory() {
+        return trackDirectory;
+    }
+
+    /**
+     * Returns the segment the running recording appends to, or -1 if not recording.
+     */
+    public long getActiveSegment() {
+        TrajectoryLog trajectoryLog = this.trajectoryLog;
+        return trajectoryLog != null ? trajectoryLog.getActiveSegment() : -1;
+    }
+
+    /**
+     * Adds a subscriber with its own update interval and accuracy, or replaces its requirement. Location updates
+     * follow the tightest requirement of all subscribers.
+     *
+     * @param engineId the id of the engine the subscriber runs in
+     * @param id       the id of the subscriber within its engine
+     * @param interval the interval (in milliseconds) at which the subscriber wants fixes
+     * @param accuracy the accuracy the subscriber needs
+     */
+    public void subscribe(int engineId, int id, long interval, LocationAssistant.Accuracy accuracy) {
+        if (subscriptions.put(engineId, id, interval, accuracy)) handler.post(applyRequest);
+    }
+
+    /**
+     * Removes a subscriber added with {@link #subscribe(int, int, long, LocationAssistant.Accuracy)}.
+     */
+    public void unsubscribe(int engineId, int id) {
+        if (subscriptions.remove(engineId, id)) handler.post(applyRequest);
+    }
+
+    /**
+     * Removes all subscribers of an engine, e.g. when it detaches.
+     */
+    public void unsubscribeAll(int engineId) {
+        if (subscriptions.removeAll(engineId)) handler.post(applyRequest);
+    }
+
+    /**
+     * Enables or disables smoothing, see {@link LocationAssistant#setSmoothing(boolean, double)}.
+     */
+    public void setSmoothing(final boolean enabled, final double processNoise) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                assistant.setSmoothing(enabled, processNoise);
+            }
+        });
+    }
+
+    /**
+     * Configures the filters that drop fixes before they are published, see {@link FixFilter}. All thresholds at
+     * zero disable filtering.
+     *
+     * @param minDisplacement        the distance (in meters) a fix must be away from the last one
+     * @param minAccuracyImprovement the amount (in meters) a fix must be more accurate than the last one
+     * @param suppressDuplicates     whether to drop fixes identical to the last one
+     * @throws IllegalArgumentException if a threshold is negative
+     */
+    public synchronized void setFixFilter(double minDisplacement, double minAccuracyImprovement,
+                                          boolean suppressDuplicates) {
+        FixFilter filter = pipeline.getFilter();
+        if (filter == null) filter = new FixFilter(getMetrics());
+        filter.setThresholds(minDisplacement, minAccuracyImprovement, suppressDuplicates);
+        pipeline.setFilter(filter.isEnabled() ? filter : null);
+    }
+
+    /**
+     * Selects the backend of location updates, see {@link LocationAssistant#setBackend(LocationAssistant.Backend)}.
+     * Running location updates are restarted with the new backend.
+     */
+    public void setBackend(final LocationAssistant.Backend backend) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                boolean running = state != State.STOPPED;
+                if (running) assistant.stop();
+                assistant.setBackend(backend);
+                if (running) assistant.start();
+            }
+        });
+    }
+
+    public LocationAssistant.Backend getBackend() {
+        return assistant.getBackend();
+    }
+
+    /**
+     * Enables or disables batched delivery, see {@link LocationAssistant#setMaxWaitTime(long)}.
+     */
+    public void setMaxWaitTime(final long maxWaitTime) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                assistant.setMaxWaitTime(maxWaitTime);
+            }
+        });
+    }
+
+    /**
+     * Returns the current movement mode with the accuracy and update interval it requests, or {@code null} if
+     * adaptive location updates are disabled.
+     */
+    public Map<String, Object> getAdaptiveMode() {
+        AdaptiveScheduler scheduler = this.scheduler;
+        if (scheduler == null) return null;
+        Map<String, Object> mode = new HashMap<>();
+        synchronized (scheduler) {
+            mode.put("mode", scheduler.getMode().name());
+            mode.put("accuracy", scheduler.getAccuracy().name());
+            mode.put("interval", scheduler.getInterval());
+        }
+        return mode;
+    }
+
+    /**
+     * Publishes a location being delivered by the LocationAssistant, with its results at the given index.
+     */
+    private Fix publish(Location location, int index) {
+        Fix fix = pipeline.publish(location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                location.getTime(), location.getElapsedRealtimeNanos(), assistant.getTrustScore(index),
+                assistant.getSmoothedLatitude(index), assistant.getSmoothedLongitude(index));
+        TrajectoryLog trajectoryLog = this.trajectoryLog;
+        if (fix != null && trajectoryLog != null) trajectoryLog.append(fix);
+        publishedLocation = location;
+        publishedFix = fix;
+        return fix;
+    }
+
+    private void completePendingResults(Fix fix) {
+        MethodChannel.Result[] results;
+        synchronized (pendingResults) {
+            if (pendingResults.isEmpty()) return;
+            results = pendingResults.toArray(new MethodChannel.Result[0]);
+            pendingResults.clear();
+        }
+        for (MethodChannel.Result result : results)
+            result.success(fix);
     }
 
     @Override
     public void onMockLocationsDetected(View.OnClickListener fromView, DialogInterface.OnClickListener fromDialog) {
-        isMockLocationsDetected = true;
+        pipeline.updateFlags(Fix.FLAG_MOCK, 0);
+        postDelivery();
     }
 
     @Override
@@ -156,16 +982,278 @@ class LocationAssistantListener implements LocationAssistant.Listener {
         io.flutter.Log.i("i", "Error: " + message);
     }
 
+    /**
+     * Compatibility shim for the getLatitude method, prefer {@link #getPosition()}.
+     */
     public String getLatitude() {
-        return latitude;
+        final Fix fix = pipeline.getLatest();
+        return fix.hasFix() ? fix.latitude + "" : null;
     }
 
+    /**
+     * Compatibility shim for the getLongitude method, prefer {@link #getPosition()}.
+     */
     public String getLongitude() {
-        return longitude;
+        final Fix fix = pipeline.getLatest();
+        return fix.hasFix() ? fix.longitude + "" : null;
     }
 
     public boolean isMockLocationsDetected() {
-        return isMockLocationsDetected;
+        return pipeline.getLatest().isMock();
+    }
+
+    /**
+     * Returns the latest snapshot, so that latitude, longitude, mock flag and fix metadata always belong to the same
+     * location. The snapshot is flagged as pending while location updates are not ready.
+     * Reading it takes no lock and its sequence number tells whether it changed since the last read.
+     */
+    public Fix getPosition() {
+        return pipeline.getLatest();
+    }
+
+    /**
+     * Returns the recent fixes, the ring buffer keeps every fix between two queries up to its capacity.
+     */
+    public FixHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Replaces the trusted zones that every following fix is classified against.
+     */
+    public void setZones(ZoneIndex zones) {
+        pipeline.setZones(zones);
+    }
+
+    /**
+     * Answers with the latest fix. While location updates are warming up, the answer is held back until the first
+     * fix arrives or the timeout expires, whichever happens first.
+     *
+     * @param timeout the maximum time (in milliseconds) to wait for the first fix, 0 to answer right away
+     * @param result  the result to answer
+     */
+    public void getPosition(long timeout, final MethodChannel.Result result) {
+        ensureStarted();
+        if (state == State.READY || timeout <= 0) {
+            result.success(getPosition());
+            return;
+        }
+        synchronized (pendingResults) {
+            pendingResults.add(result);
+        }
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                boolean pending;
+                synchronized (pendingResults) {
+                    pending = pendingResults.remove(result);
+                }
+                if (pending) result.success(getPosition());
+            }
+        }, timeout);
+        // The first fix may have been delivered since the state was checked
+        if (state == State.READY) handler.post(completeWithLatest);
+    }
+
+    /**
+     * Answers with a trusted fix that is not older than the given age. If the latest fix is too old, a single current
+     * location is requested. Callers share a request in flight if it has the same or a better accuracy, accepts no
+     * older fix and runs at least until their own timeout. Every caller is answered within its timeout, with the fix of the
+     * current location or with a {@code TIMEOUT} error.
+     *
+     * @param timeout  the maximum time (in milliseconds) to wait
+     * @param maxAge   the maximum age (in milliseconds) of the fix
+     * @param accuracy the desired accuracy if a current location is requested
+     * @param result   the result to answer
+     */
+    public void getCurrentPosition(final long timeout, final long maxAge, final LocationAssistant.Accuracy accuracy,
+                                   final MethodChannel.Result result) {
+        Fix fix = pipeline.getLatest();
+        if (fix.hasFix() && !fix.isMock() && getAge(fix) <= maxAge) {
+            result.success(fix);
+            return;
+        }
+        final CurrentRequest request;
+        boolean start = false;
+        long deadline = SystemClock.uptimeMillis() + timeout;
+        synchronized (currentRequests) {
+            CurrentRequest shared = null;
+            for (CurrentRequest candidate : currentRequests) {
+                if (candidate.accuracy.ordinal() <= accuracy.ordinal() && candidate.maxAge <= maxAge
+                        && candidate.deadline >= deadline) {
+                    shared = candidate;
+                    break;
+                }
+            }
+            if (shared == null) {
+                shared = new CurrentRequest(accuracy, maxAge, deadline);
+                currentRequests.add(shared);
+                start = true;
+            }
+            shared.results.add(result);
+            request = shared;
+        }
+        if (start)
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    assistant.requestCurrentLocation(accuracy, timeout, maxAge, request.cancellation.getToken(),
+                            request);
+                }
+            });
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                request.timeOut(result);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Returns the age of the fix in milliseconds. Cached fixes may come from before a reboot, so their age is taken
+     * from the wall clock.
+     */
+    private static long getAge(Fix fix) {
+        if (fix.isCached()) return System.currentTimeMillis() - fix.time;
+        return (SystemClock.elapsedRealtimeNanos() - fix.elapsedRealtimeNanos) / 1000000;
+    }
+
+    /**
+     * A current location request in flight and the callers waiting for it.
+     */
+    private final class CurrentRequest implements LocationAssistant.CurrentLocationCallback {
+        final LocationAssistant.Accuracy accuracy;
+        final long maxAge;
+        // Uptime in milliseconds at which the request ends
+        final long deadline;
+        final CancellationTokenSource cancellation = new CancellationTokenSource();
+        // Guarded by currentRequests
+        final List<MethodChannel.Result> results = new ArrayList<>();
+
+        CurrentRequest(LocationAssistant.Accuracy accuracy, long maxAge, long deadline) {
+            this.accuracy = accuracy;
+            this.maxAge = maxAge;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Answers the caller with a timeout, and cancels the request once nobody waits for it anymore.
+         */
+        void timeOut(MethodChannel.Result result) {
+            boolean removed;
+            boolean abandoned;
+            synchronized (currentRequests) {
+                removed = results.remove(result);
+                abandoned = removed && results.isEmpty();
+                if (abandoned) detach();
+            }
+            if (removed) result.error("TIMEOUT", "No location within the timeout.", null);
+            if (abandoned) cancellation.cancel();
+        }
+
+        @Override
+        public void onCurrentLocation(Location location, boolean accepted) {
+            Fix fix = null;
+            if (location != null && accepted && location == publishedLocation) fix = publishedFix;
+            // A rejected location, or one the filter dropped, is answered without being published
+            if (location != null && fix == null)
+                fix = pipeline.snapshot(accepted ? Fix.FLAG_HAS_FIX : Fix.FLAG_HAS_FIX | Fix.FLAG_MOCK,
+                        location.getLatitude(), location.getLongitude(), location.getAccuracy(), location.getTime(),
+                        location.getElapsedRealtimeNanos(), assistant.getTrustScore(0),
+                        assistant.getSmoothedLatitude(0), assistant.getSmoothedLongitude(0));
+            for (MethodChannel.Result result : finish()) {
+                if (fix == null)
+                    result.error("TIMEOUT", "No location within the timeout.", null);
+                else
+                    result.success(fix);
+            }
+        }
+
+        @Override
+        public void onCurrentLocationError(String message) {
+            for (MethodChannel.Result result : finish())
+                result.error("UNAVAILABLE", message, null);
+        }
+
+        private MethodChannel.Result[] finish() {
+            synchronized (currentRequests) {
+                detach();
+                MethodChannel.Result[] finished = results.toArray(new MethodChannel.Result[0]);
+                results.clear();
+                return finished;
+            }
+        }
+
+        private void detach() {
+            currentRequests.remove(this);
+        }
+    }
+
+    private final Runnable completeWithLatest = new Runnable() {
+        @Override
+        public void run() {
+            completePendingResults(getPosition());
+        }
+    };
+
+    /**
+     * Starts the LocationAssistant and pushes every following fix to the given sink, next to the sinks of other
+     * engines. The latest fix already delivered to the others, if any, is delivered right away. Call this method on
+     * the main thread.
+     *
+     * @param events the sink of the position event channel of an engine
+     */
+    public void listen(EventChannel.EventSink events) {
+        // Hand pending fixes to the other sinks first, the new sink only gets fixes from here on
+        deliver.run();
+        sinks.add(events);
+        ensureStarted();
+        Fix fix = pipeline.getLatest();
+        if (fix.hasFix() && fix.seq <= delivery.getDeliveredSeq()) events.success(fix);
+    }
+
+    /**
+     * Stops pushing fixes to the given sink, and stops the LocationAssistant once no sink is left. Call this method
+     * on the main thread.
+     */
+    public void cancel(EventChannel.EventSink events) {
+        sinks.remove(events);
+        if (sinks.isEmpty()) stop();
+    }
+
+    /**
+     * Stops location updates for good, ends the background thread and closes the fix cache, once no engine uses the
+     * listener anymore.
+     */
+    public void shutdown() {
+        stop();
+        // Called on the main thread, the remaining fixes are written in the background
+        closeRecording();
+        cache.close();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                sinks.clear();
+                assistant.release();
+            }
+        });
+    }
+
+    /**
+     * Stops location updates. They start again on the next subscription or query.
+     */
+    public synchronized void stop() {
+        AdaptiveScheduler scheduler = this.scheduler;
+        // Start over in the default mode, the device may have moved in the meantime
+        if (scheduler != null) scheduler.reset();
+        handler.post(stop);
+        cache.flush();
+        state = State.STOPPED;
+        pipeline.updateFlags(Fix.FLAG_PENDING, 0);
+    }
+
+    public Metrics getMetrics() {
+        return assistant.getMetrics();
     }
 
     public LocationAssistant getAssistant() {
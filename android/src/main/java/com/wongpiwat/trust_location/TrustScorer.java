@@ -0,0 +1,94 @@
+package com.wongpiwat.trust_location;
+
+/**
+ * Runs a chain of {@link MockDetector}s over every fix and combines their results into a trust score.
+ * Each detector contributes {@code 1 - weight * suspicion} and the contributions are multiplied, so a trust score of
+ * 1 means nothing was suspicious and a detector with weight 1 alone can bring the score down to 0.
+ * Every detector sees every fix, also when the score is already 0, so that their state stays consistent.
+ * The scorer is not thread-safe, use it from the thread that delivers the fixes.
+ */
+final class TrustScorer {
+    private MockDetector[] detectors = new MockDetector[0];
+    private float[] weights = new float[0];
+    private float[] suspicions = new float[0];
+
+    /**
+     * Creates a scorer with the default detector chain. At full suspicion the provider flag and the proximity to recent
+     * mock locations bring the score to 0, impossible speed to 0.2 and clock drift to 0.4, so each of them rejects a
+     * fix on its own under the default threshold of 0.5. Suspicious accuracy or altitude patterns only lower it to 0.6
+     * and reject a fix together with another finding.
+     */
+    static TrustScorer createDefault() {
+        TrustScorer scorer = new TrustScorer();
+        scorer.add(new ProviderFlagDetector(), 1f);
+        scorer.add(new MockProximityDetector(), 1f);
+        scorer.add(new ImpossibleSpeedDetector(), 0.8f);
+        scorer.add(new ClockDriftDetector(), 0.6f);
+        scorer.add(new AccuracyPatternDetector(), 0.4f);
+        return scorer;
+    }
+
+    /**
+     * Appends a detector to the chain.
+     *
+     * @param detector the detector
+     * @param weight   how much the detector can lower the trust score, from 0 to 1
+     */
+    void add(MockDetector detector, float weight) {
+        if (weight < 0 || weight > 1) throw new IllegalArgumentException("weight must be within [0, 1]: " + weight);
+        int count = detectors.length;
+        MockDetector[] newDetectors = new MockDetector[count + 1];
+        float[] newWeights = new float[count + 1];
+        System.arraycopy(detectors, 0, newDetectors, 0, count);
+        System.arraycopy(weights, 0, newWeights, 0, count);
+        newDetectors[count] = detector;
+        newWeights[count] = weight;
+        detectors = newDetectors;
+        weights = newWeights;
+        suspicions = new float[count + 1];
+    }
+
+    /**
+     * Removes all detectors, every fix is then fully trusted.
+     */
+    void clear() {
+        detectors = new MockDetector[0];
+        weights = new float[0];
+        suspicions = new float[0];
+    }
+
+    int size() {
+        return detectors.length;
+    }
+
+    MockDetector getDetector(int index) {
+        return detectors[index];
+    }
+
+    /**
+     * Returns the suspicion the detector at the given index reported for the last fix.
+     */
+    float getSuspicion(int index) {
+        return suspicions[index];
+    }
+
+    /**
+     * Evaluates the next fix with every detector.
+     *
+     * @return the trust score of the fix, from 0 (mocked) to 1 (trusted)
+     */
+    float score(FixSample sample) {
+        float trust = 1;
+        for (int i = 0; i < detectors.length; i++) {
+            float suspicion = Math.max(0, Math.min(1, detectors[i].evaluate(sample)));
+            suspicions[i] = suspicion;
+            trust *= 1 - weights[i] * suspicion;
+        }
+        return trust;
+    }
+
+    void reset() {
+        for (MockDetector detector : detectors)
+            detector.reset();
+    }
+}
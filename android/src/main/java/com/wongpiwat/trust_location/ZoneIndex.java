@@ -0,0 +1,322 @@
+package com.wongpiwat.trust_location;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable grid index over trusted zones (polygons and circles) that tells which zone contains a coordinate.
+ * Every zone is registered in the grid cells its bounding box covers, so a query only tests the few zones of a
+ * single cell. Cells are found through an open-addressing hash table over primitive arrays, so queries do not
+ * allocate. Zones that would cover too many cells are kept aside and tested on every query.
+ * Polygons are tested in the plane of latitude and longitude, which is accurate for site-sized zones that do not
+ * cross the antimeridian. The bounding box of a circle that crosses it is split in two, one on each side.
+ */
+final class ZoneIndex {
+    /**
+     * Default grid cell size in degrees, about 1.1km of latitude
+     */
+    static final double DEFAULT_CELL_SIZE = 0.01;
+    static final int NO_ZONE = -1;
+    static final ZoneIndex EMPTY = new Builder().build();
+
+    private static final int MAX_CELLS_PER_ZONE = 4096;
+    private static final long EMPTY_KEY = Long.MIN_VALUE;
+    private static final double METERS_PER_DEGREE = Math.PI * Geo.EARTH_RADIUS / 180;
+
+    private final double cellSize;
+    // Zones
+    private final int[] ids;
+    private final boolean[] circle;
+    private final double[] minLatitude;
+    private final double[] maxLatitude;
+    private final double[] minLongitude;
+    private final double[] maxLongitude;
+    private final int[] vertexStart;
+    private final int[] vertexCount;
+    private final double[] vertices;
+    private final double[] circleLatitude;
+    private final double[] circleLongitude;
+    private final double[] radius;
+    private final int[] unindexed;
+    // Cells
+    private final long[] keys;
+    private final int[] cellStart;
+    private final int[] cellCount;
+    private final int[] cellZones;
+    private final int mask;
+
+    private ZoneIndex(Builder builder) {
+        cellSize = builder.cellSize;
+        int count = builder.ids.size();
+        ids = new int[count];
+        circle = new boolean[count];
+        minLatitude = new double[count];
+        maxLatitude = new double[count];
+        minLongitude = new double[count];
+        maxLongitude = new double[count];
+        vertexStart = new int[count];
+        vertexCount = new int[count];
+        circleLatitude = new double[count];
+        circleLongitude = new double[count];
+        radius = new double[count];
+        int totalVertices = 0;
+        for (double[] polygon : builder.polygons)
+            if (polygon != null) totalVertices += polygon.length / 2;
+        vertices = new double[totalVertices * 2];
+
+        Map<Long, List<Integer>> cells = new HashMap<>();
+        List<Integer> unindexedZones = new ArrayList<>();
+        int nextVertex = 0;
+        for (int zone = 0; zone < count; zone++) {
+            ids[zone] = builder.ids.get(zone);
+            double[] polygon = builder.polygons.get(zone);
+            if (polygon == null) {
+                double[] c = builder.circles.get(zone);
+                circle[zone] = true;
+                circleLatitude[zone] = c[0];
+                circleLongitude[zone] = c[1];
+                radius[zone] = c[2];
+                double latitudeDelta = c[2] / METERS_PER_DEGREE;
+                // The widest longitude extent of the circle, or all longitudes if it covers a pole
+                double longitudeDelta = Math.abs(c[0]) + latitudeDelta >= 90 ? 180 : Math.toDegrees(Math.asin(
+                        Math.sin(Math.toRadians(latitudeDelta)) / Math.cos(Math.toRadians(c[0]))));
+                minLatitude[zone] = Math.max(-90, c[0] - latitudeDelta);
+                maxLatitude[zone] = Math.min(90, c[0] + latitudeDelta);
+                // Beyond 180 degrees east or west if the circle crosses the antimeridian
+                minLongitude[zone] = longitudeDelta >= 180 ? -180 : c[1] - longitudeDelta;
+                maxLongitude[zone] = longitudeDelta >= 180 ? 180 : c[1] + longitudeDelta;
+            } else {
+                vertexStart[zone] = nextVertex;
+                vertexCount[zone] = polygon.length / 2;
+                minLatitude[zone] = minLongitude[zone] = Double.POSITIVE_INFINITY;
+                maxLatitude[zone] = maxLongitude[zone] = Double.NEGATIVE_INFINITY;
+                for (int v = 0; v < polygon.length / 2; v++) {
+                    double latitude = polygon[2 * v];
+                    double longitude = polygon[2 * v + 1];
+                    vertices[2 * nextVertex] = latitude;
+                    vertices[2 * nextVertex + 1] = longitude;
+                    nextVertex++;
+                    minLatitude[zone] = Math.min(minLatitude[zone], latitude);
+                    maxLatitude[zone] = Math.max(maxLatitude[zone], latitude);
+                    minLongitude[zone] = Math.min(minLongitude[zone], longitude);
+                    maxLongitude[zone] = Math.max(maxLongitude[zone], longitude);
+                }
+            }
+
+            double[] longitudes = splitAtAntimeridian(minLongitude[zone], maxLongitude[zone]);
+            long columns = 0;
+            for (int range = 0; range < longitudes.length; range += 2)
+                columns += cell(longitudes[range + 1]) - cell(longitudes[range]) + 1;
+            long fromY = cell(minLatitude[zone]);
+            long toY = cell(maxLatitude[zone]);
+            if (columns * (toY - fromY + 1) > MAX_CELLS_PER_ZONE) {
+                unindexedZones.add(zone);
+                continue;
+            }
+            for (int range = 0; range < longitudes.length; range += 2)
+                for (long y = fromY; y <= toY; y++)
+                    for (long x = cell(longitudes[range]); x <= cell(longitudes[range + 1]); x++) {
+                        Long key = key((int) x, (int) y);
+                        List<Integer> zones = cells.get(key);
+                        if (zones == null) {
+                            zones = new ArrayList<>();
+                            cells.put(key, zones);
+                        }
+                        zones.add(zone);
+                    }
+        }
+        unindexed = new int[unindexedZones.size()];
+        for (int i = 0; i < unindexed.length; i++)
+            unindexed[i] = unindexedZones.get(i);
+
+        int capacity = Integer.highestOneBit(Math.max(1, cells.size()) * 2 - 1) << 1;
+        mask = capacity - 1;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY_KEY);
+        cellStart = new int[capacity];
+        cellCount = new int[capacity];
+        int totalEntries = 0;
+        for (List<Integer> zones : cells.values())
+            totalEntries += zones.size();
+        cellZones = new int[totalEntries];
+        int nextEntry = 0;
+        for (Map.Entry<Long, List<Integer>> entry : cells.entrySet()) {
+            long key = entry.getKey();
+            int slot = slot(key);
+            while (keys[slot] != EMPTY_KEY)
+                slot = (slot + 1) & mask;
+            keys[slot] = key;
+            cellStart[slot] = nextEntry;
+            cellCount[slot] = entry.getValue().size();
+            // Zones were added in ascending order, so the first match is the zone that was added first
+            for (int zone : entry.getValue())
+                cellZones[nextEntry++] = zone;
+        }
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Returns the id of the zone that contains the coordinate. If several zones contain it, the one that was added
+     * first wins.
+     *
+     * @return the zone id, or {@link #NO_ZONE} if no zone contains the coordinate
+     */
+    int classify(double latitude, double longitude) {
+        int match = Integer.MAX_VALUE;
+        int slot = find(key((int) cell(longitude), (int) cell(latitude)));
+        if (slot >= 0) {
+            int end = cellStart[slot] + cellCount[slot];
+            for (int i = cellStart[slot]; i < end; i++) {
+                int zone = cellZones[i];
+                if (contains(zone, latitude, longitude)) {
+                    match = zone;
+                    break;
+                }
+            }
+        }
+        for (int zone : unindexed) {
+            if (zone >= match) break;
+            if (contains(zone, latitude, longitude)) {
+                match = zone;
+                break;
+            }
+        }
+        return match == Integer.MAX_VALUE ? NO_ZONE : ids[match];
+    }
+
+    private boolean contains(int zone, double latitude, double longitude) {
+        if (latitude < minLatitude[zone] || latitude > maxLatitude[zone]) return false;
+        if (longitude < minLongitude[zone] || longitude > maxLongitude[zone]) {
+            // The box of a circle across the antimeridian holds the longitudes of the far side shifted by 360
+            double shifted = longitude < minLongitude[zone] ? longitude + 360 : longitude - 360;
+            if (shifted < minLongitude[zone] || shifted > maxLongitude[zone]) return false;
+        }
+        if (circle[zone])
+            return Geo.distance(latitude, longitude, circleLatitude[zone], circleLongitude[zone]) <= radius[zone];
+        // Ray casting along the latitude axis
+        boolean inside = false;
+        int start = vertexStart[zone];
+        int count = vertexCount[zone];
+        for (int i = 0, j = count - 1; i < count; j = i++) {
+            double latitudeI = vertices[2 * (start + i)];
+            double longitudeI = vertices[2 * (start + i) + 1];
+            double latitudeJ = vertices[2 * (start + j)];
+            double longitudeJ = vertices[2 * (start + j) + 1];
+            if ((latitudeI > latitude) != (latitudeJ > latitude)
+                    && longitude < (longitudeJ - longitudeI) * (latitude - latitudeI) / (latitudeJ - latitudeI) + longitudeI)
+                inside = !inside;
+        }
+        return inside;
+    }
+
+    /**
+     * Splits a longitude range that extends beyond 180 degrees east or west into the ranges it covers on both sides
+     * of the antimeridian.
+     *
+     * @return the minimum and maximum longitude of every range, flattened into pairs
+     */
+    private static double[] splitAtAntimeridian(double minLongitude, double maxLongitude) {
+        if (minLongitude < -180) return new double[]{minLongitude + 360, 180, -180, maxLongitude};
+        if (maxLongitude > 180) return new double[]{minLongitude, 180, -180, maxLongitude - 360};
+        return new double[]{minLongitude, maxLongitude};
+    }
+
+    private long cell(double degrees) {
+        return (long) Math.floor(degrees / cellSize);
+    }
+
+    private static long key(int x, int y) {
+        return ((long) y << 32) | (x & 0xffffffffL);
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private int find(long key) {
+        int slot = slot(key);
+        while (keys[slot] != EMPTY_KEY) {
+            if (keys[slot] == key) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Collects zones and builds a {@link ZoneIndex}. Building is meant to happen off the thread that classifies fixes.
+     */
+    static final class Builder {
+        private final double cellSize;
+        private final List<Integer> ids = new ArrayList<>();
+        private final List<double[]> polygons = new ArrayList<>();
+        private final List<double[]> circles = new ArrayList<>();
+
+        Builder() {
+            this(DEFAULT_CELL_SIZE);
+        }
+
+        /**
+         * @param cellSize the grid cell size in degrees
+         */
+        Builder(double cellSize) {
+            if (!(cellSize > 0)) throw new IllegalArgumentException("cellSize must be positive: " + cellSize);
+            this.cellSize = cellSize;
+        }
+
+        /**
+         * Adds a polygon zone.
+         *
+         * @param id       the zone id reported for fixes inside the zone
+         * @param vertices the latitude and longitude of every vertex in degrees, flattened into pairs
+         */
+        Builder addPolygon(int id, double[] vertices) {
+            if (vertices.length < 6 || vertices.length % 2 != 0)
+                throw new IllegalArgumentException("a polygon needs at least 3 latitude and longitude pairs");
+            for (int v = 0; v < vertices.length; v += 2)
+                checkCoordinates(vertices[v], vertices[v + 1]);
+            ids.add(id);
+            polygons.add(vertices.clone());
+            circles.add(null);
+            return this;
+        }
+
+        /**
+         * Adds a circular zone.
+         *
+         * @param id        the zone id reported for fixes inside the zone
+         * @param latitude  the latitude of the center in degrees
+         * @param longitude the longitude of the center in degrees
+         * @param radius    the radius in meters
+         */
+        Builder addCircle(int id, double latitude, double longitude, double radius) {
+            checkCoordinates(latitude, longitude);
+            if (!(radius >= 0 && radius < Double.POSITIVE_INFINITY))
+                throw new IllegalArgumentException("radius must be finite and not negative: " + radius);
+            ids.add(id);
+            polygons.add(null);
+            circles.add(new double[]{latitude, longitude, radius});
+            return this;
+        }
+
+        /**
+         * Rejects coordinates out of range, NaN and infinities included, which would blow up the grid cells of a zone.
+         */
+        private static void checkCoordinates(double latitude, double longitude) {
+            if (!(latitude >= -90 && latitude <= 90))
+                throw new IllegalArgumentException("latitude must be between -90 and 90: " + latitude);
+            if (!(longitude >= -180 && longitude <= 180))
+                throw new IllegalArgumentException("longitude must be between -180 and 180: " + longitude);
+        }
+
+        ZoneIndex build() {
+            return new ZoneIndex(this);
+        }
+    }
+}
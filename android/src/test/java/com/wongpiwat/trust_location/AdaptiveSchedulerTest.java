@@ -0,0 +1,97 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Mode transitions and power budget of {@link AdaptiveScheduler}.
+ */
+public class AdaptiveSchedulerTest {
+    private static final double METERS_PER_DEGREE = Math.PI * Geo.EARTH_RADIUS / 180;
+
+    private AdaptiveScheduler scheduler;
+    private double latitude;
+    private long elapsedRealtimeNanos;
+
+    @Before
+    public void setUp() {
+        scheduler = new AdaptiveScheduler();
+        latitude = 13.75;
+        elapsedRealtimeNanos = 1000000000L;
+    }
+
+    /**
+     * Feeds a fix the given distance north of the previous one, a second later.
+     */
+    private boolean move(double meters, float speed) {
+        latitude += meters / METERS_PER_DEGREE;
+        elapsedRealtimeNanos += 1000000000L;
+        return scheduler.update(latitude, 100.5, 5, speed, elapsedRealtimeNanos);
+    }
+
+    @Test
+    public void backsOffAfterSeveralSlowFixes() {
+        assertEquals(AdaptiveScheduler.Mode.MOVING, scheduler.getMode());
+        assertFalse(move(0, 0));
+        assertFalse(move(0, 0.2f));
+        // The third slow fix in a row
+        assertTrue(move(0, 0));
+        assertEquals(AdaptiveScheduler.Mode.STATIONARY, scheduler.getMode());
+        assertEquals(LocationAssistant.Accuracy.MEDIUM, scheduler.getAccuracy());
+        assertEquals(30000, scheduler.getInterval());
+    }
+
+    @Test
+    public void rampsUpRightAway() {
+        for (int i = 0; i < 3; i++) move(0, 0);
+        assertTrue(move(20, 20));
+        assertEquals(AdaptiveScheduler.Mode.FAST, scheduler.getMode());
+        assertEquals(2000, scheduler.getInterval());
+        // A slow fix after driving is walking pace, not a stop
+        assertTrue(move(0, 0));
+        assertEquals(AdaptiveScheduler.Mode.MOVING, scheduler.getMode());
+    }
+
+    @Test
+    public void derivesSpeedFromFixes() {
+        move(0, -1);
+        // 20 m/s beyond the accuracy radii of both fixes
+        assertTrue(move(30, -1));
+        assertEquals(AdaptiveScheduler.Mode.FAST, scheduler.getMode());
+    }
+
+    @Test
+    public void ignoresJitterWhileParked() {
+        for (int i = 0; i < 20; i++) {
+            // Balanced-power fixes every 30 s, bouncing 40 m around the same place
+            elapsedRealtimeNanos += 30000000000L;
+            scheduler.update(latitude + (i % 2 == 0 ? 20 : -20) / METERS_PER_DEGREE, 100.5, 30, -1,
+                    elapsedRealtimeNanos);
+            if (i >= 2) assertEquals(AdaptiveScheduler.Mode.STATIONARY, scheduler.getMode());
+        }
+    }
+
+    @Test
+    public void leavingAnchorCountsAsMoving() {
+        for (int i = 0; i < 4; i++) move(0, 0);
+        assertEquals(AdaptiveScheduler.Mode.STATIONARY, scheduler.getMode());
+        // Slow, but drifted out of the radius around where the device settled
+        for (int i = 0; i < 7; i++) move(5, 0);
+        assertEquals(AdaptiveScheduler.Mode.MOVING, scheduler.getMode());
+    }
+
+    @Test
+    public void budgetCapsEveryMode() {
+        scheduler.setBudget(LocationAssistant.Accuracy.LOW, 10000);
+        move(20, 20);
+        assertEquals(AdaptiveScheduler.Mode.FAST, scheduler.getMode());
+        assertEquals(LocationAssistant.Accuracy.LOW, scheduler.getAccuracy());
+        assertEquals(10000, scheduler.getInterval());
+        scheduler.reset();
+        assertEquals(AdaptiveScheduler.Mode.MOVING, scheduler.getMode());
+    }
+}
@@ -0,0 +1,87 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writing, throttling and closing of the {@link FixCache} file.
+ */
+public class FixCacheTest {
+    private File file;
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("trust_location", ".fix");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        if (file.exists()) assertTrue(file.delete());
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) tasks.remove(0).run();
+    }
+
+    private static Fix fix(long seq) {
+        return new Fix(seq, Fix.FLAG_HAS_FIX, 13.75, 100.5 + seq * 1e-5, 5, 1600000000000L + seq * 1000,
+                seq * 1000000000L, 1, ZoneIndex.NO_ZONE, Double.NaN, Double.NaN);
+    }
+
+    @Test
+    public void throttlesWrites() {
+        FixCache cache = new FixCache(file, executor, 60000);
+        cache.offer(fix(1));
+        runTasks();
+        assertEquals(1, cache.load().seq);
+        // Within the write interval, kept until the next flush
+        cache.offer(fix(2));
+        assertEquals(0, tasks.size());
+        cache.flush();
+        runTasks();
+        assertEquals(2, cache.load().seq);
+        cache.close();
+        runTasks();
+    }
+
+    @Test
+    public void closeWritesPendingFix() {
+        FixCache cache = new FixCache(file, executor, 60000);
+        cache.offer(fix(1));
+        cache.offer(fix(2));
+        cache.close();
+        // The write runs before the file is closed
+        assertEquals(2, tasks.size());
+        runTasks();
+        assertEquals(2, cache.load().seq);
+        // A later offer opens the file again
+        cache.offer(fix(3));
+        cache.close();
+        runTasks();
+        assertEquals(3, cache.load().seq);
+    }
+
+    @Test
+    public void ignoresMissingFile() {
+        assertNull(new FixCache(file, executor, 0).load());
+    }
+}
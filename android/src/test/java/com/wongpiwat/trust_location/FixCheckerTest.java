@@ -0,0 +1,92 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scoring, threshold and smoothing of fixes by {@link FixChecker}.
+ */
+public class FixCheckerTest {
+    private Metrics metrics;
+    private FixChecker checker;
+    private FixSample sample;
+
+    @Before
+    public void setUp() {
+        metrics = new Metrics();
+        checker = new FixChecker(metrics);
+        sample = new FixSample();
+        sample.latitude = 13.75;
+        sample.longitude = 100.5;
+        sample.accuracy = 5;
+        sample.hasAccuracy = true;
+        sample.time = 1600000000000L;
+        sample.elapsedRealtimeNanos = 1000000000L;
+    }
+
+    /**
+     * Moves the sample a second on and the given distance north.
+     */
+    private boolean next(double degrees) {
+        sample.latitude += degrees;
+        sample.time += 1000;
+        sample.elapsedRealtimeNanos += 1000000000L;
+        return checker.check(sample);
+    }
+
+    @Test
+    public void flagsImplausibleFix() {
+        assertTrue(checker.check(sample));
+        assertEquals(1, checker.getTrust(), 1e-6);
+        sample.fromMockProvider = true;
+        assertFalse(next(0));
+        assertEquals(0, checker.getTrust(), 1e-6);
+        assertEquals(2, metrics.get(Metrics.FIXES_RECEIVED));
+        assertEquals(1, metrics.get(Metrics.FIXES_FLAGGED));
+    }
+
+    @Test
+    public void appliesThreshold() {
+        checker.check(sample);
+        // About 11 km within a second scores 0.2
+        checker.setTrustThreshold(0.1f);
+        assertTrue(next(0.1));
+        checker.setTrustThreshold(0.5f);
+        assertFalse(next(0.1));
+    }
+
+    @Test
+    public void smoothsOnlyPlausibleFixes() {
+        assertTrue(Double.isNaN(checker.getSmoothedLatitude()));
+        checker.setSmoothing(true, KalmanSmoother.DEFAULT_PROCESS_NOISE);
+        checker.check(sample);
+        assertEquals(13.75, checker.getSmoothedLatitude(), 1e-9);
+        assertEquals(100.5, checker.getSmoothedLongitude(), 1e-9);
+        assertFalse(next(1));
+        assertTrue(Double.isNaN(checker.getSmoothedLatitude()));
+        // The teleport did not drag the estimate
+        checker.getTrustScorer().reset();
+        sample.latitude = 13.75;
+        assertTrue(next(0));
+        assertEquals(13.75, checker.getSmoothedLatitude(), 1e-9);
+    }
+
+    @Test
+    public void restartsSmoothing() {
+        checker.setSmoothing(true, KalmanSmoother.DEFAULT_PROCESS_NOISE);
+        checker.check(sample);
+        checker.restartSmoothing();
+        checker.getTrustScorer().reset();
+        sample.latitude = 13.76;
+        checker.check(sample);
+        assertEquals(13.76, checker.getSmoothedLatitude(), 1e-9);
+        checker.setSmoothing(false, KalmanSmoother.DEFAULT_PROCESS_NOISE);
+        checker.restartSmoothing();
+        checker.check(sample);
+        assertTrue(Double.isNaN(checker.getSmoothedLatitude()));
+    }
+}
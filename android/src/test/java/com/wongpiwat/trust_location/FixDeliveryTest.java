@@ -0,0 +1,86 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Choice of frames and fixes to deliver by {@link FixDelivery}.
+ */
+public class FixDeliveryTest {
+    private static Fix publish(FixPipeline pipeline, double latitude) {
+        return pipeline.publish(latitude, 100.5, 5, 1600000000000L, 1000000000L, 1, Double.NaN, Double.NaN);
+    }
+
+    private static ByteBuffer encode(BinaryFrame frame) {
+        ByteBuffer buffer = ByteBuffer.allocate(frame.maxSize());
+        frame.writeTo(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void deliversSingleFixAsSnapshot() {
+        FixPipeline pipeline = new FixPipeline(4);
+        FixDelivery delivery = new FixDelivery(pipeline);
+        Fix fix = publish(pipeline, 13.75);
+        assertTrue(delivery.take());
+        assertSame(fix, delivery.getFrame());
+        assertNull(delivery.getFlagged());
+        assertSame(fix, delivery.getAccepted());
+        assertEquals(fix.seq, delivery.getDeliveredSeq());
+        assertFalse(delivery.take());
+    }
+
+    @Test
+    public void deliversBurstAsHistory() {
+        FixPipeline pipeline = new FixPipeline(4);
+        FixDelivery delivery = new FixDelivery(pipeline);
+        publish(pipeline, 13.75);
+        Fix last = publish(pipeline, 13.76);
+        assertTrue(delivery.take());
+        ByteBuffer buffer = encode(delivery.getFrame());
+        assertEquals(FixHistory.TAG, buffer.get());
+        assertEquals(2, buffer.getInt());
+        assertSame(last, delivery.getAccepted());
+    }
+
+    @Test
+    public void acceptedFixIsNotLostToMockFlag() {
+        FixPipeline pipeline = new FixPipeline(4);
+        FixDelivery delivery = new FixDelivery(pipeline);
+        Fix fix = publish(pipeline, 13.75);
+        // The next fix is rejected before the delivery runs
+        Fix mocked = pipeline.updateFlags(Fix.FLAG_MOCK, 0);
+        assertTrue(delivery.take());
+        ByteBuffer buffer = encode(delivery.getFrame());
+        assertEquals(FixHistory.TAG, buffer.get());
+        assertEquals(1, buffer.getInt());
+        assertEquals(Fix.FLAG_HAS_FIX, buffer.getInt());
+        assertEquals(fix.seq, buffer.getLong());
+        assertSame(mocked, delivery.getFlagged());
+        Fix accepted = delivery.getAccepted();
+        assertEquals(fix.seq, accepted.seq);
+        assertFalse(accepted.isMock());
+        assertEquals(mocked.seq, delivery.getDeliveredSeq());
+    }
+
+    @Test
+    public void flagUpdateAloneIsDeliveredAsSnapshot() {
+        FixPipeline pipeline = new FixPipeline(4);
+        FixDelivery delivery = new FixDelivery(pipeline);
+        publish(pipeline, 13.75);
+        delivery.take();
+        Fix mocked = pipeline.updateFlags(Fix.FLAG_MOCK, 0);
+        assertTrue(delivery.take());
+        assertSame(mocked, delivery.getFrame());
+        assertNull(delivery.getFlagged());
+        assertNull(delivery.getAccepted());
+    }
+}
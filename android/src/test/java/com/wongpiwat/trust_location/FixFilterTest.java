@@ -0,0 +1,82 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The three filters of {@link FixFilter} and their counters.
+ */
+public class FixFilterTest {
+    private static final double METERS_PER_DEGREE = Math.PI * Geo.EARTH_RADIUS / 180;
+
+    private Metrics metrics;
+    private FixFilter filter;
+
+    @Before
+    public void setUp() {
+        metrics = new Metrics();
+        filter = new FixFilter(metrics);
+    }
+
+    private boolean accept(double metersNorth, double accuracy) {
+        return filter.accept(13.75 + metersNorth / METERS_PER_DEGREE, 100.5, accuracy);
+    }
+
+    @Test
+    public void disabledByDefault() {
+        assertFalse(filter.isEnabled());
+        assertTrue(accept(0, 5));
+        assertTrue(accept(0, 5));
+    }
+
+    @Test
+    public void suppressesDuplicates() {
+        filter.setThresholds(0, 0, true);
+        assertTrue(filter.isEnabled());
+        assertTrue(accept(0, 5));
+        assertFalse(accept(0, 5));
+        assertFalse(accept(0, 8));
+        // A better accuracy is news
+        assertTrue(accept(0, 4));
+        assertEquals(2, metrics.get(Metrics.FILTERED_DUPLICATES));
+    }
+
+    @Test
+    public void requiresDisplacement() {
+        filter.setThresholds(10, 0, false);
+        assertTrue(accept(0, 5));
+        assertFalse(accept(9, 5));
+        // Measured from the last fix passed on, not the dropped one
+        assertTrue(accept(11, 5));
+        assertEquals(1, metrics.get(Metrics.FILTERED_DISPLACEMENT));
+    }
+
+    @Test
+    public void requiresAccuracyImprovementWithinRadius() {
+        filter.setThresholds(0, 3, false);
+        assertTrue(accept(0, 10));
+        assertFalse(accept(5, 9));
+        assertTrue(accept(5, 6));
+        // Outside of the accuracy radius of the last fix
+        assertTrue(accept(20, 6));
+        assertEquals(1, metrics.get(Metrics.FILTERED_ACCURACY));
+    }
+
+    @Test
+    public void improvedAccuracyOverridesDisplacement() {
+        filter.setThresholds(10, 3, false);
+        assertTrue(accept(0, 10));
+        assertTrue(accept(1, 5));
+        filter.reset();
+        assertTrue(accept(1, 5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeThreshold() {
+        filter.setThresholds(-1, 0, false);
+    }
+}
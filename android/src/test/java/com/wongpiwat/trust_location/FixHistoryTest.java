@@ -0,0 +1,42 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Ring buffer order, capacity changes and bounds of {@link FixHistory}.
+ */
+public class FixHistoryTest {
+    private static void add(FixHistory history, long firstSeq, int count) {
+        for (long seq = firstSeq; seq < firstSeq + count; seq++)
+            history.add(Fix.FLAG_HAS_FIX, seq, 13.75, 100.5, 5, 1600000000000L + seq * 1000, seq * 1000000000L, 1,
+                    ZoneIndex.NO_ZONE, Double.NaN, Double.NaN);
+    }
+
+    @Test
+    public void overwritesOldestFixes() {
+        FixHistory history = new FixHistory(4);
+        add(history, 1, 6);
+        assertEquals(4, history.size());
+        assertEquals(4, history.countSince(0));
+        assertEquals(2, history.countSince(4));
+        assertEquals(1, history.countBetween(3, 4));
+    }
+
+    @Test
+    public void keepsNewestFixesWhenShrinking() {
+        FixHistory history = new FixHistory(8);
+        add(history, 1, 6);
+        history.setCapacity(3);
+        assertEquals(3, history.capacity());
+        assertEquals(3, history.countSince(0));
+        assertEquals(0, history.countSince(6));
+        assertEquals(1, history.countBetween(0, 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityAboveMaximum() {
+        new FixHistory(4).setCapacity(FixHistory.MAX_CAPACITY + 1);
+    }
+}
@@ -0,0 +1,90 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishing, filtering and flagging of fixes by {@link FixPipeline}.
+ */
+public class FixPipelineTest {
+    private static Fix publish(FixPipeline pipeline, double latitude) {
+        return pipeline.publish(latitude, 100.5, 5, 1600000000000L, 1000000000L, 1, Double.NaN, Double.NaN);
+    }
+
+    @Test
+    public void publishesInSequence() {
+        FixPipeline pipeline = new FixPipeline(4);
+        assertFalse(pipeline.getLatest().hasFix());
+        Fix first = publish(pipeline, 13.75);
+        Fix second = publish(pipeline, 13.76);
+        assertEquals(first.seq + 1, second.seq);
+        assertSame(second, pipeline.getLatest());
+        assertEquals(2, pipeline.getHistory().countSince(0));
+    }
+
+    @Test
+    public void classifiesAgainstZones() {
+        FixPipeline pipeline = new FixPipeline(4);
+        pipeline.setZones(new ZoneIndex.Builder().addCircle(7, 13.75, 100.5, 100).build());
+        assertEquals(7, publish(pipeline, 13.75).zone);
+        assertEquals(ZoneIndex.NO_ZONE, publish(pipeline, 14.75).zone);
+    }
+
+    @Test
+    public void droppedFixIsNotPublished() {
+        Metrics metrics = new Metrics();
+        FixFilter filter = new FixFilter(metrics);
+        filter.setThresholds(10, 0, false);
+        FixPipeline pipeline = new FixPipeline(4);
+        pipeline.setFilter(filter);
+        Fix first = publish(pipeline, 13.75);
+        // About a meter away
+        assertNull(publish(pipeline, 13.75001));
+        assertSame(first, pipeline.getLatest());
+        assertEquals(1, pipeline.getHistory().size());
+        assertEquals(1, metrics.get(Metrics.FILTERED_DISPLACEMENT));
+    }
+
+    @Test
+    public void updatesFlagsOnlyOnChange() {
+        FixPipeline pipeline = new FixPipeline(4);
+        Fix fix = publish(pipeline, 13.75);
+        Fix mocked = pipeline.updateFlags(Fix.FLAG_MOCK, 0);
+        assertTrue(mocked.isMock());
+        assertEquals(fix.seq + 1, mocked.seq);
+        assertEquals(fix.latitude, mocked.latitude, 0);
+        assertSame(mocked, pipeline.updateFlags(Fix.FLAG_MOCK, 0));
+        assertFalse(pipeline.updateFlags(0, Fix.FLAG_MOCK).isMock());
+        // Flag updates are not new fixes
+        assertEquals(1, pipeline.getHistory().size());
+    }
+
+    @Test
+    public void restoresOnlyIntoEmptyPipeline() {
+        FixPipeline pipeline = new FixPipeline(4);
+        Fix cached = new Fix(42, Fix.FLAG_HAS_FIX, 13.75, 100.5, 5, 1600000000000L, 1000000000L, 1,
+                ZoneIndex.NO_ZONE, Double.NaN, Double.NaN);
+        assertTrue(pipeline.publishIfEmpty(cached, Fix.FLAG_HAS_FIX | Fix.FLAG_CACHED));
+        assertEquals(1, pipeline.getLatest().seq);
+        assertEquals(Fix.FLAG_HAS_FIX | Fix.FLAG_CACHED, pipeline.getLatest().flags);
+        assertFalse(pipeline.publishIfEmpty(cached, Fix.FLAG_HAS_FIX));
+    }
+
+    @Test
+    public void snapshotIsNotPublished() {
+        FixPipeline pipeline = new FixPipeline(4);
+        pipeline.setZones(new ZoneIndex.Builder().addCircle(7, 13.75, 100.5, 100).build());
+        Fix latest = publish(pipeline, 14.75);
+        Fix snapshot = pipeline.snapshot(Fix.FLAG_HAS_FIX, 13.75, 100.5, 5, 1600000001000L, 2000000000L, 1,
+                Double.NaN, Double.NaN);
+        assertEquals(latest.seq, snapshot.seq);
+        assertEquals(7, snapshot.zone);
+        assertSame(latest, pipeline.getLatest());
+        assertEquals(1, pipeline.getHistory().size());
+    }
+}
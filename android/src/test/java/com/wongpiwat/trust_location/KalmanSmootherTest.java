@@ -0,0 +1,83 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Smoothing of noisy fixes by {@link KalmanSmoother}.
+ */
+public class KalmanSmootherTest {
+    private static final double METERS_PER_DEGREE = Math.PI * Geo.EARTH_RADIUS / 180;
+
+    @Test
+    public void startsAtFirstFix() {
+        KalmanSmoother smoother = new KalmanSmoother(KalmanSmoother.DEFAULT_PROCESS_NOISE);
+        smoother.update(13.75, 100.5, 8, 1000000000L);
+        assertEquals(13.75, smoother.getLatitude(), 0);
+        assertEquals(100.5, smoother.getLongitude(), 0);
+        assertEquals(8, smoother.getAccuracy(), 1e-9);
+    }
+
+    @Test
+    public void reducesNoiseOfStationaryFixes() {
+        Random random = new Random(1);
+        KalmanSmoother smoother = new KalmanSmoother(0.1);
+        double rawError = 0;
+        double smoothedError = 0;
+        for (int i = 0; i < 200; i++) {
+            double latitude = 13.75 + random.nextGaussian() * 10 / METERS_PER_DEGREE;
+            smoother.update(latitude, 100.5, 10, (i + 1) * 1000000000L);
+            if (i < 20) continue;
+            rawError += Math.abs(latitude - 13.75);
+            smoothedError += Math.abs(smoother.getLatitude() - 13.75);
+        }
+        assertTrue(smoothedError * 3 < rawError);
+        assertTrue(smoother.getAccuracy() < 10);
+    }
+
+    @Test
+    public void preciseFixesPullHarder() {
+        KalmanSmoother precise = new KalmanSmoother(KalmanSmoother.DEFAULT_PROCESS_NOISE);
+        KalmanSmoother coarse = new KalmanSmoother(KalmanSmoother.DEFAULT_PROCESS_NOISE);
+        precise.update(13.75, 100.5, 20, 1000000000L);
+        coarse.update(13.75, 100.5, 20, 1000000000L);
+        precise.update(13.76, 100.5, 2, 2000000000L);
+        coarse.update(13.76, 100.5, 200, 2000000000L);
+        assertTrue(precise.getLatitude() > 13.759);
+        assertTrue(coarse.getLatitude() < 13.751);
+        assertTrue(precise.getAccuracy() < coarse.getAccuracy());
+    }
+
+    @Test
+    public void growsUncertainWithTime() {
+        KalmanSmoother smoother = new KalmanSmoother(KalmanSmoother.DEFAULT_PROCESS_NOISE);
+        smoother.update(13.75, 100.5, 5, 1000000000L);
+        smoother.update(13.75, 100.5, 5, 2000000000L);
+        double settled = smoother.getAccuracy();
+        assertTrue(settled < 5);
+        // After a long gap the old estimate is barely trusted and the new fix wins
+        smoother.update(13.76, 100.5, 5, 600000000000L);
+        assertEquals(13.76, smoother.getLatitude(), 1e-4);
+        assertTrue(smoother.getAccuracy() > settled);
+    }
+
+    @Test
+    public void crossesAntimeridian() {
+        KalmanSmoother smoother = new KalmanSmoother(KalmanSmoother.DEFAULT_PROCESS_NOISE);
+        smoother.update(0, 179.9999, 5, 1000000000L);
+        smoother.update(0, -179.9999, 5, 2000000000L);
+        assertTrue(Math.abs(smoother.getLongitude()) > 179.9998);
+        smoother.reset();
+        smoother.update(0, 10, 5, 3000000000L);
+        assertEquals(10, smoother.getLongitude(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveNoise() {
+        new KalmanSmoother(0);
+    }
+}
@@ -0,0 +1,57 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bucketing and percentiles of {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void bucketsCoverAllValues() {
+        for (long value : new long[]{0, 1, 7, 8, 15, 16, 1000, 123456789, Long.MAX_VALUE / 2}) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(LatencyHistogram.lowerBound(bucket) <= value);
+            assertTrue(value < LatencyHistogram.lowerBound(bucket + 1));
+        }
+        // Exact below 16 ns
+        assertEquals(LatencyHistogram.bucket(14) + 1, LatencyHistogram.bucket(15));
+        LatencyHistogram histogram = new LatencyHistogram();
+        // The largest duration still has a bucket
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1, histogram.getCount());
+    }
+
+    @Test
+    public void percentilesWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (long nanos = 1; nanos <= 1000; nanos++) histogram.record(nanos * 1000);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500000, histogram.getPercentile(50), 500000 * 0.125);
+        assertEquals(990000, histogram.getPercentile(99), 990000 * 0.125);
+        assertTrue(histogram.getPercentile(50) >= 500000);
+        // Never above the maximum
+        assertEquals(1000000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void snapshotAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(3000);
+        assertEquals(2L, histogram.snapshot(false).get("count"));
+        Map<String, Object> snapshot = histogram.snapshot(true);
+        assertEquals(2L, snapshot.get("count"));
+        assertEquals(1500L, snapshot.get("mean"));
+        assertEquals(3000L, snapshot.get("p99"));
+        assertEquals(3000L, snapshot.get("max"));
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0L, histogram.snapshot(false).get("max"));
+    }
+}
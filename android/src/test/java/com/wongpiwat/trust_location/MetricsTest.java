@@ -0,0 +1,68 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counters and snapshots of {@link Metrics}.
+ */
+public class MetricsTest {
+    @Test
+    public void snapshotNamesEveryCounter() {
+        Metrics metrics = new Metrics();
+        metrics.increment(Metrics.FIXES_RECEIVED);
+        metrics.add(Metrics.TRACK_DROPPED, 3);
+        metrics.fixLatency.record(1000);
+        Map<String, Object> snapshot = metrics.snapshot(false);
+        assertEquals(1L, snapshot.get("fixesReceived"));
+        assertEquals(0L, snapshot.get("filteredAccuracy"));
+        assertEquals(3L, snapshot.get("trackDropped"));
+        assertEquals(1L, ((Map<?, ?>) snapshot.get("fixLatency")).get("count"));
+        assertTrue(snapshot.get("connectTime") instanceof Map);
+        // Every counter and the three histograms
+        assertEquals(Metrics.PLATFORM_REQUESTS + 1 + 3, snapshot.size());
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        Metrics metrics = new Metrics();
+        metrics.increment(Metrics.CONNECTS);
+        metrics.methodCallTime.record(5);
+        assertEquals(1L, metrics.snapshot(true).get("connects"));
+        assertEquals(0, metrics.get(Metrics.CONNECTS));
+        assertEquals(0, metrics.methodCallTime.getCount());
+    }
+
+    @Test
+    public void resetLosesNothingRecordedMeanwhile() throws InterruptedException {
+        final Metrics metrics = new Metrics();
+        final int recordings = 200000;
+        Thread recorder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < recordings; i++) {
+                    metrics.increment(Metrics.FIXES_RECEIVED);
+                    metrics.fixLatency.record(i);
+                }
+            }
+        });
+        recorder.start();
+        long received = 0;
+        long recorded = 0;
+        while (recorder.isAlive()) {
+            Map<String, Object> snapshot = metrics.snapshot(true);
+            received += (Long) snapshot.get("fixesReceived");
+            recorded += (Long) ((Map<?, ?>) snapshot.get("fixLatency")).get("count");
+        }
+        recorder.join();
+        Map<String, Object> snapshot = metrics.snapshot(true);
+        received += (Long) snapshot.get("fixesReceived");
+        recorded += (Long) ((Map<?, ?>) snapshot.get("fixLatency")).get("count");
+        assertEquals(recordings, received);
+        assertEquals(recordings, recorded);
+    }
+}
@@ -0,0 +1,112 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The suspicion that every {@link MockDetector} reports for typical tracks of real and mocked fixes.
+ */
+public class MockDetectorTest {
+    private static final double DELTA = 1e-6;
+
+    private FixSample sample;
+
+    @Before
+    public void setUp() {
+        sample = new FixSample();
+        sample.latitude = 13.75;
+        sample.longitude = 100.5;
+        sample.accuracy = 5;
+        sample.hasAccuracy = true;
+        sample.altitude = 12.5;
+        sample.hasAltitude = true;
+        sample.time = 1600000000000L;
+        sample.elapsedRealtimeNanos = 1000000000L;
+    }
+
+    /**
+     * Moves the sample the given distance to the north, a second later.
+     */
+    private void next(double meters) {
+        sample.latitude += meters / (Math.PI * Geo.EARTH_RADIUS / 180);
+        sample.time += 1000;
+        sample.elapsedRealtimeNanos += 1000000000L;
+    }
+
+    @Test
+    public void providerFlag() {
+        ProviderFlagDetector detector = new ProviderFlagDetector();
+        assertEquals(0, detector.evaluate(sample), DELTA);
+        sample.fromMockProvider = true;
+        assertEquals(1, detector.evaluate(sample), DELTA);
+    }
+
+    @Test
+    public void mockProximity() {
+        MockProximityDetector detector = new MockProximityDetector();
+        assertEquals(0, detector.evaluate(sample), DELTA);
+        sample.fromMockProvider = true;
+        assertEquals(1, detector.evaluate(sample), DELTA);
+        // Close to the mock fix, even with the flag toggled off
+        sample.fromMockProvider = false;
+        next(500);
+        assertEquals(1, detector.evaluate(sample), DELTA);
+        next(1000);
+        assertEquals(0, detector.evaluate(sample), DELTA);
+        next(-1500);
+        for (int good = 3; good < 20; good++) assertEquals(1, detector.evaluate(sample), DELTA);
+        // Cleared by the 20th good fix in a row
+        assertEquals(0, detector.evaluate(sample), DELTA);
+    }
+
+    @Test
+    public void impossibleSpeed() {
+        ImpossibleSpeedDetector detector = new ImpossibleSpeedDetector();
+        assertEquals(0, detector.evaluate(sample), DELTA);
+        // Both accuracy radii count as slack
+        next(10 + ImpossibleSpeedDetector.DEFAULT_MAX_SPEED);
+        assertEquals(0, detector.evaluate(sample), DELTA);
+        next(10 + 1.5 * ImpossibleSpeedDetector.DEFAULT_MAX_SPEED);
+        assertEquals(0.5, detector.evaluate(sample), 1e-3);
+        next(100000);
+        assertEquals(1, detector.evaluate(sample), DELTA);
+        detector.reset();
+        next(100000);
+        assertEquals(0, detector.evaluate(sample), DELTA);
+    }
+
+    @Test
+    public void clockDrift() {
+        ClockDriftDetector detector = new ClockDriftDetector();
+        assertEquals(0, detector.evaluate(sample), DELTA);
+        next(1);
+        assertEquals(0, detector.evaluate(sample), DELTA);
+        // The wall clock jumps an hour ahead of the time since boot
+        sample.time += 3600000;
+        next(1);
+        assertEquals(1, detector.evaluate(sample), DELTA);
+        // A fix from the future of its own arrival
+        next(1);
+        sample.receivedElapsedRealtimeNanos = sample.elapsedRealtimeNanos - 2000000000L;
+        assertEquals(1, detector.evaluate(sample), DELTA);
+        sample.elapsedRealtimeNanos = 0;
+        assertEquals(0.5, detector.evaluate(sample), DELTA);
+    }
+
+    @Test
+    public void accuracyPattern() {
+        AccuracyPatternDetector detector = new AccuracyPatternDetector();
+        for (int i = 0; i <= 10; i++) assertEquals(0, detector.evaluate(sample), DELTA);
+        // Bit-identical accuracy and altitude, ten times in a row and more
+        for (int i = 1; i <= 10; i++) detector.evaluate(sample);
+        assertEquals(1, detector.evaluate(sample), DELTA);
+        sample.accuracy = 4;
+        sample.altitude = 0;
+        assertEquals(0.25, detector.evaluate(sample), DELTA);
+        sample.hasAccuracy = false;
+        sample.hasAltitude = false;
+        assertEquals(0.5, detector.evaluate(sample), DELTA);
+    }
+}
@@ -0,0 +1,77 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The tightest requirement of all subscribers kept by {@link Subscriptions}.
+ */
+public class SubscriptionsTest {
+    @Test
+    public void tracksTightestRequirement() {
+        Subscriptions subscriptions = new Subscriptions();
+        assertTrue(subscriptions.isEmpty());
+        assertNull(subscriptions.getAccuracy());
+        assertTrue(subscriptions.put(1, 1, 30000, LocationAssistant.Accuracy.LOW));
+        assertTrue(subscriptions.put(1, 2, 5000, LocationAssistant.Accuracy.MEDIUM));
+        // Looser on both, nothing changes
+        assertFalse(subscriptions.put(2, 1, 60000, LocationAssistant.Accuracy.PASSIVE));
+        assertEquals(LocationAssistant.Accuracy.MEDIUM, subscriptions.getAccuracy());
+        assertEquals(5000, subscriptions.getInterval());
+        assertTrue(subscriptions.remove(1, 2));
+        assertEquals(LocationAssistant.Accuracy.LOW, subscriptions.getAccuracy());
+        assertEquals(30000, subscriptions.getInterval());
+        assertFalse(subscriptions.remove(1, 2));
+    }
+
+    @Test
+    public void tightensSchedulerRequirement() {
+        Subscriptions subscriptions = new Subscriptions();
+        // Without subscribers the scheduler decides alone
+        assertEquals(LocationAssistant.Accuracy.MEDIUM,
+                subscriptions.tightenAccuracy(LocationAssistant.Accuracy.MEDIUM));
+        assertEquals(30000, subscriptions.tightenInterval(30000));
+        subscriptions.put(1, 1, 1000, LocationAssistant.Accuracy.HIGH);
+        // A stationary scheduler does not starve the subscriber
+        assertEquals(LocationAssistant.Accuracy.HIGH,
+                subscriptions.tightenAccuracy(LocationAssistant.Accuracy.MEDIUM));
+        assertEquals(1000, subscriptions.tightenInterval(30000));
+        subscriptions.put(1, 1, 60000, LocationAssistant.Accuracy.LOW);
+        // A looser subscriber does not slow a moving scheduler down
+        assertEquals(LocationAssistant.Accuracy.HIGH, subscriptions.tightenAccuracy(LocationAssistant.Accuracy.HIGH));
+        assertEquals(2000, subscriptions.tightenInterval(2000));
+    }
+
+    @Test
+    public void replacesRequirementOfSameSubscriber() {
+        Subscriptions subscriptions = new Subscriptions();
+        subscriptions.put(1, 1, 1000, LocationAssistant.Accuracy.HIGH);
+        assertTrue(subscriptions.put(1, 1, 10000, LocationAssistant.Accuracy.LOW));
+        assertEquals(10000, subscriptions.getInterval());
+        assertEquals(LocationAssistant.Accuracy.LOW, subscriptions.getAccuracy());
+    }
+
+    @Test
+    public void removesAllOfOneOwner() {
+        Subscriptions subscriptions = new Subscriptions();
+        // Ids are only unique within their owner
+        subscriptions.put(1, 7, 1000, LocationAssistant.Accuracy.HIGH);
+        subscriptions.put(1, -1, 2000, LocationAssistant.Accuracy.HIGH);
+        subscriptions.put(2, 7, 5000, LocationAssistant.Accuracy.LOW);
+        assertTrue(subscriptions.removeAll(1));
+        assertEquals(5000, subscriptions.getInterval());
+        assertFalse(subscriptions.removeAll(1));
+        assertTrue(subscriptions.removeAll(2));
+        assertTrue(subscriptions.isEmpty());
+        assertEquals(0, subscriptions.getInterval());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeInterval() {
+        new Subscriptions().put(1, 1, -1, LocationAssistant.Accuracy.HIGH);
+    }
+}
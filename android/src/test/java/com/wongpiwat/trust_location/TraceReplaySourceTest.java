@@ -0,0 +1,147 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Timing of the fixes replayed by {@link TraceReplaySource}, and replays through the {@link FixChecker}.
+ */
+public class TraceReplaySourceTest {
+    private static final long START_NANOS = 5000000000L;
+
+    private static final LocationSource.Clock FIXED_CLOCK = new LocationSource.Clock() {
+        @Override
+        public long elapsedRealtimeNanos() {
+            return START_NANOS;
+        }
+    };
+
+    /**
+     * A walk to the north at about 1.1 m/s, one fix per second.
+     */
+    private static Trace walk(int count) {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < count; i++)
+            csv.append(1600000000000L + i * 1000).append(',').append(13.75 + i * 1e-5).append(",100.5,5\n");
+        return Trace.parse(csv.toString(), Trace.Format.CSV);
+    }
+
+    private static final class Recorder implements LocationSource.Sink {
+        final List<long[]> times = new ArrayList<>();
+        final CountDownLatch ended = new CountDownLatch(1);
+
+        @Override
+        public void onFix(FixSample sample) {
+            times.add(new long[]{sample.time, sample.elapsedRealtimeNanos, sample.receivedElapsedRealtimeNanos});
+        }
+
+        @Override
+        public void onEnd() {
+            ended.countDown();
+        }
+    }
+
+    /**
+     * Checks every replayed fix and publishes or flags it, as the plugin does with the fixes of LocationAssistant.
+     */
+    private static final class Checked implements LocationSource.Sink {
+        final Metrics metrics = new Metrics();
+        final FixChecker checker = new FixChecker(metrics);
+        final FixPipeline pipeline = new FixPipeline(16);
+
+        @Override
+        public void onFix(FixSample sample) {
+            if (checker.check(sample))
+                pipeline.publish(sample.latitude, sample.longitude, sample.accuracy, sample.time,
+                        sample.elapsedRealtimeNanos, checker.getTrust(), checker.getSmoothedLatitude(),
+                        checker.getSmoothedLongitude());
+            else
+                pipeline.updateFlags(Fix.FLAG_MOCK, 0);
+        }
+
+        @Override
+        public void onEnd() {
+        }
+    }
+
+    @Test
+    public void keepsTimingOfTrace() {
+        Recorder recorder = new Recorder();
+        new TraceReplaySource(walk(3), Double.POSITIVE_INFINITY, FIXED_CLOCK).replay(recorder);
+        assertEquals(3, recorder.times.size());
+        for (int i = 0; i < 3; i++) {
+            long[] times = recorder.times.get(i);
+            assertEquals(1600000000000L + i * 1000, times[0]);
+            assertEquals(START_NANOS + i * 1000000000L, times[1]);
+            // Received when it was taken, however fast the replay runs
+            assertEquals(times[1], times[2]);
+        }
+        assertEquals(0, recorder.ended.getCount());
+    }
+
+    @Test(timeout = 10000)
+    public void replaysFasterOnItsThread() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        TraceReplaySource source = new TraceReplaySource(walk(11), 1000, LocationSource.SYSTEM_CLOCK);
+        long start = System.nanoTime();
+        source.start(recorder);
+        assertTrue(recorder.ended.await(5, TimeUnit.SECONDS));
+        // Ten seconds of trace in about ten milliseconds
+        assertTrue(System.nanoTime() - start >= 10000000L);
+        source.stop();
+        assertEquals(11, recorder.times.size());
+        assertEquals(10000000000L, recorder.times.get(10)[1] - recorder.times.get(0)[1]);
+    }
+
+    @Test(timeout = 10000)
+    public void stopEndsReplay() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        TraceReplaySource source = new TraceReplaySource(walk(100), 1, LocationSource.SYSTEM_CLOCK);
+        source.start(recorder);
+        Thread.sleep(50);
+        source.stop();
+        // The first fix is due at once, the next one only after a second
+        assertEquals(1, recorder.times.size());
+        assertEquals(1, recorder.ended.getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveSpeedUp() {
+        new TraceReplaySource(walk(1), 0, FIXED_CLOCK);
+    }
+
+    @Test
+    public void fastReplayIsTrusted() {
+        Checked checked = new Checked();
+        checked.checker.setSmoothing(true, KalmanSmoother.DEFAULT_PROCESS_NOISE);
+        new TraceReplaySource(walk(10), Double.POSITIVE_INFINITY, FIXED_CLOCK).replay(checked);
+        Fix latest = checked.pipeline.getLatest();
+        assertEquals(10, latest.seq);
+        assertFalse(latest.isMock());
+        assertEquals(13.75 + 9e-5, latest.smoothedLatitude, 5e-5);
+        assertEquals(10, checked.pipeline.getHistory().size());
+        assertEquals(0, checked.metrics.get(Metrics.FIXES_FLAGGED));
+    }
+
+    @Test
+    public void teleportInReplayIsFlagged() {
+        Trace trace = Trace.parse("1600000000000,13.75,100.5,5\n1600000001000,13.75001,100.5,5\n"
+                + "1600000002000,14.75,100.5,5\n", Trace.Format.CSV);
+        Checked checked = new Checked();
+        new TraceReplaySource(trace, Double.POSITIVE_INFINITY, FIXED_CLOCK).replay(checked);
+        Fix latest = checked.pipeline.getLatest();
+        assertTrue(latest.isMock());
+        assertEquals(13.75001, latest.latitude, 1e-9);
+        assertEquals(2, checked.pipeline.getHistory().size());
+        assertEquals(3, checked.metrics.get(Metrics.FIXES_RECEIVED));
+        assertEquals(1, checked.metrics.get(Metrics.FIXES_FLAGGED));
+    }
+}
@@ -0,0 +1,116 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parsing of CSV, GPX and NMEA traces by {@link Trace}.
+ */
+public class TraceTest {
+    private static final double DELTA = 1e-9;
+
+    /**
+     * Appends the checksum to an NMEA sentence given without {@code $} and {@code *}.
+     */
+    private static String nmea(String body) {
+        int checksum = 0;
+        for (int i = 0; i < body.length(); i++) checksum ^= body.charAt(i);
+        return String.format(Locale.US, "$%s*%02X", body, checksum);
+    }
+
+    @Test
+    public void parsesCsvWithHeader() {
+        Trace trace = Trace.parse("time,lat,lon,acc\n# comment\n1600000000000,13.75,100.5,5\n\n"
+                + "1600000001000;13.76;100.6;8;12.5;1.5;true\n", Trace.Format.CSV);
+        assertEquals(2, trace.size());
+        assertEquals(1600000000000L, trace.time(0));
+        assertEquals(13.75, trace.latitude(0), DELTA);
+        assertEquals(5, trace.accuracy(0), DELTA);
+        assertTrue(Double.isNaN(trace.altitude(0)));
+        assertFalse(trace.mock(0));
+        assertEquals(12.5, trace.altitude(1), DELTA);
+        assertEquals(1.5, trace.speed(1), DELTA);
+        assertTrue(trace.mock(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCsvOutOfOrder() {
+        Trace.parse("1600000001000,13.75,100.5\n1600000000000,13.76,100.5", Trace.Format.CSV);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCsvWithMissingField() {
+        Trace.parse("1600000000000,13.75", Trace.Format.CSV);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTraceWithoutFixes() {
+        Trace.parse("time,lat,lon\n", Trace.Format.CSV);
+    }
+
+    @Test
+    public void parsesGpx() {
+        Trace trace = Trace.parse("<gpx><trk><trkseg>"
+                + "<trkpt lat=\"13.75\" lon=\"100.5\"><ele>10</ele><time>2020-09-13T12:26:40Z</time>"
+                + "<hdop>2</hdop></trkpt>"
+                + "<trkpt lon='100.6' lat='13.76'><time>2020-09-13T19:26:41+07:00</time></trkpt>"
+                + "</trkseg></trk></gpx>", Trace.Format.GPX);
+        assertEquals(2, trace.size());
+        assertEquals(1600000000000L, trace.time(0));
+        assertEquals(10, trace.altitude(0), DELTA);
+        assertEquals(10, trace.accuracy(0), DELTA);
+        assertEquals(1600000001000L, trace.time(1));
+        assertEquals(100.6, trace.longitude(1), DELTA);
+        assertTrue(Float.isNaN(trace.accuracy(1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsGpxPointWithoutTime() {
+        Trace.parse("<gpx><wpt lat=\"13.75\" lon=\"100.5\"/></gpx>", Trace.Format.GPX);
+    }
+
+    @Test
+    public void combinesNmeaSentencesPerEpoch() {
+        String text = nmea("GPRMC,122640,A,1345.000,N,10030.000,E,10.0,0.0,130920,,") + "\n"
+                + nmea("GPGGA,122640,1345.000,N,10030.000,E,1,08,1.5,20.0,M,,M,,") + "\n"
+                + "$GPRMC,122641,A,1345.100,N,10030.000,E,10.0,0.0,130920,,*00\n"
+                + nmea("GNRMC,122642,A,1345.200,S,10030.000,W,,0.0,130920,,") + "\n";
+        Trace trace = Trace.parse(text, Trace.Format.NMEA);
+        // The sentence with the wrong checksum is skipped
+        assertEquals(2, trace.size());
+        assertEquals(1600000000000L, trace.time(0));
+        assertEquals(13.75, trace.latitude(0), DELTA);
+        assertEquals(100.5, trace.longitude(0), DELTA);
+        assertEquals(7.5, trace.accuracy(0), DELTA);
+        assertEquals(20, trace.altitude(0), DELTA);
+        assertEquals(10 * 0.514444, trace.speed(0), 1e-5);
+        assertEquals(1600000002000L, trace.time(1));
+        assertEquals(-(13 + 45.2 / 60), trace.latitude(1), DELTA);
+        assertEquals(-100.5, trace.longitude(1), DELTA);
+        assertTrue(Float.isNaN(trace.speed(1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNmeaWithoutDate() {
+        Trace.parse(nmea("GPGGA,122640,1345.000,N,10030.000,E,1,08,1.5,20.0,M,,M,,"), Trace.Format.NMEA);
+    }
+
+    @Test
+    public void detectsFormat() {
+        assertEquals(Trace.Format.GPX, Trace.Format.detect("  <?xml version=\"1.0\"?><gpx/>"));
+        assertEquals(Trace.Format.NMEA, Trace.Format.detect("$GPRMC,..."));
+        assertEquals(Trace.Format.CSV, Trace.Format.detect("time,lat,lon"));
+    }
+
+    @Test
+    public void parsesIsoTime() {
+        assertEquals(1600000000500L, Trace.parseIsoTime("2020-09-13T12:26:40.5Z"));
+        assertEquals(1600000000000L, Trace.parseIsoTime("2020-09-13 08:26:40-0400"));
+        assertEquals(0, Trace.parseIsoTime("1970-01-01T00:00:00"));
+    }
+}
@@ -0,0 +1,204 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scoring of recorded segments by {@link TrackAnalyzer}, with every pattern placed across the boundaries of small
+ * windows.
+ */
+public class TrackAnalyzerTest {
+    private static final int WINDOW_SIZE = 16;
+    private static final double COORDINATE_UNITS = 1e7;
+
+    private File directory;
+    private TrackAnalyzer analyzer;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("analysis").toFile();
+        analyzer = new TrackAnalyzer(2);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) assertTrue(file.delete());
+        assertTrue(directory.delete());
+    }
+
+    /**
+     * A walk to the north of one fix per second, with irregular steps of up to 20 meters that wander east and west, in
+     * whole units of 1e-7 degrees so that repeated steps have identical fingerprints.
+     */
+    private static long[][] walk(int count, long seed) {
+        Random random = new Random(seed);
+        long[][] units = new long[count][2];
+        units[0][0] = 137500123;
+        units[0][1] = 1005000123;
+        for (int i = 1; i < count; i++) {
+            units[i][0] = units[i - 1][0] + 300 + random.nextInt(1200);
+            units[i][1] = units[i - 1][1] + random.nextInt(2400) - 1200;
+        }
+        return units;
+    }
+
+    /**
+     * Records the walk into segment 0.
+     */
+    private void record(long[][] units) throws InterruptedException {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        Metrics metrics = new Metrics();
+        TrajectoryLog log = new TrajectoryLog(directory, executor, metrics,
+                8 + (units.length + 1) * TrajectoryLog.RECORD_SIZE, 0);
+        for (int i = 0; i < units.length; i++)
+            log.append(new Fix(i + 1, Fix.FLAG_HAS_FIX, units[i][0] / COORDINATE_UNITS,
+                    units[i][1] / COORDINATE_UNITS, 3, 1600000000000L + i * 1000L, (i + 1) * 1000000000L, 1,
+                    ZoneIndex.NO_ZONE, Double.NaN, Double.NaN));
+        log.close();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, metrics.get(Metrics.TRACK_DROPPED));
+    }
+
+    private static final class Result implements TrackAnalyzer.Callback {
+        final CountDownLatch done = new CountDownLatch(1);
+        TrackAnalyzer.Report report;
+        Exception error;
+
+        @Override
+        public void onReport(TrackAnalyzer.Report report) {
+            this.report = report;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            error = e;
+            done.countDown();
+        }
+    }
+
+    private Result analyze(long segment) throws InterruptedException {
+        Result result = new Result();
+        analyzer.analyze(directory, segment, WINDOW_SIZE, result);
+        assertTrue(result.done.await(10, TimeUnit.SECONDS));
+        return result;
+    }
+
+    private TrackAnalyzer.Report analyze(long[][] units) throws InterruptedException {
+        record(units);
+        Result result = analyze(0);
+        assertNull(result.error);
+        assertNotNull(result.report);
+        return result.report;
+    }
+
+    @Test
+    public void trustsIrregularWalk() throws InterruptedException {
+        TrackAnalyzer.Report report = analyze(walk(40, 1));
+        assertEquals(40, report.fixes);
+        assertEquals(0, report.teleports);
+        assertEquals(0, report.quantized);
+        assertEquals(0, report.straight);
+        assertEquals(38, report.triples);
+        // Every fix from the ninth on ends a run, including the first ones of each window
+        assertEquals(32, report.runs);
+        assertEquals(0, report.replayed);
+        assertEquals(3, report.windowTrust.length);
+        assertEquals(1, report.trust(), 1e-6);
+        Map<String, Object> map = report.toMap();
+        assertEquals(40, map.get("fixes"));
+        assertEquals(1.0, map.get("trust"));
+        // Only accepted fixes are recorded, so there is no mock share to report
+        assertFalse(map.containsKey("mockRatio"));
+    }
+
+    @Test
+    public void countsTeleportAtWindowBoundary() throws InterruptedException {
+        long[][] units = walk(40, 2);
+        // The step from the last fix of the first window to the first fix of the second one jumps a degree
+        for (int i = WINDOW_SIZE; i < units.length; i++) units[i][0] += COORDINATE_UNITS;
+        TrackAnalyzer.Report report = analyze(units);
+        assertEquals(1, report.teleports);
+        assertEquals(1, report.windowTrust[0], 1e-6);
+        assertTrue(report.windowTrust[1] < 1);
+        assertEquals(1, report.windowTrust[2], 1e-6);
+    }
+
+    @Test
+    public void flagsStraightQuantizedLine() throws InterruptedException {
+        long[][] units = new long[40][2];
+        for (int i = 0; i < units.length; i++) {
+            // Steps of about 11 meters on a grid of 1e-5 degrees
+            units[i][0] = 137500000 + i * 1000L;
+            units[i][1] = 1005000000;
+        }
+        TrackAnalyzer.Report report = analyze(units);
+        assertEquals(40, report.quantized);
+        assertEquals(38, report.triples);
+        assertEquals(38, report.straight);
+        assertEquals(32, report.runs);
+        // Every run repeats the first one, except those that overlap it
+        assertEquals(32 - TrackAnalyzer.REPLAY_RUN, report.replayed);
+        assertEquals(0, report.trust(), 1e-6);
+    }
+
+    @Test
+    public void matchesReplayAcrossWindows() throws InterruptedException {
+        long[][] walk = walk(48, 3);
+        long[][] units = new long[walk.length][];
+        units[0] = walk[0];
+        for (int i = 1; i < units.length; i++) {
+            // The steps to fixes 6 to 14 in the first window are repeated by the steps to 38 to 46 in the third one
+            int step = i >= 38 && i <= 46 ? i - 32 : i;
+            units[i] = new long[]{units[i - 1][0] + walk[step][0] - walk[step - 1][0],
+                    units[i - 1][1] + walk[step][1] - walk[step - 1][1]};
+        }
+        TrackAnalyzer.Report report = analyze(units);
+        // The runs ending at fixes 45 and 46 repeat the ones ending at 13 and 14
+        assertEquals(2, report.replayed);
+        assertEquals(0, report.teleports);
+        assertEquals(40, report.runs);
+    }
+
+    @Test
+    public void reportsMissingSegment() throws InterruptedException {
+        Result result = analyze(7);
+        assertNull(result.report);
+        assertNotNull(result.error);
+    }
+
+    @Test
+    public void reportsCorruptSegment() throws IOException, InterruptedException {
+        // Long enough for three windows, but without a segment header
+        byte[] garbage = new byte[8 + 40 * TrajectoryLog.RECORD_SIZE];
+        new Random(4).nextBytes(garbage);
+        Files.write(new File(directory, "0000000000.seg").toPath(), garbage);
+        Result result = analyze(0);
+        assertNull(result.report);
+        assertNotNull(result.error);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSmallWindow() {
+        analyzer.analyze(directory, 0, TrackAnalyzer.REPLAY_RUN - 1, new Result());
+    }
+}
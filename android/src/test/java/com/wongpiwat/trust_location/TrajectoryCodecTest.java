@@ -0,0 +1,177 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips and size of {@link TrajectoryCodec} on the JVM, its throughput is measured by TrajectoryCodecBenchmark.
+ */
+public class TrajectoryCodecTest {
+    private static final double COORDINATE_TOLERANCE = TrajectoryCodec.COORDINATE_SCALE / 2;
+
+    /**
+     * A random walk of one fix per second around Bangkok, smoothed every other fix.
+     */
+    private static List<Fix> track(int count, long seed) {
+        Random random = new Random(seed);
+        List<Fix> track = new ArrayList<>(count);
+        double latitude = 13.7563;
+        double longitude = 100.5018;
+        long time = 1600000000000L;
+        long elapsedRealtimeNanos = 123456789000L;
+        for (int i = 0; i < count; i++) {
+            latitude += (random.nextDouble() - 0.5) * 1e-4;
+            longitude += (random.nextDouble() - 0.5) * 1e-4;
+            time += 1000 + random.nextInt(50);
+            elapsedRealtimeNanos += 1000000000L + random.nextInt(50000000);
+            boolean smoothed = i % 2 == 0;
+            track.add(new Fix(i + 1, Fix.FLAG_HAS_FIX | (i % 100 == 0 ? Fix.FLAG_MOCK : 0), latitude, longitude,
+                    3 + random.nextDouble() * 20, time, elapsedRealtimeNanos, random.nextFloat(),
+                    i % 50 < 10 ? 7 : ZoneIndex.NO_ZONE,
+                    smoothed ? latitude + 1e-6 : Double.NaN, smoothed ? longitude - 1e-6 : Double.NaN));
+        }
+        return track;
+    }
+
+    private static byte[] encode(List<Fix> track, int chunkSize) {
+        ByteBuffer output = ByteBuffer.allocate(track.size() * TrajectoryCodec.MAX_RECORD_SIZE);
+        ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+        TrajectoryCodec.Encoder encoder = new TrajectoryCodec.Encoder();
+        for (Fix fix : track) {
+            if (encoder.encode(fix, chunk)) continue;
+            chunk.flip();
+            output.put(chunk);
+            chunk.clear();
+            assertTrue(encoder.encode(fix, chunk));
+        }
+        chunk.flip();
+        output.put(chunk);
+        byte[] bytes = new byte[output.position()];
+        output.flip();
+        output.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decodes the stream fed in chunks of the given size, like bytes arriving from a file or a socket.
+     */
+    private static List<Fix> decode(byte[] bytes, int chunkSize) {
+        List<Fix> track = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize + TrajectoryCodec.MAX_RECORD_SIZE);
+        TrajectoryCodec.Decoder decoder = new TrajectoryCodec.Decoder();
+        for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+            buffer.put(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+            buffer.flip();
+            for (Fix fix; (fix = decoder.decode(buffer)) != null; ) track.add(fix);
+            buffer.compact();
+        }
+        assertEquals("trailing bytes", 0, buffer.position());
+        return track;
+    }
+
+    private static void assertFixEquals(Fix expected, Fix actual) {
+        assertEquals(expected.seq, actual.seq);
+        assertEquals(expected.flags, actual.flags);
+        assertEquals(expected.latitude, actual.latitude, COORDINATE_TOLERANCE);
+        assertEquals(expected.longitude, actual.longitude, COORDINATE_TOLERANCE);
+        assertEquals(expected.accuracy, actual.accuracy, 0.005);
+        assertEquals(expected.time, actual.time);
+        assertEquals(expected.elapsedRealtimeNanos / 1000, actual.elapsedRealtimeNanos / 1000);
+        assertEquals(expected.trust, actual.trust, 0.0005);
+        assertEquals(expected.zone, actual.zone);
+        if (Double.isNaN(expected.smoothedLatitude)) {
+            assertTrue(Double.isNaN(actual.smoothedLatitude));
+            assertTrue(Double.isNaN(actual.smoothedLongitude));
+        } else {
+            assertEquals(expected.smoothedLatitude, actual.smoothedLatitude, COORDINATE_TOLERANCE);
+            assertEquals(expected.smoothedLongitude, actual.smoothedLongitude, COORDINATE_TOLERANCE);
+        }
+    }
+
+    private static void assertTrackEquals(List<Fix> expected, List<Fix> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) assertFixEquals(expected.get(i), actual.get(i));
+    }
+
+    @Test
+    public void roundTrip() {
+        List<Fix> track = track(10000, 1);
+        assertTrackEquals(track, decode(encode(track, 4096), 4096));
+    }
+
+    @Test
+    public void roundTripInTinyChunks() {
+        List<Fix> track = track(500, 2);
+        byte[] bytes = encode(track, TrajectoryCodec.MAX_RECORD_SIZE);
+        // Every record is split across chunk boundaries
+        assertTrackEquals(track, decode(bytes, 1));
+        assertTrackEquals(track, decode(bytes, 7));
+    }
+
+    @Test
+    public void roundTripExtremes() {
+        List<Fix> track = new ArrayList<>();
+        track.add(new Fix(Long.MAX_VALUE, -1, 90, 180, 0, Long.MIN_VALUE, 0, 0, Integer.MIN_VALUE, -90, -180));
+        track.add(new Fix(0, 0, -90, -180, 10000, Long.MAX_VALUE, Long.MAX_VALUE, 1, Integer.MAX_VALUE, 90, 180));
+        // Across the antimeridian
+        track.add(new Fix(1, Fix.FLAG_HAS_FIX, 0.5, 179.9999999, 5, 0, 0, 1, ZoneIndex.NO_ZONE, Double.NaN,
+                Double.NaN));
+        track.add(new Fix(2, Fix.FLAG_HAS_FIX, 0.5, -179.9999999, 5, 1000, 1000000000L, 1, ZoneIndex.NO_ZONE,
+                Double.NaN, Double.NaN));
+        assertTrackEquals(track, decode(encode(track, 4096), 3));
+    }
+
+    @Test
+    public void compression() {
+        List<Fix> track = track(10000, 3);
+        byte[] bytes = encode(track, 65536);
+        double perFix = (double) bytes.length / track.size();
+        assertTrue("bytes per fix: " + perFix, perFix * 3 < Fix.RECORD_SIZE);
+    }
+
+    @Test
+    public void encodeRefusesFullBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(TrajectoryCodec.MAX_RECORD_SIZE - 1);
+        assertTrue(!new TrajectoryCodec.Encoder().encode(track(1, 4).get(0), buffer));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void decodeWaitsForRestOfRecord() {
+        byte[] bytes = encode(track(1, 5), 4096);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, bytes.length - 1);
+        TrajectoryCodec.Decoder decoder = new TrajectoryCodec.Decoder();
+        assertNull(decoder.decode(buffer));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void resetStartsNewStream() {
+        List<Fix> track = track(20, 6);
+        TrajectoryCodec.Encoder encoder = new TrajectoryCodec.Encoder();
+        ByteBuffer first = ByteBuffer.allocate(4096);
+        for (Fix fix : track) encoder.encode(fix, first);
+        encoder.reset();
+        ByteBuffer second = ByteBuffer.allocate(4096);
+        for (Fix fix : track) encoder.encode(fix, second);
+        assertEquals(first.position(), second.position());
+    }
+
+    @Test
+    public void rejectsOtherVersion() {
+        try {
+            new TrajectoryCodec.Decoder().decode(ByteBuffer.wrap(new byte[]{2, 0, 0}));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rotation, recovery, reading and trimming of {@link TrajectoryLog} segments on the JVM.
+ */
+public class TrajectoryLogTest {
+    // Room for 10 records per segment
+    private static final long SEGMENT_SIZE = 8 + 10 * TrajectoryLog.RECORD_SIZE;
+
+    private File directory;
+    private Metrics metrics;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("trajectory").toFile();
+        metrics = new Metrics();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) assertTrue(file.delete());
+        assertTrue(directory.delete());
+    }
+
+    private static Fix fix(long seq) {
+        return new Fix(seq, Fix.FLAG_HAS_FIX, 13.75 + seq * 1e-5, 100.5, 5, 1600000000000L + seq * 1000,
+                seq * 1000000000L, 1, ZoneIndex.NO_ZONE, Double.NaN, Double.NaN);
+    }
+
+    /**
+     * Records the given fixes in one run of the log, waiting for the writer now and then so that nothing is dropped.
+     */
+    private void record(long firstSeq, int count, long syncInterval) throws InterruptedException {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        TrajectoryLog log = new TrajectoryLog(directory, executor, metrics, SEGMENT_SIZE, syncInterval);
+        for (int i = 0; i < count; i++) {
+            log.append(fix(firstSeq + i));
+            if (i % 100 == 99) Thread.sleep(10);
+        }
+        log.close();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private long[] readSeqs(long segment) throws IOException {
+        Fix[] fixes = TrajectoryLog.readFixes(directory, segment, 0, Integer.MAX_VALUE);
+        long[] seqs = new long[fixes.length];
+        for (int i = 0; i < fixes.length; i++) seqs[i] = fixes[i].seq;
+        return seqs;
+    }
+
+    @Test
+    public void rotatesBySize() throws Exception {
+        record(1, 25, 0);
+        assertArrayEquals(new long[]{0, 1, 2}, TrajectoryLog.listSegments(directory));
+        assertEquals(10, TrajectoryLog.countRecords(directory, 0));
+        assertEquals(10, TrajectoryLog.countRecords(directory, 1));
+        assertArrayEquals(new long[]{21, 22, 23, 24, 25}, readSeqs(2));
+        assertEquals(0, metrics.get(Metrics.TRACK_DROPPED));
+    }
+
+    @Test
+    public void recoversTornTail() throws Exception {
+        record(1, 5, TrajectoryLog.DEFAULT_SYNC_INTERVAL);
+        File segment = new File(directory, "0000000000.seg");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // Cut the last record in half, as a crash in the middle of a write does
+            file.setLength(file.length() - TrajectoryLog.RECORD_SIZE / 2);
+        }
+        assertArrayEquals(new long[]{1, 2, 3, 4}, readSeqs(0));
+
+        record(6, 2, 0);
+        assertArrayEquals(new long[]{1, 2, 3, 4, 6, 7}, readSeqs(0));
+        assertEquals(8 + 6 * TrajectoryLog.RECORD_SIZE, segment.length());
+    }
+
+    @Test
+    public void readsPages() throws Exception {
+        record(1, 8, 0);
+        Fix[] page = TrajectoryLog.readFixes(directory, 0, 3, 2);
+        assertEquals(2, page.length);
+        assertEquals(4, page[0].seq);
+        assertEquals(0, TrajectoryLog.readFixes(directory, 0, 8, 2).length);
+        assertEquals(1 + 4 + 2 * Fix.RECORD_SIZE, TrajectoryLog.read(directory, 0, 6, 10).maxSize());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMissingSegment() throws Exception {
+        TrajectoryLog.readFixes(directory, 7, 0, 1);
+    }
+
+    @Test
+    public void trimsOlderSegments() throws Exception {
+        record(1, 35, 0);
+        assertEquals(2, TrajectoryLog.trim(directory, 3, 1));
+        assertArrayEquals(new long[]{1, 3}, TrajectoryLog.listSegments(directory));
+    }
+
+    @Test
+    public void ignoresAppendsAfterClose() throws Exception {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        TrajectoryLog log = new TrajectoryLog(directory, executor, metrics, SEGMENT_SIZE, 0);
+        log.append(fix(1));
+        log.close();
+        executor.shutdown();
+        // Must neither be scheduled on the shut down executor nor reopen a segment
+        log.append(fix(2));
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertArrayEquals(new long[]{1}, readSeqs(0));
+    }
+
+    @Test
+    public void syncsWithoutFurtherFixes() throws Exception {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        TrajectoryLog log = new TrajectoryLog(directory, executor, metrics, SEGMENT_SIZE, 100);
+        log.append(fix(1));
+        Thread.sleep(20);
+        // Within the sync interval of the first fix, so its sync is scheduled
+        log.append(fix(2));
+        Thread.sleep(20);
+        assertEquals(1, executor.getQueue().size());
+        Thread.sleep(200);
+        assertEquals(0, executor.getQueue().size());
+        log.close();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertArrayEquals(new long[]{1, 2}, readSeqs(0));
+    }
+}
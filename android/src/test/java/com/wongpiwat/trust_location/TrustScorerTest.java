@@ -0,0 +1,102 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Weighting and chaining of detectors by {@link TrustScorer}.
+ */
+public class TrustScorerTest {
+    private static final double DELTA = 1e-6;
+
+    /**
+     * Reports a fixed suspicion for every fix.
+     */
+    private static final class FixedDetector implements MockDetector {
+        private final float suspicion;
+        int evaluated;
+
+        FixedDetector(float suspicion) {
+            this.suspicion = suspicion;
+        }
+
+        @Override
+        public float evaluate(FixSample sample) {
+            evaluated++;
+            return suspicion;
+        }
+
+        @Override
+        public void reset() {
+            evaluated = 0;
+        }
+    }
+
+    @Test
+    public void multipliesWeightedSuspicions() {
+        TrustScorer scorer = new TrustScorer();
+        assertEquals(1, scorer.score(new FixSample()), DELTA);
+        scorer.add(new FixedDetector(0.5f), 0.8f);
+        scorer.add(new FixedDetector(1), 0.5f);
+        // Suspicions outside of [0, 1] are clamped
+        scorer.add(new FixedDetector(-2), 1);
+        assertEquals((1 - 0.4) * (1 - 0.5), scorer.score(new FixSample()), DELTA);
+        assertEquals(0.5, scorer.getSuspicion(0), DELTA);
+        assertEquals(0, scorer.getSuspicion(2), DELTA);
+    }
+
+    @Test
+    public void resetsEveryDetector() {
+        TrustScorer scorer = new TrustScorer();
+        FixedDetector detector = new FixedDetector(0);
+        scorer.add(detector, 1);
+        scorer.score(new FixSample());
+        scorer.reset();
+        assertEquals(0, detector.evaluated);
+        scorer.clear();
+        assertEquals(0, scorer.size());
+    }
+
+    @Test
+    public void defaultChainRejectsMockProvider() {
+        TrustScorer scorer = TrustScorer.createDefault();
+        assertEquals(5, scorer.size());
+        FixSample sample = new FixSample();
+        sample.latitude = 13.75;
+        sample.longitude = 100.5;
+        sample.accuracy = 5;
+        sample.hasAccuracy = true;
+        sample.time = 1600000000000L;
+        sample.elapsedRealtimeNanos = 1000000000L;
+        assertTrue(scorer.score(sample) > 0.9);
+        sample.fromMockProvider = true;
+        sample.time += 1000;
+        sample.elapsedRealtimeNanos += 1000000000L;
+        assertEquals(0, scorer.score(sample), DELTA);
+    }
+
+    @Test
+    public void defaultChainRejectsTeleportAlone() {
+        TrustScorer scorer = TrustScorer.createDefault();
+        FixSample sample = new FixSample();
+        sample.latitude = 13.75;
+        sample.longitude = 100.5;
+        sample.accuracy = 5;
+        sample.hasAccuracy = true;
+        sample.time = 1600000000000L;
+        sample.elapsedRealtimeNanos = 1000000000L;
+        scorer.score(sample);
+        // About 11 km within a second
+        sample.latitude += 0.1;
+        sample.time += 1000;
+        sample.elapsedRealtimeNanos += 1000000000L;
+        assertEquals(0.2, scorer.score(sample), DELTA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWeightAboveOne() {
+        new TrustScorer().add(new FixedDetector(0), 1.5f);
+    }
+}
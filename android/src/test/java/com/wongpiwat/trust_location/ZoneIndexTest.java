@@ -0,0 +1,87 @@
+package com.wongpiwat.trust_location;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Classification of coordinates against the polygons and circles of a {@link ZoneIndex}.
+ */
+public class ZoneIndexTest {
+    // About 100 meters east of a longitude at the equator
+    private static final double EAST = 100 / (Math.PI * Geo.EARTH_RADIUS / 180);
+
+    @Test
+    public void classifiesPolygonsAndCircles() {
+        ZoneIndex index = new ZoneIndex.Builder()
+                .addPolygon(1, new double[]{13.70, 100.50, 13.70, 100.60, 13.80, 100.60, 13.80, 100.50})
+                .addCircle(2, 13.75, 100.55, 200)
+                .addCircle(3, 13.90, 100.55, 200)
+                .build();
+        assertEquals(3, index.size());
+        // The polygon was added first and wins over the circle inside it
+        assertEquals(1, index.classify(13.75, 100.55));
+        assertEquals(3, index.classify(13.9, 100.551));
+        assertEquals(ZoneIndex.NO_ZONE, index.classify(13.85, 100.55));
+        assertEquals(ZoneIndex.NO_ZONE, index.classify(13.9, 100.56));
+    }
+
+    @Test
+    public void classifiesLargeZonesWithoutCells() {
+        // Covers far more cells than are indexed per zone
+        ZoneIndex index = new ZoneIndex.Builder().addCircle(1, 0, 0, 500000).build();
+        assertEquals(1, index.classify(2, 2));
+        assertEquals(ZoneIndex.NO_ZONE, index.classify(5, 5));
+    }
+
+    @Test
+    public void wrapsCirclesAtAntimeridian() {
+        ZoneIndex index = new ZoneIndex.Builder()
+                .addCircle(1, 0, 180 - EAST / 2, 100)
+                .addCircle(2, 10, -180 + EAST / 2, 100)
+                .build();
+        assertEquals(1, index.classify(0, 180 - EAST));
+        assertEquals(1, index.classify(0, -180 + EAST / 4));
+        assertEquals(ZoneIndex.NO_ZONE, index.classify(0, -180 + EAST));
+        assertEquals(2, index.classify(10, 180 - EAST / 4));
+        assertEquals(2, index.classify(10, -180 + EAST));
+        assertEquals(ZoneIndex.NO_ZONE, index.classify(10, 180 - EAST));
+    }
+
+    @Test
+    public void coversAllLongitudesNearPole() {
+        ZoneIndex index = new ZoneIndex.Builder().addCircle(1, 89.99, 0, 5000).build();
+        assertEquals(1, index.classify(89.99, 179.9));
+        assertEquals(1, index.classify(89.99, -90));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeRadius() {
+        new ZoneIndex.Builder().addCircle(1, 0, 0, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInfiniteVertex() {
+        new ZoneIndex.Builder().addPolygon(1, new double[]{0, 0, 0, 1, Double.POSITIVE_INFINITY, 1});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLongitudeOutOfRange() {
+        new ZoneIndex.Builder().addPolygon(1, new double[]{0, 179, 0, 181, 1, 180});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNaNCenter() {
+        new ZoneIndex.Builder().addCircle(1, Double.NaN, 0, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLatitudeOutOfRange() {
+        new ZoneIndex.Builder().addCircle(1, 90.5, 0, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInfiniteRadius() {
+        new ZoneIndex.Builder().addCircle(1, 0, 0, Double.POSITIVE_INFINITY);
+    }
+}
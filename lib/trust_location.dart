@@ -1,33 +1,46 @@
 import 'dart:async';
+import 'dart:typed_data';
 
 import 'package:flutter/services.dart';
 
 class TrustLocation {
-  static const MethodChannel _channel = const MethodChannel('trust_location');
+  static const MethodChannel _channel =
+      const MethodChannel('trust_location', const FixFrameCodec());
+  static const EventChannel _positionChannel =
+      const EventChannel('trust_location/position', const FixFrameCodec());
   static var changeController =
       new StreamController<LatLongPosition>.broadcast();
+  @Deprecated('Fixes are pushed by the plugin, no timer is used anymore.')
   static Timer? getLocationTimer;
+  static StreamSubscription<LatLongPosition>? _positionSubscription;
+  // One stream per channel, a second platform listener would replace the first
+  static final Stream<dynamic> _events =
+      _positionChannel.receiveBroadcastStream();
+  static int _nextSubscriptionId = 0;
 
-  /// start get location with repeating by timer
+  /// start forwarding fixes pushed by the plugin to [onChange], one every
+  /// [time] seconds. Calling it again replaces the interval, use [subscribe]
+  /// to give several consumers their own intervals.
   static start(time) {
-    getLocationTimer =
-        Timer.periodic(Duration(seconds: time), (Timer t) => getLocation());
+    _positionSubscription?.cancel();
+    _positionSubscription = subscribe(
+            interval: time is num
+                ? Duration(milliseconds: (time * 1000).round())
+                : const Duration(seconds: 5))
+        .listen(changeController.add,
+            onError: (e) => print('PlatformException: $e'));
   }
 
-  /// stop repeating by timer
+  /// stop forwarding fixes to [onChange].
   static stop() {
-    getLocationTimer?.cancel();
+    _positionSubscription?.cancel();
+    _positionSubscription = null;
   }
 
   /// get location and mock
   static Future<void> getLocation() async {
-    List<String?> position;
-    bool isMockLocation;
     try {
-      position = await TrustLocation.getLatLong;
-      isMockLocation = await TrustLocation.isMockLocation;
-      changeController
-          .add(new LatLongPosition(position[0], position[1], isMockLocation));
+      changeController.add(await TrustLocation.getPosition);
     } on PlatformException catch (e) {
       print('PlatformException: $e');
     }
@@ -36,6 +49,95 @@ class TrustLocation {
   /// the stream getter where others can listen to.
   static Stream<LatLongPosition> get onChange => changeController.stream;
 
+  /// the stream of fixes pushed by the plugin. Location updates run while the
+  /// stream has at least one listener.
+  static Stream<LatLongPosition> get positionStream => _events
+      .where((event) => event is! Map)
+      .expand((event) =>
+          event is List<LatLongPosition> ? event : [event as LatLongPosition]);
+
+  /// the stream of fixes for one consumer that needs a fix every [interval]
+  /// at [accuracy]. Any number of consumers may subscribe with their own
+  /// requirements: the plugin requests location updates once at the tightest
+  /// one, that is the shortest interval and the highest accuracy, and each
+  /// stream skips the fixes its consumer does not need. Fixes flagged as mock
+  /// are always passed on. The subscription ends when the stream is
+  /// cancelled. If the plugin rejects the subscription, the error is added to
+  /// the stream.
+  static Stream<LatLongPosition> subscribe(
+      {Duration interval = const Duration(seconds: 5),
+      LocationAccuracy accuracy = LocationAccuracy.high}) {
+    final int id = _nextSubscriptionId++;
+    // Fixes a little early still count, provider intervals are not exact
+    final int minNanos = interval.inMicroseconds * 900;
+    StreamSubscription<LatLongPosition>? positions;
+    int? lastNanos;
+    late StreamController<LatLongPosition> controller;
+    controller = new StreamController<LatLongPosition>(
+      onListen: () {
+        _channel.invokeMethod('subscribe', {
+          'id': id,
+          'interval': interval.inMilliseconds,
+          'accuracy': accuracy._name,
+        }).catchError(controller.addError);
+        positions = positionStream.listen((position) {
+          final int? nanos = position.elapsedRealtimeNanos;
+          if (!(position.isMockLocation ?? false) &&
+              nanos != null &&
+              lastNanos != null &&
+              nanos - lastNanos! < minNanos) return;
+          if (nanos != null) lastNanos = nanos;
+          controller.add(position);
+        }, onError: controller.addError);
+      },
+      onCancel: () {
+        positions?.cancel();
+        return _channel.invokeMethod('unsubscribe', {'id': id});
+      },
+    );
+    return controller.stream;
+  }
+
+  /// the stream of movement mode transitions while adaptive updates are
+  /// enabled, see [setAdaptiveUpdates]. Transitions are only reported while
+  /// location updates run, that is while [positionStream] has a listener.
+  static Stream<AdaptiveMode> get onModeChange => _events
+      .where((event) => event is Map)
+      .map((event) => AdaptiveMode._fromMap(event as Map));
+
+  /// let the accuracy and update interval follow the movement of the device:
+  /// updates back off while it stays in place and ramp up as soon as it moves.
+  /// [maxAccuracy] and [minInterval] are the power budget that no mode
+  /// exceeds. Disabling restores the requirements of [subscribe], or high
+  /// accuracy updates every 5 seconds without subscribers.
+  /// Completes with the current mode, `null` when disabled.
+  static Future<AdaptiveMode?> setAdaptiveUpdates(bool enabled,
+      {LocationAccuracy maxAccuracy = LocationAccuracy.high,
+      Duration minInterval = Duration.zero}) async {
+    final Map? mode = await _channel.invokeMethod<Map>('setAdaptiveUpdates', {
+      'enabled': enabled,
+      'maxAccuracy': maxAccuracy._name,
+      'minInterval': minInterval.inMilliseconds,
+    });
+    return mode == null ? null : AdaptiveMode._fromMap(mode);
+  }
+
+  /// query the current movement mode, `null` when adaptive updates are
+  /// disabled.
+  static Future<AdaptiveMode?> get getAdaptiveMode async {
+    final Map? mode = await _channel.invokeMethod<Map>('getAdaptiveMode');
+    return mode == null ? null : AdaptiveMode._fromMap(mode);
+  }
+
+  /// let the provider hold fixes back for up to [maxWaitTime] and deliver them
+  /// in batches, which saves wakeups during long tracking sessions. Batches
+  /// arrive on [positionStream] one fix after another. Pass `null` to deliver
+  /// every fix right away.
+  static Future<void> setBatchedDelivery(Duration? maxWaitTime) async {
+    await _channel.invokeMethod(
+        'setBatchedDelivery', {'maxWaitTime': maxWaitTime?.inMilliseconds ?? 0});
+  }
+
   /// query the current location.
   static Future<List<String?>> get getLatLong async {
     final String? latitude = await _channel.invokeMethod('getLatitude');
@@ -43,6 +145,189 @@ class TrustLocation {
     return [latitude, longitude];
   }
 
+  /// query the latitude, longitude, mock flag and fix metadata of the same fix
+  /// in a single call.
+  static Future<LatLongPosition> get getPosition async {
+    final LatLongPosition? position =
+        await _channel.invokeMethod<LatLongPosition>('getPosition');
+    return position!;
+  }
+
+  /// query the position like [getPosition], but while location updates are
+  /// warming up, wait up to [timeout] for the first fix. Check
+  /// [LatLongPosition.isPending] to see whether the fix arrived in time.
+  static Future<LatLongPosition> awaitPosition(
+      [Duration timeout = const Duration(seconds: 10)]) async {
+    final LatLongPosition? position = await _channel.invokeMethod<
+        LatLongPosition>('getPosition', {'timeout': timeout.inMilliseconds});
+    return position!;
+  }
+
+  /// query one trusted fix that is not older than [maxAge]. If the latest fix
+  /// is older, a single fix is requested at the given [accuracy], without
+  /// starting continuous location updates. Callers share a request in
+  /// flight if it is at least as accurate, as fresh and as long. Without
+  /// Google Play services, the fix comes from the platform providers.
+  /// Completes within [timeout], throws a [TimeoutException] if no fix
+  /// arrived in time. A fix rejected as mocked is returned with
+  /// [LatLongPosition.isMockLocation] set.
+  static Future<LatLongPosition> getCurrentPosition(
+      {Duration timeout = const Duration(seconds: 10),
+      Duration maxAge = Duration.zero,
+      LocationAccuracy accuracy = LocationAccuracy.high}) async {
+    try {
+      final LatLongPosition? position =
+          await _channel.invokeMethod<LatLongPosition>('getCurrentPosition', {
+        'timeout': timeout.inMilliseconds,
+        'maxAge': maxAge.inMilliseconds,
+        'accuracy': accuracy._name,
+      });
+      return position!;
+    } on PlatformException catch (e) {
+      if (e.code == 'TIMEOUT') throw new TimeoutException(e.message, timeout);
+      rethrow;
+    }
+  }
+
+  /// query all fixes newer than [sinceSeq] that are still in the history
+  /// ring buffer, oldest first. Pass the [LatLongPosition.seq] of the last
+  /// fix you have seen to get only the new ones.
+  static Future<List<LatLongPosition>> getHistory([int sinceSeq = 0]) async {
+    final List<LatLongPosition>? history = await _channel
+        .invokeMethod<List<LatLongPosition>>(
+            'getHistory', {'sinceSeq': sinceSeq});
+    return history!;
+  }
+
+  /// set how many recent fixes the history ring buffer keeps, the default is
+  /// 256 and the maximum 16384. Other values fail with `INVALID_ARGUMENT`.
+  static Future<void> setHistoryCapacity(int capacity) async {
+    await _channel.invokeMethod('setHistoryCapacity', {'capacity': capacity});
+  }
+
+  /// replace the trusted zones that every following fix is checked against,
+  /// see [LatLongPosition.zoneId]. The zones are indexed natively in the
+  /// background, so thousands of zones are fine and fix delivery is not
+  /// blocked while they load. Completes with the number of zones once they
+  /// are in use.
+  static Future<int> setTrustedZones(List<TrustedZone> zones) async {
+    final int? count = await _channel.invokeMethod<int>('setTrustedZones',
+        {'zones': zones.map((zone) => zone._toMap()).toList()});
+    return count!;
+  }
+
+  /// smooth the coordinates of every fix natively with a Kalman filter that
+  /// weighs each fix by its accuracy, see [LatLongPosition.smoothedLat] and
+  /// [LatLongPosition.smoothedLong]. The raw coordinates stay unchanged.
+  /// [processNoise] is the expected speed in meters per second at which the
+  /// true position wanders, higher values follow movement more closely.
+  static Future<void> setSmoothing(bool enabled,
+      {double processNoise = 3}) async {
+    await _channel.invokeMethod(
+        'setSmoothing', {'enabled': enabled, 'processNoise': processNoise});
+  }
+
+  /// drop fixes natively before they reach Dart: fixes closer than
+  /// [minDisplacement] meters to the last delivered one, fixes within its
+  /// accuracy radius that are not at least [minAccuracyImprovement] meters
+  /// more accurate, and with [suppressDuplicates] fixes that repeat its
+  /// coordinates. A fix that improves the accuracy enough passes the
+  /// displacement filter. All defaults turn filtering off. Dropped fixes are
+  /// counted in [TrustLocationMetrics].
+  static Future<void> setFixFilter(
+      {double minDisplacement = 0,
+      double minAccuracyImprovement = 0,
+      bool suppressDuplicates = false}) async {
+    await _channel.invokeMethod('setFixFilter', {
+      'minDisplacement': minDisplacement,
+      'minAccuracyImprovement': minAccuracyImprovement,
+      'suppressDuplicates': suppressDuplicates,
+    });
+  }
+
+  /// select where location updates come from. [LocationBackend.auto], the
+  /// default, starts both backends and keeps the one with the first fix, and
+  /// uses the platform providers alone on devices without Google Play
+  /// services. Running location updates restart with the new backend.
+  static Future<void> setLocationBackend(LocationBackend backend) async {
+    await _channel.invokeMethod('setBackend', {'backend': backend._name});
+  }
+
+  /// query the backend that delivers location updates, [LocationBackend.auto]
+  /// while no backend has delivered a fix yet.
+  static Future<LocationBackend> get locationBackend async {
+    final String? name = await _channel.invokeMethod<String>('getBackend');
+    return LocationBackend.values.firstWhere((backend) => backend._name == name);
+  }
+
+  /// replace the device location with a recorded [trace] in CSV, GPX or NMEA
+  /// format, played back [speedUp] times faster than recorded. Fixes of the
+  /// trace go through the same checks and streams as real ones, so trust
+  /// scoring and trusted zones can be tried without moving. The format is
+  /// detected from the content unless [format] is given. NMEA traces need
+  /// RMC sentences, which carry the date. Completes with the number of fixes
+  /// in the trace, a trace without fixes fails with `INVALID_ARGUMENT`.
+  static Future<int> startReplay(String trace,
+      {TraceFormat? format, double speedUp = 1}) async {
+    final int? count = await _channel.invokeMethod<int>('startReplay', {
+      'trace': trace,
+      'format': format?._name,
+      'speedUp': speedUp,
+    });
+    return count!;
+  }
+
+  /// stop a replay started by [startReplay] and go back to the device
+  /// location.
+  static Future<void> stopReplay() async {
+    await _channel.invokeMethod('stopReplay');
+  }
+
+  /// record every delivered fix natively to an append-only track on disk,
+  /// also while no Dart code listens. The track is split into segments of
+  /// about [segmentSize] bytes and synced to storage at most [syncInterval]
+  /// after it was written, so a crash loses at most that much of it. Lost
+  /// fixes are counted in [TrustLocationMetrics.trackDropped]. Recording
+  /// resumes after the last segment of an earlier track, see [trackSegments].
+  static Future<void> startRecording(
+      {int segmentSize = 1 << 20,
+      Duration syncInterval = const Duration(seconds: 10)}) async {
+    await _channel.invokeMethod('startRecording', {
+      'segmentSize': segmentSize,
+      'syncInterval': syncInterval.inMilliseconds,
+    });
+  }
+
+  /// stop a recording started by [startRecording], buffered fixes are still
+  /// written.
+  static Future<void> stopRecording() async {
+    await _channel.invokeMethod('stopRecording');
+  }
+
+  /// query the segments of the recorded track, oldest first.
+  static Future<List<TrackSegment>> get trackSegments async {
+    final List? segments =
+        await _channel.invokeMethod<List>('getTrackSegments');
+    return segments!.map((segment) => TrackSegment._fromMap(segment)).toList();
+  }
+
+  /// delete all segments of the recorded track older than [beforeSegment],
+  /// the segment being recorded is kept. Completes with the number of deleted
+  /// segments.
+  static Future<int> trimTrack(int beforeSegment) async {
+    final int? count =
+        await _channel.invokeMethod<int>('trimTrack', {'before': beforeSegment});
+    return count!;
+  }
+
+  /// query the counters and latency histograms of the native location
+  /// pipeline. Pass [reset] to start counting from zero afterwards.
+  static Future<TrustLocationMetrics> getMetrics({bool reset = false}) async {
+    final Map? metrics =
+        await _channel.invokeMethod<Map>('getMetrics', {'reset': reset});
+    return TrustLocationMetrics._fromMap(metrics!);
+  }
+
   /// check mock location on Android device.
   static Future<bool> get isMockLocation async {
     final bool isMock = await _channel.invokeMethod('isMockLocation');
@@ -55,24 +340,499 @@ class TrustLocation {
 }
 
 class LatLongPosition {
-  final String? _latitude;
-  final String? _longitude;
+  final double? _latitude;
+  final double? _longitude;
   final bool? _isMock;
+  final double? _accuracy;
+  final int? _time;
+  final int? _elapsedRealtimeNanos;
+  final bool _isPending;
+  final int _seq;
+  final double? _trustScore;
+  final int? _zoneId;
+  final bool _isCached;
+  final double? _smoothedLatitude;
+  final double? _smoothedLongitude;
+
+  LatLongPosition(
+      [String? latitude,
+      String? longitude,
+      this._isMock,
+      this._accuracy,
+      this._time,
+      this._elapsedRealtimeNanos,
+      this._isPending = false,
+      this._seq = 0,
+      this._trustScore,
+      this._zoneId,
+      this._isCached = false,
+      this._smoothedLatitude,
+      this._smoothedLongitude])
+      : _latitude = latitude == null ? null : double.tryParse(latitude),
+        _longitude = longitude == null ? null : double.tryParse(longitude);
 
-  LatLongPosition([this._latitude, this._longitude, this._isMock]);
+  LatLongPosition._fix(this._latitude, this._longitude, this._isMock,
+      this._accuracy, this._time, this._elapsedRealtimeNanos, this._isPending,
+      this._seq, this._trustScore, this._zoneId, this._isCached,
+      this._smoothedLatitude, this._smoothedLongitude);
 
   /// get latitude.
-  String? get latitude => _latitude;
+  String? get latitude => _latitude?.toString();
 
   /// get longitude.
-  String? get longitude => _longitude;
+  String? get longitude => _longitude?.toString();
+
+  /// get latitude in degrees.
+  double? get lat => _latitude;
+
+  /// get longitude in degrees.
+  double? get long => _longitude;
 
   /// is mock location.
   bool? get isMockLocation => _isMock;
 
+  /// get estimated horizontal accuracy in meters.
+  double? get accuracy => _accuracy;
+
+  /// get UTC time of the fix in milliseconds since epoch.
+  int? get time => _time;
+
+  /// get time of the fix in nanoseconds since boot.
+  int? get elapsedRealtimeNanos => _elapsedRealtimeNanos;
+
+  /// whether location updates were still warming up, the position is either
+  /// missing or older than the current location updates.
+  bool get isPending => _isPending;
+
+  /// get sequence number of the snapshot, it increases whenever the position
+  /// or its flags change.
+  int get seq => _seq;
+
+  /// get trust score of the fix from 0 (mocked) to 1 (trusted), combined from
+  /// the provider flag, impossible speed, clock drift and suspicious accuracy
+  /// or altitude patterns.
+  double? get trustScore => _trustScore;
+
+  /// get id of the trusted zone that contains the fix, `null` if it is outside
+  /// of all zones set with [TrustLocation.setTrustedZones].
+  int? get zoneId => _zoneId;
+
+  /// whether the fix was cached by the last run of the app. Cached fixes are
+  /// served right after launch while location updates warm up, check [age]
+  /// to decide whether it is recent enough.
+  bool get isCached => _isCached;
+
+  /// get latitude in degrees after native smoothing, null unless enabled with
+  /// [TrustLocation.setSmoothing].
+  double? get smoothedLat => _smoothedLatitude;
+
+  /// get longitude in degrees after native smoothing, null unless enabled
+  /// with [TrustLocation.setSmoothing].
+  double? get smoothedLong => _smoothedLongitude;
+
+  /// get how long ago the fix was taken, based on the wall clock.
+  Duration? get age => _time == null
+      ? null
+      : DateTime.now()
+          .difference(new DateTime.fromMillisecondsSinceEpoch(_time!));
+
   /// return the string of latitude and longitude.
   @override
   String toString() {
-    return 'Lat: $_latitude, Long: $_longitude, Mock: $_isMock';
+    return 'Lat: $latitude, Long: $longitude, Mock: $_isMock';
+  }
+}
+
+/// Accuracy of location updates, from the most to the least power-hungry.
+enum LocationAccuracy { high, medium, low, passive }
+
+extension on LocationAccuracy {
+  String get _name => toString().split('.').last.toUpperCase();
+}
+
+/// Source of location updates, see [TrustLocation.setLocationBackend].
+enum LocationBackend {
+  /// both backends race, the one with the first fix is kept.
+  auto,
+
+  /// the fused location provider of Google Play services.
+  fused,
+
+  /// the GPS and network providers of the platform `LocationManager`.
+  platform
+}
+
+extension on LocationBackend {
+  String get _name => toString().split('.').last.toUpperCase();
+}
+
+/// Format of a recorded trace, see [TrustLocation.startReplay].
+enum TraceFormat { csv, gpx, nmea }
+
+extension on TraceFormat {
+  String get _name => toString().split('.').last.toUpperCase();
+}
+
+/// Movement mode of adaptive location updates.
+class AdaptiveMode {
+  /// `STATIONARY`, `MOVING` or `FAST`.
+  final String mode;
+
+  /// accuracy of the location updates requested in this mode.
+  final LocationAccuracy accuracy;
+
+  /// interval of the location updates requested in this mode.
+  final Duration interval;
+
+  AdaptiveMode(this.mode, this.accuracy, this.interval);
+
+  AdaptiveMode._fromMap(Map map)
+      : mode = map['mode'],
+        accuracy = LocationAccuracy.values
+            .firstWhere((accuracy) => accuracy._name == map['accuracy']),
+        interval = new Duration(milliseconds: map['interval']);
+
+  @override
+  String toString() {
+    return 'Mode: $mode, Accuracy: ${accuracy._name}, Interval: $interval';
+  }
+}
+
+/// Counters and latencies of the native location pipeline.
+class TrustLocationMetrics {
+  /// locations delivered by the provider.
+  final int fixesReceived;
+
+  /// locations that were not passed on, because they were flagged or there
+  /// was nobody to receive them.
+  final int fixesDropped;
+
+  /// locations whose trust score was below the threshold.
+  final int fixesFlagged;
+
+  /// location update requests accepted by the fused location provider.
+  final int connects;
+
+  /// times the location became available again after it was lost.
+  final int reconnects;
+
+  /// times the location became unavailable, e.g. because the providers were
+  /// switched off.
+  final int suspensions;
+
+  /// location update requests rejected by the fused location provider.
+  final int connectionFailures;
+
+  /// fixes dropped by [TrustLocation.setFixFilter] because they repeated the
+  /// last delivered fix.
+  final int filteredDuplicates;
+
+  /// fixes dropped by [TrustLocation.setFixFilter] because they were too
+  /// close to the last delivered fix.
+  final int filteredDisplacement;
+
+  /// fixes dropped by [TrustLocation.setFixFilter] because their accuracy did
+  /// not improve enough.
+  final int filteredAccuracy;
+
+  /// fixes lost by [TrustLocation.startRecording] because the track could
+  /// not be written fast enough or a write failed.
+  final int trackDropped;
+
+  /// location update requests registered with the LocationManager backend,
+  /// see [TrustLocation.locationBackend]. They are not counted in [connects] and
+  /// [connectTime].
+  final int platformRequests;
+
+  /// time from the newest fix of every delivery until it was handed to the
+  /// channel.
+  final LatencyStats fixLatency;
+
+  /// time spent handling each method call natively.
+  final LatencyStats methodCallTime;
+
+  /// time it took the fused location provider to accept each location update
+  /// request.
+  final LatencyStats connectTime;
+
+  TrustLocationMetrics._fromMap(Map map)
+      : fixesReceived = map['fixesReceived'],
+        fixesDropped = map['fixesDropped'],
+        fixesFlagged = map['fixesFlagged'],
+        connects = map['connects'],
+        reconnects = map['reconnects'],
+        suspensions = map['suspensions'],
+        connectionFailures = map['connectionFailures'],
+        filteredDuplicates = map['filteredDuplicates'],
+        filteredDisplacement = map['filteredDisplacement'],
+        filteredAccuracy = map['filteredAccuracy'],
+        trackDropped = map['trackDropped'],
+        platformRequests = map['platformRequests'],
+        fixLatency = LatencyStats._fromMap(map['fixLatency']),
+        methodCallTime = LatencyStats._fromMap(map['methodCallTime']),
+        connectTime = LatencyStats._fromMap(map['connectTime']);
+}
+
+/// Summary of recorded latencies. Percentiles are upper bounds within 12.5%.
+class LatencyStats {
+  final int count;
+  final Duration mean;
+  final Duration p50;
+  final Duration p90;
+  final Duration p99;
+  final Duration max;
+
+  LatencyStats._fromMap(Map map)
+      : count = map['count'],
+        mean = _duration(map['mean']),
+        p50 = _duration(map['p50']),
+        p90 = _duration(map['p90']),
+        p99 = _duration(map['p99']),
+        max = _duration(map['max']);
+
+  static Duration _duration(int nanos) =>
+      new Duration(microseconds: nanos ~/ 1000);
+
+  @override
+  String toString() {
+    return 'Count: $count, Mean: $mean, P50: $p50, P90: $p90, P99: $p99, Max: $max';
+  }
+}
+
+/// A segment of the recorded track, see [TrustLocation.trackSegments].
+class TrackSegment {
+  final int id;
+
+  /// number of fixes in the segment when it was queried.
+  final int count;
+
+  /// whether fixes are still being appended to the segment.
+  final bool isActive;
+
+  TrackSegment._fromMap(Map map)
+      : id = map['id'],
+        count = map['count'],
+        isActive = map['active'];
+
+  /// read the fixes of the segment, oldest first, [pageSize] at a time, so
+  /// that long tracks are never loaded into memory at once. Fixes appended
+  /// while reading an active segment are included.
+  Stream<LatLongPosition> positions({int pageSize = 256}) async* {
+    int from = 0;
+    while (true) {
+      final List<LatLongPosition>? page = await TrustLocation._channel
+          .invokeMethod<List<LatLongPosition>>('readTrack',
+              {'segment': id, 'from': from, 'count': pageSize});
+      yield* new Stream.fromIterable(page!);
+      if (page.length < pageSize) break;
+      from += page.length;
+    }
+  }
+
+  /// encode all fixes of the segment natively into a compact binary stream
+  /// for upload, several times smaller than the same fixes as JSON. Fields
+  /// are delta-encoded against the previous fix and packed as zig-zag
+  /// varints, coordinates with a resolution of 1e-7 degrees. Decode the
+  /// stream with `TrajectoryCodec.Decoder` of the plugin sources on the JVM.
+  Future<Uint8List> export() async {
+    final Uint8List? bytes = await TrustLocation._channel
+        .invokeMethod<Uint8List>('exportTrack', {'segment': id});
+    return bytes!;
+  }
+
+  /// score the whole segment natively for spoofing patterns that only show
+  /// across a trip: teleports, perfectly straight lines, coordinates
+  /// quantized to a few decimals and replayed runs of movement. The segment
+  /// is split into windows of [windowSize] fixes that are scored in parallel
+  /// in the background, live fixes are not delayed.
+  Future<TrackReport> analyze({int windowSize = 512}) async {
+    final Map? report = await TrustLocation._channel.invokeMethod<Map>(
+        'analyzeTrack', {'segment': id, 'windowSize': windowSize});
+    return TrackReport._fromMap(report!);
+  }
+
+  @override
+  String toString() {
+    return 'Segment: $id, Count: $count, Active: $isActive';
+  }
+}
+
+/// Trust report of a recorded trip, see [TrackSegment.analyze].
+class TrackReport {
+  /// fixes in the trip.
+  final int fixes;
+
+  /// steps between consecutive fixes at an implausible speed.
+  final int teleports;
+
+  /// share of fixes with coordinates of at most 5 decimals.
+  final double quantizedRatio;
+
+  /// share of moving fixes that lie on a perfectly straight line with their
+  /// neighbours.
+  final double straightRatio;
+
+  /// share of runs of movement that repeat an earlier run of the trip.
+  final double replayedRatio;
+
+  /// trust score of the whole trip, from 0 (spoofed) to 1 (trusted).
+  final double trust;
+
+  /// trust score of every window, in order, to find where a trip went wrong.
+  final List<double> windowTrust;
+
+  TrackReport._fromMap(Map map)
+      : fixes = map['fixes'],
+        teleports = map['teleports'],
+        quantizedRatio = map['quantizedRatio'],
+        straightRatio = map['straightRatio'],
+        replayedRatio = map['replayedRatio'],
+        trust = map['trust'],
+        windowTrust = map['windowTrust'];
+
+  @override
+  String toString() {
+    return 'Fixes: $fixes, Trust: $trust, Teleports: $teleports';
+  }
+}
+
+/// A trusted zone, either a polygon or a circle.
+class TrustedZone {
+  final int id;
+  final Float64List? _vertices;
+  final double? _latitude;
+  final double? _longitude;
+  final double? _radius;
+
+  /// a polygon zone, [vertices] holds the latitude and longitude of every
+  /// vertex in degrees, flattened into pairs.
+  TrustedZone.polygon(this.id, List<double> vertices)
+      : _vertices = new Float64List.fromList(vertices),
+        _latitude = null,
+        _longitude = null,
+        _radius = null;
+
+  /// a circular zone around the given center with a [radius] in meters.
+  TrustedZone.circle(this.id, double latitude, double longitude, double radius)
+      : _vertices = null,
+        _latitude = latitude,
+        _longitude = longitude,
+        _radius = radius;
+
+  Map<String, dynamic> _toMap() {
+    return {
+      'id': id,
+      'vertices': _vertices,
+      'latitude': _latitude,
+      'longitude': _longitude,
+      'radius': _radius,
+    };
+  }
+}
+
+/// Method codec of the plugin channels. Fixes travel as little-endian binary
+/// frames that are read without any parsing, every other value is encoded by
+/// the [StandardMethodCodec].
+class FixFrameCodec extends StandardMethodCodec {
+  static const int _successEnvelope = 0;
+  static const int _fixFrame = 0x80;
+  static const int _historyFrame = 0x81;
+  static const int _recordSize = 4 + 8 * 6 + 4 + 4 + 8 * 2;
+  static const int _noZone = -1;
+  static const int _hasFix = 1;
+  static const int _mock = 1 << 1;
+  static const int _pending = 1 << 2;
+  static const int _cached = 1 << 3;
+
+  const FixFrameCodec();
+
+  @override
+  ByteData encodeSuccessEnvelope(Object? result) {
+    if (result is LatLongPosition) {
+      final ByteData frame = new ByteData(2 + _recordSize);
+      frame.setUint8(0, _successEnvelope);
+      frame.setUint8(1, _fixFrame);
+      _writeFix(frame, 2, result);
+      return frame;
+    }
+    if (result is List<LatLongPosition>) {
+      final ByteData frame = new ByteData(6 + result.length * _recordSize);
+      frame.setUint8(0, _successEnvelope);
+      frame.setUint8(1, _historyFrame);
+      frame.setInt32(2, result.length, Endian.little);
+      for (int i = 0; i < result.length; i++)
+        _writeFix(frame, 6 + i * _recordSize, result[i]);
+      return frame;
+    }
+    return super.encodeSuccessEnvelope(result);
+  }
+
+  @override
+  dynamic decodeEnvelope(ByteData envelope) {
+    if (envelope.lengthInBytes < 2 || envelope.getUint8(0) != _successEnvelope)
+      return super.decodeEnvelope(envelope);
+    switch (envelope.getUint8(1)) {
+      case _fixFrame:
+        return _readFix(envelope, 2);
+      case _historyFrame:
+        final int count = envelope.getInt32(2, Endian.little);
+        return new List<LatLongPosition>.generate(
+            count, (i) => _readFix(envelope, 6 + i * _recordSize));
+      default:
+        return super.decodeEnvelope(envelope);
+    }
+  }
+
+  static void _writeFix(ByteData frame, int offset, LatLongPosition position) {
+    final bool hasFix =
+        position._latitude != null && position._longitude != null;
+    int flags = (position._isMock ?? false) ? _mock : 0;
+    if (hasFix) flags |= _hasFix;
+    if (position._isPending) flags |= _pending;
+    if (position._isCached) flags |= _cached;
+    frame.setInt32(offset, flags, Endian.little);
+    frame.setInt64(offset + 4, position._seq, Endian.little);
+    frame.setFloat64(offset + 12, position._latitude ?? 0, Endian.little);
+    frame.setFloat64(offset + 20, position._longitude ?? 0, Endian.little);
+    frame.setFloat64(offset + 28, position._accuracy ?? 0, Endian.little);
+    frame.setInt64(offset + 36, position._time ?? 0, Endian.little);
+    frame.setInt64(
+        offset + 44, position._elapsedRealtimeNanos ?? 0, Endian.little);
+    frame.setFloat32(offset + 52, position._trustScore ?? 0, Endian.little);
+    frame.setInt32(offset + 56, position._zoneId ?? _noZone, Endian.little);
+    frame.setFloat64(
+        offset + 60, position._smoothedLatitude ?? double.nan, Endian.little);
+    frame.setFloat64(
+        offset + 68, position._smoothedLongitude ?? double.nan, Endian.little);
+  }
+
+  static LatLongPosition _readFix(ByteData frame, int offset) {
+    final int flags = frame.getInt32(offset, Endian.little);
+    final bool isMock = flags & _mock != 0;
+    final bool isPending = flags & _pending != 0;
+    final bool isCached = flags & _cached != 0;
+    final int seq = frame.getInt64(offset + 4, Endian.little);
+    if (flags & _hasFix == 0)
+      return new LatLongPosition._fix(
+          null, null, isMock, null, null, null, isPending, seq, null, null,
+          isCached, null, null);
+    final int zoneId = frame.getInt32(offset + 56, Endian.little);
+    final double smoothedLatitude = frame.getFloat64(offset + 60, Endian.little);
+    final double smoothedLongitude =
+        frame.getFloat64(offset + 68, Endian.little);
+    return new LatLongPosition._fix(
+        frame.getFloat64(offset + 12, Endian.little),
+        frame.getFloat64(offset + 20, Endian.little),
+        isMock,
+        frame.getFloat64(offset + 28, Endian.little),
+        frame.getInt64(offset + 36, Endian.little),
+        frame.getInt64(offset + 44, Endian.little),
+        isPending,
+        seq,
+        frame.getFloat32(offset + 52, Endian.little),
+        zoneId == _noZone ? null : zoneId,
+        isCached,
+        smoothedLatitude.isNaN ? null : smoothedLatitude,
+        smoothedLongitude.isNaN ? null : smoothedLongitude);
   }
 }
@@ -1,21 +1,289 @@
+import 'dart:async';
+import 'dart:typed_data';
+
 import 'package:flutter/services.dart';
 import 'package:flutter_test/flutter_test.dart';
 import 'package:trust_location/trust_location.dart';
 
 void main() {
-  const MethodChannel channel = MethodChannel('trust_location');
+  const MethodChannel channel =
+      MethodChannel('trust_location', FixFrameCodec());
+  const MethodChannel positionChannel =
+      MethodChannel('trust_location/position', FixFrameCodec());
+  bool cached = false;
+  final Map<int, Map> subscriptions = {};
+  dynamic replayArguments;
+  final List<MethodCall> calls = [];
 
   setUp(() {
     channel.setMockMethodCallHandler((MethodCall methodCall) async {
-      return false;
+      calls.add(methodCall);
+      switch (methodCall.method) {
+        case 'getPosition':
+          if (methodCall.arguments != null)
+            return LatLongPosition(null, null, true, null, null, null, true);
+          if (cached)
+            return LatLongPosition('13.7563', '100.5018', false, 12.5,
+                DateTime.now().millisecondsSinceEpoch - 60000, 1, true, 3,
+                0.9, null, true);
+          return LatLongPosition(
+              '13.7563', '100.5018', false, 12.5, 1600000000000, 123456789,
+              false, 42, 0.75, null, false, 13.75631, 100.50179);
+        case 'getCurrentPosition':
+          if (methodCall.arguments['maxAge'] == 0)
+            throw PlatformException(code: 'TIMEOUT');
+          return LatLongPosition('13.7563', '100.5018', false, 5, 1, 1,
+              false, 43, 1.0);
+        case 'getHistory':
+          return [
+            LatLongPosition('13.75', '100.5', false, 5, 1, 1, false, 7),
+            LatLongPosition('13.76', '100.6', false, 5, 2, 2, false, 8),
+          ].where((p) => p.seq > methodCall.arguments['sinceSeq']).toList();
+        case 'setTrustedZones':
+          return methodCall.arguments['zones'].length;
+        case 'getMetrics':
+          final Map<String, int> latency = {
+            'count': 2,
+            'mean': 1500000,
+            'p50': 1000000,
+            'p90': 2000000,
+            'p99': 2000000,
+            'max': 2000000,
+          };
+          return {
+            'fixesReceived': 3,
+            'fixesDropped': 1,
+            'fixesFlagged': 1,
+            'connects': 1,
+            'reconnects': 0,
+            'suspensions': 0,
+            'connectionFailures': 0,
+            'filteredDuplicates': 4,
+            'filteredDisplacement': 2,
+            'filteredAccuracy': 0,
+            'trackDropped': 0,
+            'platformRequests': 2,
+            'fixLatency': latency,
+            'methodCallTime': latency,
+            'connectTime': latency,
+          };
+        case 'getBackend':
+          return 'PLATFORM';
+        case 'subscribe':
+          if (methodCall.arguments['interval'] < 0)
+            throw PlatformException(code: 'INVALID_ARGUMENT');
+          subscriptions[methodCall.arguments['id']] = methodCall.arguments;
+          return null;
+        case 'unsubscribe':
+          subscriptions.remove(methodCall.arguments['id']);
+          return null;
+        case 'startReplay':
+          replayArguments = methodCall.arguments;
+          return 2;
+        case 'getTrackSegments':
+          return [
+            {'id': 0, 'count': 5, 'active': false},
+            {'id': 1, 'count': 2, 'active': true},
+          ];
+        case 'readTrack':
+          final int from = methodCall.arguments['from'];
+          final int end = from + methodCall.arguments['count'] as int;
+          return [
+            for (int seq = from; seq < (end < 5 ? end : 5); seq++)
+              LatLongPosition('13.75', '100.5', false, 5, seq, seq, false, seq)
+          ];
+        case 'exportTrack':
+          return Uint8List.fromList([1, methodCall.arguments['segment']]);
+        case 'analyzeTrack':
+          return {
+            'fixes': 1000,
+            'teleports': 1,
+            'quantizedRatio': 0.0,
+            'straightRatio': 0.01,
+            'replayedRatio': 0.0,
+            'trust': 2 / 3,
+            'windowTrust': Float64List.fromList([1, 2 / 3]),
+          };
+        case 'setAdaptiveUpdates':
+          if (!methodCall.arguments['enabled']) return null;
+          return {
+            'mode': 'MOVING',
+            'accuracy': methodCall.arguments['maxAccuracy'],
+            'interval': methodCall.arguments['minInterval'],
+          };
+        default:
+          return false;
+      }
     });
   });
 
   tearDown(() {
+    cached = false;
+    calls.clear();
     channel.setMockMethodCallHandler(null);
+    positionChannel.setMockMethodCallHandler(null);
   });
 
   test('getNotMockLocation', () async {
     expect(await TrustLocation.isMockLocation, false);
   });
+
+  test('getPosition', () async {
+    LatLongPosition position = await TrustLocation.getPosition;
+    expect(position.lat, 13.7563);
+    expect(position.latitude, '13.7563');
+    expect(position.longitude, '100.5018');
+    expect(position.isMockLocation, false);
+    expect(position.accuracy, 12.5);
+    expect(position.time, 1600000000000);
+    expect(position.elapsedRealtimeNanos, 123456789);
+    expect(position.seq, 42);
+    expect(position.trustScore, 0.75);
+    expect(position.smoothedLat, 13.75631);
+    expect(position.smoothedLong, 100.50179);
+  });
+
+  test('awaitPositionPending', () async {
+    LatLongPosition position =
+        await TrustLocation.awaitPosition(const Duration(milliseconds: 10));
+    expect(position.isPending, true);
+    expect(position.lat, null);
+  });
+
+  test('getHistorySince', () async {
+    List<LatLongPosition> history = await TrustLocation.getHistory(7);
+    expect(history.length, 1);
+    expect(history[0].seq, 8);
+    expect(history[0].long, 100.6);
+  });
+
+  test('setTrustedZones', () async {
+    int count = await TrustLocation.setTrustedZones([
+      TrustedZone.polygon(1, [13.75, 100.50, 13.76, 100.50, 13.76, 100.51]),
+      TrustedZone.circle(2, 13.75, 100.50, 150),
+    ]);
+    expect(count, 2);
+  });
+
+  test('setAdaptiveUpdates', () async {
+    AdaptiveMode? mode = await TrustLocation.setAdaptiveUpdates(true,
+        maxAccuracy: LocationAccuracy.medium,
+        minInterval: const Duration(seconds: 10));
+    expect(calls.last.arguments,
+        {'enabled': true, 'maxAccuracy': 'MEDIUM', 'minInterval': 10000});
+    expect(mode!.mode, 'MOVING');
+    expect(mode.accuracy, LocationAccuracy.medium);
+    expect(mode.interval, const Duration(seconds: 10));
+    expect(await TrustLocation.setAdaptiveUpdates(false), null);
+    expect(calls.last.arguments,
+        {'enabled': false, 'maxAccuracy': 'HIGH', 'minInterval': 0});
+  });
+
+  test('setFixFilter', () async {
+    await TrustLocation.setFixFilter(
+        minDisplacement: 10, suppressDuplicates: true);
+    expect(calls.last.method, 'setFixFilter');
+    expect(calls.last.arguments, {
+      'minDisplacement': 10.0,
+      'minAccuracyImprovement': 0.0,
+      'suppressDuplicates': true,
+    });
+  });
+
+  test('setSmoothing', () async {
+    await TrustLocation.setSmoothing(true);
+    expect(calls.last.method, 'setSmoothing');
+    expect(calls.last.arguments, {'enabled': true, 'processNoise': 3.0});
+    await TrustLocation.setSmoothing(false, processNoise: 0.5);
+    expect(calls.last.arguments, {'enabled': false, 'processNoise': 0.5});
+  });
+
+  test('getMetrics', () async {
+    TrustLocationMetrics metrics = await TrustLocation.getMetrics();
+    expect(metrics.fixesReceived, 3);
+    expect(metrics.fixesDropped, 1);
+    expect(metrics.filteredDuplicates, 4);
+    expect(metrics.platformRequests, 2);
+    expect(metrics.fixLatency.count, 2);
+    expect(metrics.fixLatency.p50, const Duration(milliseconds: 1));
+    expect(metrics.connectTime.mean, const Duration(microseconds: 1500));
+  });
+
+  test('getCachedPosition', () async {
+    cached = true;
+    LatLongPosition position = await TrustLocation.getPosition;
+    expect(position.isCached, true);
+    expect(position.isPending, true);
+    expect(position.lat, 13.7563);
+    expect(position.age! >= const Duration(seconds: 60), true);
+  });
+
+  test('getCurrentPosition', () async {
+    LatLongPosition position = await TrustLocation.getCurrentPosition(
+        maxAge: const Duration(minutes: 1), accuracy: LocationAccuracy.medium);
+    expect(position.seq, 43);
+    expect(TrustLocation.getCurrentPosition(),
+        throwsA(isA<TimeoutException>()));
+  });
+
+  test('startReplay', () async {
+    expect(
+        await TrustLocation.startReplay('1600000000000,13.75,100.5',
+            format: TraceFormat.nmea, speedUp: 10),
+        2);
+    expect(replayArguments, {
+      'trace': '1600000000000,13.75,100.5',
+      'format': 'NMEA',
+      'speedUp': 10.0,
+    });
+    await TrustLocation.startReplay('');
+    expect(replayArguments['format'], null);
+    expect(replayArguments['speedUp'], 1.0);
+  });
+
+  test('getLocationBackend', () async {
+    expect(await TrustLocation.locationBackend, LocationBackend.platform);
+  });
+
+  test('subscribe', () async {
+    positionChannel.setMockMethodCallHandler((MethodCall call) async => null);
+    final StreamSubscription<LatLongPosition> subscription = TrustLocation
+        .subscribe(
+            interval: const Duration(seconds: 30),
+            accuracy: LocationAccuracy.low)
+        .listen(null);
+    await Future<void>.delayed(Duration.zero);
+    expect(subscriptions.values.single['interval'], 30000);
+    expect(subscriptions.values.single['accuracy'], 'LOW');
+    await subscription.cancel();
+    expect(subscriptions, isEmpty);
+  });
+
+  test('subscribe error', () async {
+    positionChannel.setMockMethodCallHandler((MethodCall call) async => null);
+    final Completer<Object> error = Completer<Object>();
+    final StreamSubscription<LatLongPosition> subscription = TrustLocation
+        .subscribe(interval: const Duration(seconds: -1))
+        .listen(null, onError: error.complete);
+    expect(await error.future, isA<PlatformException>());
+    await subscription.cancel();
+  });
+
+  test('readTrack', () async {
+    List<TrackSegment> segments = await TrustLocation.trackSegments;
+    expect(segments.length, 2);
+    expect(segments.last.isActive, true);
+    List<LatLongPosition> positions =
+        await segments.first.positions(pageSize: 2).toList();
+    expect(positions.map((p) => p.seq), [0, 1, 2, 3, 4]);
+    expect(await segments.last.export(), [1, 1]);
+  });
+
+  test('analyzeTrack', () async {
+    List<TrackSegment> segments = await TrustLocation.trackSegments;
+    TrackReport report = await segments.first.analyze(windowSize: 500);
+    expect(report.teleports, 1);
+    expect(report.windowTrust, [1, 2 / 3]);
+    expect(report.trust, closeTo(0.67, 0.01));
+  });
 }